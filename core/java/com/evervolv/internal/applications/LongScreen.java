@@ -19,14 +19,19 @@ package com.evervolv.internal.applications;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.Looper;
 import android.os.UserHandle;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
+
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.Executor;
 
 import evervolv.provider.EVSettings;
 
@@ -80,23 +85,23 @@ public class LongScreen {
         mApps = apps;
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements OnSettingsChangedListener {
+        private final Executor mExecutor;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.LONG_SCREEN_APPS), false, this,
-                    UserHandle.USER_ALL);
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL,
+                    EVSettings.System.getUriFor(EVSettings.System.LONG_SCREEN_APPS));
 
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             update();
         }
 
@@ -19,18 +19,25 @@ package com.evervolv.internal.buttons;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.media.AudioManager;
 import android.media.session.MediaSessionLegacyHelper;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.Message;
 import android.os.UserHandle;
 import android.util.Slog;
 import android.view.KeyEvent;
 import android.view.ViewConfiguration;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
+
 import evervolv.provider.EVSettings;
 
+import java.util.Set;
+import java.util.concurrent.Executor;
+
 public final class ButtonManager {
     private final String TAG = "ButtonManager";
     private final boolean DEBUG = false;
@@ -147,32 +154,27 @@ public final class ButtonManager {
         MediaSessionLegacyHelper.getHelper(mContext).sendMediaButtonEvent(ev, true);
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements OnSettingsChangedListener {
+        private final Executor mExecutor;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.VOLBTN_MUSIC_CONTROLS),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BRIGHTNESS),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT),
-                            false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED),
-                            false, this, UserHandle.USER_ALL);
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL,
+                    EVSettings.System.getUriFor(EVSettings.System.VOLBTN_MUSIC_CONTROLS),
+                    EVSettings.System.getUriFor(EVSettings.System.BUTTON_BRIGHTNESS),
+                    EVSettings.System.getUriFor(EVSettings.System.BUTTON_BACKLIGHT_TIMEOUT),
+                    EVSettings.System.getUriFor(
+                            EVSettings.System.BUTTON_BACKLIGHT_ONLY_WHEN_PRESSED));
 
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             update();
         }
 
@@ -23,15 +23,24 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.res.Resources;
-import android.database.ContentObserver;
+import android.net.Uri;
 import android.os.BatteryManager;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.UserHandle;
 import android.provider.Settings.Global;
 import android.util.Slog;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
+
 import evervolv.provider.EVSettings;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
 public final class BatteryLightHelper {
     private final String TAG = "BatteryLightHelper";
     private final boolean DEBUG = false;
@@ -202,53 +211,51 @@ public final class BatteryLightHelper {
         }
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements OnSettingsChangedListener {
+        private final Executor mExecutor;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
+            List<Uri> settings = new ArrayList<>();
 
             // Battery light enabled
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BATTERY_LIGHT_ENABLED), false, this,
-                    UserHandle.USER_ALL);
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.BATTERY_LIGHT_ENABLED));
 
             // Low battery pulse
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.BATTERY_LIGHT_PULSE), false, this,
-                    UserHandle.USER_ALL);
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.BATTERY_LIGHT_PULSE));
 
             if (mMultiColorBatteryLed) {
                 // Light colors
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_LOW_COLOR), false, this,
-                        UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR), false, this,
-                        UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_FULL_COLOR), false, this,
-                        UserHandle.USER_ALL);
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.BATTERY_LIGHT_LOW_COLOR));
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.BATTERY_LIGHT_MEDIUM_COLOR));
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.BATTERY_LIGHT_FULL_COLOR));
             }
 
             if (mCanAdjustBrightness) {
                 // Battery brightness level
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL), false, this,
-                        UserHandle.USER_ALL);
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL));
                 // Battery brightness level in Do Not Disturb mode
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN), false, this,
-                        UserHandle.USER_ALL);
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN));
             }
 
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL, settings.toArray(new Uri[0]));
+
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             update();
         }
 
@@ -27,9 +27,10 @@ import android.content.ContentResolver;
 import android.content.pm.PackageManager;
 import android.content.pm.PackageManager.NameNotFoundException;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.provider.Settings.Global;
@@ -37,10 +38,17 @@ import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.Slog;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
+
 import evervolv.provider.EVSettings;
 import evervolv.util.ColorUtils;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public final class NotificationLightHelper {
     private static final String TAG = "NotificationLightHelper";
@@ -364,57 +372,51 @@ public final class NotificationLightHelper {
         }
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements OnSettingsChangedListener {
+        private final Executor mExecutor;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-
-            resolver.registerContentObserver(Settings.System.getUriFor(
-                    Settings.System.NOTIFICATION_LIGHT_PULSE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO), false,
-                    this, UserHandle.USER_ALL);
+            List<Uri> settings = new ArrayList<>();
+
+            settings.add(Settings.System.getUriFor(
+                    Settings.System.NOTIFICATION_LIGHT_PULSE));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_COLOR));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_ON));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_DEFAULT_LED_OFF));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_SCREEN_ON));
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.NOTIFICATION_LIGHT_COLOR_AUTO));
 
             if (mCanAdjustBrightness) {
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL),
-                        false, this, UserHandle.USER_ALL);
-                resolver.registerContentObserver(EVSettings.System.getUriFor(
-                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN),
-                        false, this, UserHandle.USER_ALL);
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL));
+                settings.add(EVSettings.System.getUriFor(
+                        EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN));
             }
 
-            resolver.registerContentObserver(EVSettings.System.getUriFor(
-                    EVSettings.System.ZEN_ALLOW_LIGHTS), false, this,
-                    UserHandle.USER_ALL);
+            settings.add(EVSettings.System.getUriFor(
+                    EVSettings.System.ZEN_ALLOW_LIGHTS));
+
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL, settings.toArray(new Uri[0]));
 
             update();
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             update();
         }
 
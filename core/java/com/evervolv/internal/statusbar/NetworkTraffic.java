@@ -19,7 +19,6 @@ package com.evervolv.internal.statusbar;
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.graphics.Color;
 import android.graphics.PorterDuff;
 import android.graphics.PorterDuffColorFilter;
@@ -31,7 +30,9 @@ import android.net.Network;
 import android.net.NetworkCapabilities;
 import android.net.NetworkRequest;
 import android.net.TrafficStats;
+import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.Message;
 import android.os.SystemClock;
 import android.os.UserHandle;
@@ -41,12 +42,16 @@ import android.util.TypedValue;
 import android.view.View;
 import android.widget.TextView;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
 import com.evervolv.platform.internal.R;
 
 import evervolv.provider.EVSettings;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 public class NetworkTraffic extends TextView {
     private static final String TAG = "NetworkTraffic";
@@ -351,33 +356,28 @@ public class NetworkTraffic extends TextView {
         mObserver.unobserve();
     }
 
-    class SettingsObserver extends ContentObserver {
+    class SettingsObserver implements OnSettingsChangedListener {
+        private final Executor mExecutor;
+
         SettingsObserver(Handler handler) {
-            super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         void observe() {
-            ContentResolver resolver = mContext.getContentResolver();
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_MODE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_UNITS),
-                    false, this, UserHandle.USER_ALL);
-            resolver.registerContentObserver(EVSettings.Secure.getUriFor(
-                    EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS),
-                    false, this, UserHandle.USER_ALL);
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL,
+                    EVSettings.Secure.getUriFor(EVSettings.Secure.NETWORK_TRAFFIC_MODE),
+                    EVSettings.Secure.getUriFor(EVSettings.Secure.NETWORK_TRAFFIC_AUTOHIDE),
+                    EVSettings.Secure.getUriFor(EVSettings.Secure.NETWORK_TRAFFIC_UNITS),
+                    EVSettings.Secure.getUriFor(EVSettings.Secure.NETWORK_TRAFFIC_SHOW_UNITS));
         }
 
         void unobserve() {
-            mContext.getContentResolver().unregisterContentObserver(this);
+            SettingsChangeDispatcher.getInstance(mContext).unregisterListener(this);
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             updateSettings();
         }
     }
@@ -0,0 +1,343 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.internal.util;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.database.ContentObserver;
+import android.net.Uri;
+import android.text.TextUtils;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import evervolv.provider.EVSettings;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Multiplexes settings change notifications within a process.
+ *
+ * Instead of every component registering its own ContentObserver for each setting it cares
+ * about, the dispatcher keeps one observer per EVSettings table and user, and fans changes out
+ * to the listeners registered for the changed keys. Settings of other providers are observed
+ * by their exact uri, but still only once per process and user.
+ *
+ * A change to the uri of a whole table, or of any other ancestor of registered settings, is
+ * delivered for every registered setting below it, as the provider doesn't name the settings
+ * changed by its bulk writes.
+ *
+ * Changes that arrive before a listener's executor got around to running it are coalesced
+ * into a single callback carrying all of the changed uris.
+ */
+public final class SettingsChangeDispatcher {
+    private static final String TAG = "SettingsChangeDispatcher";
+    private static final boolean DEBUG = false;
+
+    /**
+     * Receives coalesced change notifications for the settings a listener registered for.
+     */
+    public interface OnSettingsChangedListener {
+        /**
+         * Called on the listener's executor.
+         * @param uris The registered settings that changed since the previous callback.
+         */
+        void onSettingsChanged(Set<Uri> uris);
+    }
+
+    private static SettingsChangeDispatcher sInstance;
+
+    private final ContentResolver mResolver;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, SettingsObserver> mObservers = new ArrayMap<>();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<OnSettingsChangedListener, ListenerRecord> mListeners =
+            new ArrayMap<>();
+
+    // Statistics, reported by dump()
+    @GuardedBy("mLock")
+    private int mRequestedRegistrations;
+    @GuardedBy("mLock")
+    private int mObserverRegistrations;
+    @GuardedBy("mLock")
+    private long mChangesReceived;
+    @GuardedBy("mLock")
+    private long mCallbacksDispatched;
+    @GuardedBy("mLock")
+    private long mCallbacksCoalesced;
+
+    public static SettingsChangeDispatcher getInstance(Context context) {
+        synchronized (SettingsChangeDispatcher.class) {
+            if (sInstance == null) {
+                final Context appContext = context.getApplicationContext();
+                sInstance = new SettingsChangeDispatcher(
+                        appContext != null ? appContext : context);
+            }
+            return sInstance;
+        }
+    }
+
+    private SettingsChangeDispatcher(Context context) {
+        mResolver = context.getContentResolver();
+    }
+
+    /**
+     * Registers a listener for changes to the given settings. A listener may be registered
+     * several times to add settings, but always for the same user and executor.
+     * @param listener The listener to notify.
+     * @param executor The executor to run the listener on.
+     * @param userId The user to observe, or {@link android.os.UserHandle#USER_ALL}.
+     * @param uris The settings to observe, as returned by {@code getUriFor()}.
+     */
+    public void registerListener(OnSettingsChangedListener listener, Executor executor,
+            int userId, Uri... uris) {
+        synchronized (mLock) {
+            ListenerRecord record = mListeners.get(listener);
+            if (record == null) {
+                record = new ListenerRecord(listener, executor, userId);
+                mListeners.put(listener, record);
+            } else if (record.mUserId != userId || record.mExecutor != executor) {
+                throw new IllegalArgumentException("Listener " + listener
+                        + " is already registered with another user or executor");
+            }
+
+            for (Uri uri : uris) {
+                final SettingsObserver observer = getOrCreateObserverLocked(uri, userId);
+                observer.addListenerLocked(uri, record);
+                record.mObservers.add(observer);
+                mRequestedRegistrations++;
+            }
+        }
+    }
+
+    /**
+     * Unregisters a listener from all of its settings. Callbacks that were already scheduled
+     * for it are dropped.
+     * @param listener The listener to remove.
+     */
+    public void unregisterListener(OnSettingsChangedListener listener) {
+        synchronized (mLock) {
+            final ListenerRecord record = mListeners.remove(listener);
+            if (record == null) {
+                return;
+            }
+            record.mRegistered = false;
+            record.mPending.clear();
+
+            for (SettingsObserver observer : record.mObservers) {
+                observer.removeListenerLocked(record);
+                if (observer.isEmptyLocked()) {
+                    mResolver.unregisterContentObserver(observer);
+                    mObservers.remove(observer.mKey);
+                    if (DEBUG) Log.d(TAG, "Stopped observing " + observer.mKey);
+                }
+            }
+            record.mObservers.clear();
+        }
+    }
+
+    @GuardedBy("mLock")
+    private SettingsObserver getOrCreateObserverLocked(Uri uri, int userId) {
+        final boolean wholeTable = isEVSettingsUri(uri);
+        final Uri observedUri = wholeTable ? getTableUri(uri) : uri;
+        final String key = observedUri + "#" + userId;
+
+        SettingsObserver observer = mObservers.get(key);
+        if (observer == null) {
+            observer = new SettingsObserver(key);
+            mResolver.registerContentObserver(observedUri, wholeTable, observer, userId);
+            mObservers.put(key, observer);
+            mObserverRegistrations++;
+            if (DEBUG) Log.d(TAG, "Observing " + key);
+        }
+        return observer;
+    }
+
+    private static boolean isEVSettingsUri(Uri uri) {
+        return EVSettings.AUTHORITY.equals(uri.getAuthority())
+                && uri.getPathSegments().size() == 2;
+    }
+
+    private static Uri getTableUri(Uri uri) {
+        return new Uri.Builder()
+                .scheme(uri.getScheme())
+                .authority(uri.getAuthority())
+                .appendPath(uri.getPathSegments().get(0))
+                .build();
+    }
+
+    private void onSettingsChanged(SettingsObserver observer, Collection<Uri> uris) {
+        final ArraySet<ListenerRecord> toSchedule = new ArraySet<>();
+        synchronized (mLock) {
+            for (Uri uri : uris) {
+                mChangesReceived++;
+                final ArraySet<ListenerRecord> records = observer.mRecords.get(uri);
+                if (records != null) {
+                    addPendingLocked(uri, records, toSchedule);
+                    continue;
+                }
+                // Not a registered setting: fan out if it covers some of them.
+                for (int i = 0; i < observer.mRecords.size(); i++) {
+                    final Uri registeredUri = observer.mRecords.keyAt(i);
+                    if (isAncestor(uri, registeredUri)) {
+                        addPendingLocked(registeredUri, observer.mRecords.valueAt(i),
+                                toSchedule);
+                    }
+                }
+            }
+        }
+
+        for (int i = 0; i < toSchedule.size(); i++) {
+            final ListenerRecord record = toSchedule.valueAt(i);
+            record.mExecutor.execute(record);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void addPendingLocked(Uri uri, ArraySet<ListenerRecord> records,
+            ArraySet<ListenerRecord> toSchedule) {
+        for (int i = 0; i < records.size(); i++) {
+            final ListenerRecord record = records.valueAt(i);
+            record.mPending.add(uri);
+            if (record.mScheduled) {
+                mCallbacksCoalesced++;
+            } else {
+                record.mScheduled = true;
+                toSchedule.add(record);
+            }
+        }
+    }
+
+    /**
+     * @return Whether a uri names a strict ancestor of another, such as its table.
+     */
+    private static boolean isAncestor(Uri ancestor, Uri uri) {
+        if (!TextUtils.equals(ancestor.getScheme(), uri.getScheme())
+                || !TextUtils.equals(ancestor.getAuthority(), uri.getAuthority())) {
+            return false;
+        }
+        final List<String> ancestorSegments = ancestor.getPathSegments();
+        final List<String> segments = uri.getPathSegments();
+        return ancestorSegments.size() < segments.size()
+                && segments.subList(0, ancestorSegments.size()).equals(ancestorSegments);
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println();
+            pw.println("SettingsChangeDispatcher Configuration:");
+            pw.println("  listeners=" + mListeners.size());
+            pw.println("  observers=" + mObservers.size() + " " + mObservers.keySet());
+            pw.println("  requestedRegistrations=" + mRequestedRegistrations);
+            pw.println("  observerRegistrations=" + mObserverRegistrations);
+            pw.println("  changesReceived=" + mChangesReceived);
+            pw.println("  callbacksDispatched=" + mCallbacksDispatched);
+            pw.println("  callbacksCoalesced=" + mCallbacksCoalesced);
+        }
+    }
+
+    private final class SettingsObserver extends ContentObserver {
+        final String mKey;
+
+        // Registered listeners, by the exact setting uri they asked for.
+        @GuardedBy("mLock")
+        final ArrayMap<Uri, ArraySet<ListenerRecord>> mRecords = new ArrayMap<>();
+
+        SettingsObserver(String key) {
+            // Deliver on the binder thread, listeners run on their own executors.
+            super(null);
+            mKey = key;
+        }
+
+        @GuardedBy("mLock")
+        void addListenerLocked(Uri uri, ListenerRecord record) {
+            ArraySet<ListenerRecord> records = mRecords.get(uri);
+            if (records == null) {
+                records = new ArraySet<>();
+                mRecords.put(uri, records);
+            }
+            records.add(record);
+        }
+
+        @GuardedBy("mLock")
+        void removeListenerLocked(ListenerRecord record) {
+            for (int i = mRecords.size() - 1; i >= 0; i--) {
+                final ArraySet<ListenerRecord> records = mRecords.valueAt(i);
+                records.remove(record);
+                if (records.isEmpty()) {
+                    mRecords.removeAt(i);
+                }
+            }
+        }
+
+        @GuardedBy("mLock")
+        boolean isEmptyLocked() {
+            return mRecords.isEmpty();
+        }
+
+        @Override
+        public void onChange(boolean selfChange, Collection<Uri> uris, int flags) {
+            onSettingsChanged(this, uris);
+        }
+    }
+
+    private final class ListenerRecord implements Runnable {
+        final OnSettingsChangedListener mListener;
+        final Executor mExecutor;
+        final int mUserId;
+
+        @GuardedBy("mLock")
+        final ArraySet<SettingsObserver> mObservers = new ArraySet<>();
+        @GuardedBy("mLock")
+        final ArraySet<Uri> mPending = new ArraySet<>();
+        @GuardedBy("mLock")
+        boolean mScheduled;
+        @GuardedBy("mLock")
+        boolean mRegistered = true;
+
+        ListenerRecord(OnSettingsChangedListener listener, Executor executor, int userId) {
+            mListener = listener;
+            mExecutor = executor;
+            mUserId = userId;
+        }
+
+        @Override
+        public void run() {
+            final ArraySet<Uri> uris;
+            synchronized (mLock) {
+                mScheduled = false;
+                if (!mRegistered || mPending.isEmpty()) {
+                    return;
+                }
+                uris = new ArraySet<>(mPending);
+                mPending.clear();
+                mCallbacksDispatched++;
+            }
+            mListener.onSettingsChanged(uris);
+        }
+    }
+}
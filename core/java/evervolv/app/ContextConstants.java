@@ -68,6 +68,14 @@ public final class ContextConstants {
      */
     public static final String HEALTH_INTERFACE = "ev_health";
 
+    /**
+     * Dumps the state shared by the settings clients of the system server: the EVSettings
+     * cache statistics and the settings change dispatcher. It only implements dump().
+     *
+     * @hide
+     */
+    public static final String SETTINGS_CLIENT_SERVICE = "ev_settings_client";
+
     /**
      * Features supported by the Vendor SDK.
      */
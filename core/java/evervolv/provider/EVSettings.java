@@ -19,30 +19,56 @@ package evervolv.provider;
 
 import com.android.internal.util.ArrayUtils;
 
+import android.app.ActivityManager;
+import android.app.IActivityManager;
+import android.app.IUserSwitchObserver;
 import android.content.ContentResolver;
 import android.content.IContentProvider;
 import android.database.Cursor;
 import android.net.Uri;
 import android.os.Bundle;
+import android.os.IRemoteCallback;
+import android.os.Process;
 import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
+import android.system.ErrnoException;
 import android.text.TextUtils;
 import android.util.AndroidException;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.MemoryIntArray;
+import android.util.SparseArray;
 
 import com.android.internal.annotations.GuardedBy;
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
 
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
 
 /**
@@ -107,6 +133,39 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_PUT_GLOBAL= "PUT_global";
 
+    /**
+     * @hide - Private call() method to write several entries to the 'system' table at once
+     */
+    public static final String CALL_METHOD_PUT_BATCH_SYSTEM = "PUT_BATCH_system";
+
+    /**
+     * @hide - Private call() method to write several entries to the 'secure' table at once
+     */
+    public static final String CALL_METHOD_PUT_BATCH_SECURE = "PUT_BATCH_secure";
+
+    /**
+     * @hide - Private call() method to write several entries to the 'global' table at once
+     */
+    public static final String CALL_METHOD_PUT_BATCH_GLOBAL = "PUT_BATCH_global";
+
+    /**
+     * @hide - Private call() method to write the valid ones of several entries to the 'system'
+     * table at once, reporting the outcome of each
+     */
+    public static final String CALL_METHOD_UPSERT_SYSTEM = "UPSERT_system";
+
+    /**
+     * @hide - Private call() method to write the valid ones of several entries to the 'secure'
+     * table at once, reporting the outcome of each
+     */
+    public static final String CALL_METHOD_UPSERT_SECURE = "UPSERT_secure";
+
+    /**
+     * @hide - Private call() method to write the valid ones of several entries to the 'global'
+     * table at once, reporting the outcome of each
+     */
+    public static final String CALL_METHOD_UPSERT_GLOBAL = "UPSERT_global";
+
     /**
      * @hide - Private call() method on EVSettingsProvider to migrate Evervolv settings
      */
@@ -117,6 +176,18 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_MIGRATE_SETTINGS_FOR_USER = "migrate_settings_for_user";
 
+    /**
+     * @hide - Private call() method on EVSettingsProvider to write a backup of the settings of a
+     * user. Requires {@link android.Manifest.permission#BACKUP}.
+     */
+    public static final String CALL_METHOD_BACKUP_SETTINGS = "backup_settings";
+
+    /**
+     * @hide - Private call() method on EVSettingsProvider to restore a backup into one or more
+     * users
+     */
+    public static final String CALL_METHOD_RESTORE_SETTINGS = "restore_settings";
+
     /**
      * @hide - Private call() method to list the entire system table
      */
@@ -147,9 +218,219 @@ public final class EVSettings {
      */
     public static final String CALL_METHOD_DELETE_GLOBAL = "DELETE_global";
 
+    /**
+     * @hide - Private call() method to read every name/value pair of the system table
+     */
+    public static final String CALL_METHOD_GET_ALL_SYSTEM = "GET_ALL_system";
+
+    /**
+     * @hide - Private call() method to read every name/value pair of the secure table
+     */
+    public static final String CALL_METHOD_GET_ALL_SECURE = "GET_ALL_secure";
+
+    /**
+     * @hide - Private call() method to read every name/value pair of the global table
+     */
+    public static final String CALL_METHOD_GET_ALL_GLOBAL = "GET_ALL_global";
+
+    /**
+     * @hide - Private call() method to read the changes of the system table since a sequence
+     */
+    public static final String CALL_METHOD_GET_CHANGES_SYSTEM = "GET_CHANGES_system";
+
+    /**
+     * @hide - Private call() method to read the changes of the secure table since a sequence
+     */
+    public static final String CALL_METHOD_GET_CHANGES_SECURE = "GET_CHANGES_secure";
+
+    /**
+     * @hide - Private call() method to read the changes of the global table since a sequence
+     */
+    public static final String CALL_METHOD_GET_CHANGES_GLOBAL = "GET_CHANGES_global";
+
+    /**
+     * @hide - Private call() method to export the system table, a page at a time
+     */
+    public static final String CALL_METHOD_EXPORT_SYSTEM = "EXPORT_system";
+
+    /**
+     * @hide - Private call() method to export the secure table, a page at a time
+     */
+    public static final String CALL_METHOD_EXPORT_SECURE = "EXPORT_secure";
+
+    /**
+     * @hide - Private call() method to export the global table, a page at a time
+     */
+    public static final String CALL_METHOD_EXPORT_GLOBAL = "EXPORT_global";
+
+    /**
+     * @hide - Table generation a CALL_METHOD_GET_ALL_* result was read at
+     */
+    public static final String CALL_METHOD_GENERATION_KEY = "_generation";
+
+    /**
+     * @hide - Setting names returned by CALL_METHOD_GET_ALL_* methods
+     */
+    public static final String CALL_METHOD_NAMES_KEY = "_names";
+
+    /**
+     * @hide - Setting values returned by CALL_METHOD_GET_ALL_* methods, parallel to the names
+     */
+    public static final String CALL_METHOD_VALUES_KEY = "_values";
+
+    /**
+     * @hide - Argument extra asking the provider to hand out its per-key generation tracker
+     */
+    public static final String CALL_METHOD_TRACK_GENERATION_KEY = "_track_generation";
+
+    /**
+     * @hide - Shared MemoryIntArray of per-key bucket generations for a table and user
+     */
+    public static final String CALL_METHOD_GENERATION_TRACKER_KEY = "_generation_tracker";
+
+    /**
+     * @hide - Bucket generation of the requested key when a CALL_METHOD_GET_* value was read
+     */
+    public static final String CALL_METHOD_KEY_GENERATION_KEY = "_key_generation";
+
+    /**
+     * @hide - Bucket generations a CALL_METHOD_GET_ALL_* result was read at
+     */
+    public static final String CALL_METHOD_BUCKET_GENERATIONS_KEY = "_bucket_generations";
+
+    /**
+     * @hide - Outcome of each entry of a CALL_METHOD_UPSERT_* call, parallel to the names
+     */
+    public static final String CALL_METHOD_RESULTS_KEY = "_results";
+
+    /**
+     * @hide - Epoch of the provider's change sequence, returned by CALL_METHOD_GET_ALL_* and
+     * CALL_METHOD_GET_CHANGES_* methods and passed back to the latter
+     */
+    public static final String CALL_METHOD_EPOCH_KEY = "_epoch";
+
+    /**
+     * @hide - Sequence number of the last change a result reflects, or that a
+     * CALL_METHOD_GET_CHANGES_* caller is up to date with
+     */
+    public static final String CALL_METHOD_SEQUENCE_KEY = "_sequence";
+
+    /**
+     * @hide - Whether each setting of a CALL_METHOD_GET_CHANGES_* result was removed, parallel
+     * to the names
+     */
+    public static final String CALL_METHOD_DELETED_KEY = "_deleted";
+
+    /**
+     * @hide - Set in a CALL_METHOD_GET_CHANGES_* result when the changes since the requested
+     * sequence are no longer known, and the table has to be read again
+     */
+    public static final String CALL_METHOD_RESYNC_KEY = "_resync";
+
+    /**
+     * @hide - ParcelFileDescriptor of an exported settings file for
+     * CALL_METHOD_MIGRATE_SETTINGS_FOR_USER to migrate from, instead of the platform tables.
+     * Each line of the file holds one setting as table/name=value.
+     */
+    public static final String CALL_METHOD_MIGRATE_FILE_KEY = "_file";
+
+    /**
+     * @hide - Number of settings a CALL_METHOD_MIGRATE_SETTINGS_FOR_USER call wrote
+     */
+    public static final String CALL_METHOD_MIGRATED_KEY = "_migrated";
+
+    /**
+     * @hide - Number of settings a CALL_METHOD_MIGRATE_SETTINGS_FOR_USER call skipped, as
+     * invalid or already holding the migrated value
+     */
+    public static final String CALL_METHOD_SKIPPED_KEY = "_skipped";
+
+    /**
+     * @hide - ParcelFileDescriptor CALL_METHOD_BACKUP_SETTINGS writes the backup to, and
+     * CALL_METHOD_RESTORE_SETTINGS reads it from. The backup is written after the call
+     * returns, on a duplicate of the descriptor which is closed once it is complete: read a
+     * pipe until its end. A backup the descriptor doesn't accept for 30 seconds is abandoned.
+     */
+    public static final String CALL_METHOD_BACKUP_FILE_KEY = "_backup_file";
+
+    /**
+     * @hide - Users a CALL_METHOD_RESTORE_SETTINGS call restores the backup into, the calling
+     * user if absent
+     */
+    public static final String CALL_METHOD_USERS_KEY = "_users";
+
+    /**
+     * @hide - Number of settings a CALL_METHOD_RESTORE_SETTINGS call wrote for each user,
+     * parallel to the users
+     */
+    public static final String CALL_METHOD_RESTORED_KEY = "_restored";
+
+    /**
+     * @hide - Number of settings a CALL_METHOD_RESTORE_SETTINGS call skipped for each user, as
+     * invalid or already holding the restored value, parallel to the users
+     */
+    public static final String CALL_METHOD_RESTORE_SKIPPED_KEY = "_restore_skipped";
+
+    /**
+     * @hide - Name a CALL_METHOD_EXPORT_* page starts after, or null for the first page
+     */
+    public static final String CALL_METHOD_PAGE_START_KEY = "_page_start";
+
+    /**
+     * @hide - Maximum number of settings in a CALL_METHOD_EXPORT_* page, 0 for no limit
+     */
+    public static final String CALL_METHOD_PAGE_SIZE_KEY = "_page_size";
+
+    /**
+     * @hide - Name to pass as CALL_METHOD_PAGE_START_KEY for the next CALL_METHOD_EXPORT_* page,
+     * absent on the last page
+     */
+    public static final String CALL_METHOD_NEXT_PAGE_KEY = "_next_page";
+
+    /**
+     * @hide - SharedMemory holding a large CALL_METHOD_EXPORT_* page in place of the name and
+     * value arrays, readable with {@link #readSettingsBlob}
+     */
+    public static final String CALL_METHOD_BLOB_KEY = "_blob";
+
     // endregion
 
-    private static final class ContentProviderHolder {
+    /**
+     * @hide - The entry of an upsert was written
+     */
+    public static final int UPSERT_RESULT_OK = 0;
+
+    /**
+     * @hide - The entry of an upsert was rejected by the validators of its table
+     */
+    public static final int UPSERT_RESULT_INVALID = 1;
+
+    /**
+     * @hide - The entry of an upsert has moved to another table, and was not written
+     */
+    public static final int UPSERT_RESULT_MOVED = 2;
+
+    /**
+     * @hide - Number of per-key generation buckets tracked for each table and user
+     */
+    public static final int GENERATION_BUCKET_COUNT = 256;
+
+    /**
+     * @hide - Returns the generation bucket a setting is tracked in. Shared by the provider
+     * and clients, which must agree on it.
+     */
+    public static int getGenerationBucket(String name) {
+        final int h = name.hashCode();
+        return (h ^ (h >>> 16)) & (GENERATION_BUCKET_COUNT - 1);
+    }
+
+    /**
+     * @hide - Key id returned by {@code getKeyId()} for names that aren't known settings
+     */
+    public static final int UNKNOWN_KEY = -1;
+
+    @VisibleForTesting
+    static final class ContentProviderHolder {
         private final Object mLock = new Object();
 
         private final Uri mUri;
@@ -171,8 +452,515 @@ public final class EVSettings {
         }
     }
 
+    /**
+     * Follows the foreground user so that {@link UserHandle#USER_CURRENT} reads can be cached
+     * under the resolved user id. Only the system uid may observe user switches; everywhere
+     * else, and while a switch is in progress, the current user is reported as unknown and
+     * such reads go to the provider as before.
+     */
+    private static final class CurrentUserTracker {
+        private static final Object sLock = new Object();
+
+        // Set once the observer is registered, or for good if it can't be from this process.
+        @GuardedBy("sLock")
+        private static boolean sStarted;
+        @GuardedBy("sLock")
+        private static boolean sRegistering;
+        // Bumped on every switch callback so that a stale startup read can't win the race.
+        @GuardedBy("sLock")
+        private static int sSwitchSequence;
+
+        private static volatile int sCurrentUserId = UserHandle.USER_NULL;
+
+        private static final IUserSwitchObserver sUserSwitchObserver =
+                new IUserSwitchObserver.Stub() {
+            @Override
+            public void onBeforeUserSwitching(int newUserId) {
+                setCurrentUser(UserHandle.USER_NULL);
+            }
+            @Override
+            public void onUserSwitching(int newUserId, IRemoteCallback reply) {
+            }
+            @Override
+            public void onUserSwitchComplete(int newUserId) {
+                setCurrentUser(newUserId);
+            }
+            @Override
+            public void onForegroundProfileSwitch(int newProfileId) {
+            }
+            @Override
+            public void onLockedBootComplete(int newUserId) {
+            }
+        };
+
+        private static void setCurrentUser(int userId) {
+            synchronized (sLock) {
+                sSwitchSequence++;
+                sCurrentUserId = userId;
+            }
+        }
+
+        /**
+         * @return The current foreground user if already known, without registering the
+         *         observer, or {@link UserHandle#USER_NULL}.
+         */
+        static int peekCurrentUser() {
+            return sCurrentUserId;
+        }
+
+        /**
+         * @return The current foreground user, or {@link UserHandle#USER_NULL} if unknown.
+         */
+        static int getCurrentUser() {
+            final int userId = sCurrentUserId;
+            if (userId != UserHandle.USER_NULL) {
+                return userId;
+            }
+            final int sequence;
+            synchronized (sLock) {
+                if (sStarted || sRegistering) {
+                    return sCurrentUserId;
+                }
+                if (Process.myUid() != Process.SYSTEM_UID) {
+                    sStarted = true;
+                    return UserHandle.USER_NULL;
+                }
+                sRegistering = true;
+                sequence = sSwitchSequence;
+            }
+            boolean registered = false;
+            try {
+                // Not published yet early in boot, in which case the next read tries again.
+                final IActivityManager am = ActivityManager.getService();
+                if (am == null) {
+                    Log.w(TAG, "Unable to register user switch observer: no activity manager");
+                } else {
+                    am.registerUserSwitchObserver(sUserSwitchObserver, TAG);
+                    registered = true;
+                }
+            } catch (RemoteException | SecurityException e) {
+                Log.w(TAG, "Unable to register user switch observer", e);
+            } finally {
+                synchronized (sLock) {
+                    sRegistering = false;
+                    sStarted = registered;
+                }
+            }
+            if (!registered) {
+                return UserHandle.USER_NULL;
+            }
+            final int currentUserId = ActivityManager.getCurrentUser();
+            synchronized (sLock) {
+                if (sSwitchSequence == sequence) {
+                    sCurrentUserId = currentUserId;
+                }
+                return sCurrentUserId;
+            }
+        }
+    }
+
+    /**
+     * A cached value along with the generation of its key's bucket when it was read. The
+     * generation is only meaningful in snapshots that track per-key generations.
+     */
+    @VisibleForTesting
+    static final class CacheEntry {
+        private static final byte UNPARSED = 0;
+        private static final byte PARSED = 1;
+        private static final byte NOT_A_NUMBER = 2;
+
+        final String mValue;
+        final int mGeneration;
+
+        // Typed views of mValue, parsed on first use. Each value is written before its
+        // volatile state, so a reader that sees PARSED also sees the value; racing parses
+        // just write the same result twice.
+        private int mIntValue;
+        private long mLongValue;
+        private float mFloatValue;
+        private volatile byte mIntState = UNPARSED;
+        private volatile byte mLongState = UNPARSED;
+        private volatile byte mFloatState = UNPARSED;
+
+        CacheEntry(String value, int generation) {
+            mValue = value;
+            mGeneration = generation;
+        }
+
+        /**
+         * @return Whether the value is a valid int, available as {@link #getInt()}.
+         */
+        boolean parseInt() {
+            final byte state = mIntState;
+            if (state != UNPARSED) {
+                return state == PARSED;
+            }
+            try {
+                mIntValue = Integer.parseInt(mValue);
+                mIntState = PARSED;
+                return true;
+            } catch (NumberFormatException e) {
+                mIntState = NOT_A_NUMBER;
+                return false;
+            }
+        }
+
+        int getInt() {
+            return mIntValue;
+        }
+
+        /**
+         * @return Whether the value is a valid long, available as {@link #getLong()}.
+         */
+        boolean parseLong() {
+            final byte state = mLongState;
+            if (state != UNPARSED) {
+                return state == PARSED;
+            }
+            try {
+                mLongValue = Long.parseLong(mValue);
+                mLongState = PARSED;
+                return true;
+            } catch (NumberFormatException e) {
+                mLongState = NOT_A_NUMBER;
+                return false;
+            }
+        }
+
+        long getLong() {
+            return mLongValue;
+        }
+
+        /**
+         * @return Whether the value is a valid float, available as {@link #getFloat()}.
+         */
+        boolean parseFloat() {
+            final byte state = mFloatState;
+            if (state != UNPARSED) {
+                return state == PARSED;
+            }
+            if (mValue == null) {
+                mFloatState = NOT_A_NUMBER;
+                return false;
+            }
+            try {
+                mFloatValue = Float.parseFloat(mValue);
+                mFloatState = PARSED;
+                return true;
+            } catch (NumberFormatException e) {
+                mFloatState = NOT_A_NUMBER;
+                return false;
+            }
+        }
+
+        float getFloat() {
+            return mFloatValue;
+        }
+    }
+
+    /**
+     * Dense ids for the known keys of a table, taken from its validators. Cached values of
+     * known keys live in an array indexed by id, so reads by id neither hash nor allocate.
+     */
+    private static final class KeyRegistry {
+        final String[] mNames;
+        // Generation bucket of each key, so reads by id don't rehash the name.
+        final int[] mBuckets;
+        private final HashMap<String, Integer> mIds;
+
+        KeyRegistry(Collection<String> names, Set<String> excluded) {
+            final ArrayList<String> known = new ArrayList<String>(names.size());
+            for (String name : names) {
+                if (excluded == null || !excluded.contains(name)) {
+                    known.add(name);
+                }
+            }
+            mNames = known.toArray(new String[known.size()]);
+            mBuckets = new int[mNames.length];
+            mIds = new HashMap<String, Integer>(mNames.length * 2);
+            for (int i = 0; i < mNames.length; i++) {
+                mIds.put(mNames[i], i);
+                mBuckets[i] = getGenerationBucket(mNames[i]);
+            }
+        }
+
+        int size() {
+            return mNames.length;
+        }
+
+        int getId(String name) {
+            final Integer id = mIds.get(name);
+            return id != null ? id : UNKNOWN_KEY;
+        }
+
+        String getName(int keyId) {
+            if (keyId < 0 || keyId >= mNames.length) {
+                throw new IllegalArgumentException("Unknown key id " + keyId);
+            }
+            return mNames[keyId];
+        }
+    }
+
+    /**
+     * Immutable view of a table's cached values. Readers never lock; misses publish a
+     * copy-on-write replacement through the owning {@link UserCache}.
+     */
+    private static final class CacheSnapshot {
+        // Generation the entries are validated with: SYS_PROP_SETTING_VERSION of the table,
+        // or TRACKED_GENERATION when each entry is checked against its bucket instead.
+        static final long TRACKED_GENERATION = -1;
+
+        final long mGeneration;
+        // Values of known keys, indexed by their KeyRegistry id, and of any other key by
+        // name. Neither is mutated once the snapshot has been published.
+        final CacheEntry[] mKnownValues;
+        final HashMap<String, CacheEntry> mValues;
+        // Whether the snapshot holds the whole table, so that absent names are known to be
+        // unset.
+        final boolean mComplete;
+        // For complete tracked snapshots, the bucket generations the table was read at; an
+        // absent name is only known to be unset while its bucket hasn't changed.
+        final int[] mBucketGenerations;
+        // For complete untracked snapshots, the provider's change sequence the table was read
+        // at, so that a stale snapshot can be caught up on the changes it missed. The sequence
+        // is NO_SEQUENCE if unknown.
+        final long mEpoch;
+        final long mSequence;
+
+        static final long NO_SEQUENCE = -1;
+
+        CacheSnapshot(long generation, CacheEntry[] knownValues,
+                HashMap<String, CacheEntry> values, boolean complete, int[] bucketGenerations) {
+            this(generation, knownValues, values, complete, bucketGenerations, 0, NO_SEQUENCE);
+        }
+
+        CacheSnapshot(long generation, CacheEntry[] knownValues,
+                HashMap<String, CacheEntry> values, boolean complete, int[] bucketGenerations,
+                long epoch, long sequence) {
+            mGeneration = generation;
+            mKnownValues = knownValues;
+            mValues = values;
+            mComplete = complete;
+            mBucketGenerations = bucketGenerations;
+            mEpoch = epoch;
+            mSequence = sequence;
+        }
+
+        boolean isTracked() {
+            return mGeneration == TRACKED_GENERATION;
+        }
+
+        CacheEntry get(int keyId, String name) {
+            return keyId != UNKNOWN_KEY ? mKnownValues[keyId] : mValues.get(name);
+        }
+
+        // The copy keeps the change sequence: if the value is newer than the sequence, its
+        // change is caught up on again, which is harmless as changes carry the latest value.
+        CacheSnapshot withValue(int keyId, String name, CacheEntry entry) {
+            if (keyId != UNKNOWN_KEY) {
+                final CacheEntry[] knownValues = mKnownValues.clone();
+                knownValues[keyId] = entry;
+                return new CacheSnapshot(mGeneration, knownValues, mValues, mComplete,
+                        mBucketGenerations, mEpoch, mSequence);
+            }
+            final HashMap<String, CacheEntry> values = new HashMap<String, CacheEntry>(mValues);
+            values.put(name, entry);
+            return new CacheSnapshot(mGeneration, mKnownValues, values, mComplete,
+                    mBucketGenerations, mEpoch, mSequence);
+        }
+    }
+
+    /**
+     * Cache state of a single user for one table.
+     */
+    private static final class UserCache {
+        final AtomicReference<CacheSnapshot> mSnapshot;
+        // Read-only mapping of the provider's per-key generations, null until the provider
+        // hands one out. Only replaced while holding the UserCache monitor.
+        volatile MemoryIntArray mGenerationTracker;
+        // Provider reads in progress, so that concurrent misses share one call. Reads are
+        // keyed by name and the generation observed before the miss, prefetches by the
+        // generation alone: a thread only joins a read that started after every write it
+        // could have seen.
+        final ConcurrentHashMap<String, CompletableFuture<CacheEntry>> mPendingReads =
+                new ConcurrentHashMap<String, CompletableFuture<CacheEntry>>();
+        final ConcurrentHashMap<Long, CompletableFuture<CacheSnapshot>> mPendingPrefetches =
+                new ConcurrentHashMap<Long, CompletableFuture<CacheSnapshot>>();
+
+        UserCache(CacheSnapshot snapshot) {
+            mSnapshot = new AtomicReference<CacheSnapshot>(snapshot);
+        }
+    }
+
+    /**
+     * Counters of a {@link NameValueCache}, cheap enough to keep on in production.
+     */
+    @VisibleForTesting
+    static final class CacheStats {
+        // Upper bounds of the miss latency histogram buckets, in microseconds; the last
+        // bucket counts everything slower.
+        private static final long[] MISS_LATENCY_BOUNDS_US =
+                { 100, 250, 500, 1000, 2000, 5000, 10000, 50000 };
+
+        final LongAdder mHits = new LongAdder();
+        final LongAdder mNegativeHits = new LongAdder();
+        final LongAdder mMisses = new LongAdder();
+        // Reads for users that can't be cached, also counted as misses.
+        final LongAdder mUncached = new LongAdder();
+        // First misses after a generation change, each of which triggers a prefetch.
+        final LongAdder mInvalidations = new LongAdder();
+        final LongAdder mTrackerDrops = new LongAdder();
+        final LongAdder mPrefetches = new LongAdder();
+        // Stale snapshots caught up on their missed changes, and attempts the provider
+        // answered with a resync instead.
+        final LongAdder mCatchUps = new LongAdder();
+        final LongAdder mResyncs = new LongAdder();
+        final LongAdder mSharedReads = new LongAdder();
+        final LongAdder mQueryFallbacks = new LongAdder();
+        final LongAdder mRemoteExceptions = new LongAdder();
+        final AtomicLongArray mMissLatency =
+                new AtomicLongArray(MISS_LATENCY_BOUNDS_US.length + 1);
+
+        void recordHit(boolean negative) {
+            if (negative) {
+                mNegativeHits.increment();
+            } else {
+                mHits.increment();
+            }
+        }
+
+        void recordMiss(long startNanos) {
+            mMisses.increment();
+            final long micros = (SystemClock.elapsedRealtimeNanos() - startNanos) / 1000;
+            int bucket = 0;
+            while (bucket < MISS_LATENCY_BOUNDS_US.length
+                    && micros >= MISS_LATENCY_BOUNDS_US[bucket]) {
+                bucket++;
+            }
+            mMissLatency.incrementAndGet(bucket);
+        }
+
+        void dump(PrintWriter pw, String prefix) {
+            final long hits = mHits.sum();
+            final long negativeHits = mNegativeHits.sum();
+            final long misses = mMisses.sum();
+            final long total = hits + negativeHits + misses;
+            pw.println(prefix + "hits=" + hits + " negativeHits=" + negativeHits
+                    + " misses=" + misses + " uncached=" + mUncached.sum()
+                    + (total > 0 ? String.format(Locale.US, " hitRate=%.1f%%",
+                            100f * (hits + negativeHits) / total) : ""));
+            pw.println(prefix + "invalidations=" + mInvalidations.sum()
+                    + " trackerDrops=" + mTrackerDrops.sum()
+                    + " prefetches=" + mPrefetches.sum()
+                    + " sharedReads=" + mSharedReads.sum());
+            pw.println(prefix + "catchUps=" + mCatchUps.sum()
+                    + " resyncs=" + mResyncs.sum());
+            pw.println(prefix + "queryFallbacks=" + mQueryFallbacks.sum()
+                    + " remoteExceptions=" + mRemoteExceptions.sum());
+            final StringBuilder sb = new StringBuilder(prefix).append("missLatencyUs:");
+            for (int i = 0; i < mMissLatency.length(); i++) {
+                sb.append(i < MISS_LATENCY_BOUNDS_US.length
+                        ? " <" + MISS_LATENCY_BOUNDS_US[i]
+                        : " >=" + MISS_LATENCY_BOUNDS_US[i - 1]);
+                sb.append('=').append(mMissLatency.get(i));
+            }
+            pw.println(sb.toString());
+        }
+    }
+
+    /**
+     * Upserts the entries that haven't moved to another table, and reports the others as
+     * {@link #UPSERT_RESULT_MOVED}.
+     */
+    private static int[] upsertUnmovedStrings(NameValueCache cache, ContentResolver resolver,
+            String[] names, String[] values, int userId, Set<String> movedKeys) {
+        if (names.length != values.length) {
+            throw new IllegalArgumentException("Upsert needs parallel names and values");
+        }
+        final ArrayList<String> keptNames = new ArrayList<String>(names.length);
+        final ArrayList<String> keptValues = new ArrayList<String>(names.length);
+        for (int i = 0; i < names.length; i++) {
+            if (!movedKeys.contains(names[i])) {
+                keptNames.add(names[i]);
+                keptValues.add(values[i]);
+            }
+        }
+        if (keptNames.size() == names.length) {
+            return cache.upsertStringsForUser(resolver, names, values, userId);
+        }
+
+        final int[] keptResults = keptNames.isEmpty() ? new int[0]
+                : cache.upsertStringsForUser(resolver,
+                        keptNames.toArray(new String[keptNames.size()]),
+                        keptValues.toArray(new String[keptValues.size()]), userId);
+        if (keptResults == null) {
+            return null;
+        }
+        final int[] results = new int[names.length];
+        for (int i = 0, kept = 0; i < names.length; i++) {
+            results[i] = movedKeys.contains(names[i])
+                    ? UPSERT_RESULT_MOVED : keptResults[kept++];
+        }
+        return results;
+    }
+
+    /**
+     * @hide - Reads the settings of a CALL_METHOD_EXPORT_* page passed as a SharedMemory blob:
+     * a count, followed by each name and value as a length-prefixed UTF-8 string, with a length
+     * of -1 for null values.
+     * @param blob The blob returned under {@link #CALL_METHOD_BLOB_KEY}.
+     * @param names Receives the names of the settings, in order.
+     * @param values Receives their values, parallel to the names.
+     * @throws IOException if the blob can't be mapped or is malformed.
+     */
+    public static void readSettingsBlob(SharedMemory blob, List<String> names,
+            List<String> values) throws IOException {
+        final ByteBuffer buffer;
+        try {
+            buffer = blob.mapReadOnly();
+        } catch (ErrnoException e) {
+            throw new IOException("Can't map settings blob", e);
+        }
+        try {
+            final int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                names.add(readBlobString(buffer));
+                values.add(readBlobString(buffer));
+            }
+        } catch (BufferUnderflowException e) {
+            throw new IOException("Malformed settings blob", e);
+        } finally {
+            SharedMemory.unmap(buffer);
+        }
+    }
+
+    private static String readBlobString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        final byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @hide - Prints the client-side cache counters of every table for the calling process,
+     * for dumpsys and debugging.
+     */
+    public static void dumpCacheStats(PrintWriter pw) {
+        pw.println("EVSettings cache (pid " + Process.myPid() + "):");
+        System.sNameValueCache.dump(pw, "  ");
+        Secure.sNameValueCache.dump(pw, "  ");
+        Global.sNameValueCache.dump(pw, "  ");
+    }
+
     // Thread-safe.
-    private static class NameValueCache {
+    @VisibleForTesting
+    static class NameValueCache {
         private final String mVersionSystemProperty;
         private final Uri mUri;
         private final ContentProviderHolder mProviderHolder;
@@ -181,82 +969,513 @@ public final class EVSettings {
                 new String[] { Settings.NameValueTable.VALUE };
         private static final String NAME_EQ_PLACEHOLDER = "name=?";
 
-        // Must synchronize on 'this' to access mValues and mValuesVersion.
-        private final HashMap<String, String> mValues = new HashMap<String, String>();
-        private long mValuesVersion = 0;
+        // Returned by readGeneration() when per-key generations aren't available.
+        private static final int UNTRACKED = -1;
+
+        // Shared result for settings known to be unset.
+        private static final CacheEntry NULL_ENTRY = new CacheEntry(null, 0);
+
+        private final KeyRegistry mKeys;
+
+        private final CacheStats mStats = new CacheStats();
+
+        private final CacheSnapshot mEmptySnapshot;
+        private final CacheSnapshot mEmptyTrackedSnapshot;
+
+        // One cache per resolved user id. The array itself is copy-on-write and only replaced
+        // when a user is seen for the first time, so lookups never lock. Without a generation
+        // tracker, a snapshot whose generation doesn't match the current
+        // SYS_PROP_SETTING_VERSION is stale and is replaced on the next miss.
+        private final Object mUserCachesLock = new Object();
+        private volatile SparseArray<UserCache> mUserCaches = new SparseArray<UserCache>();
 
         // The method we'll call (or null, to not use) on the provider
         // for the fast path of retrieving settings.
         private final String mCallGetCommand;
         private final String mCallSetCommand;
+        private final String mCallSetBatchCommand;
+        private final String mCallUpsertCommand;
+        // The method used to fill the whole cache in one call (or null, to not use).
+        private final String mCallGetAllCommand;
+        // The method used to catch a complete cache up on the changes it missed (or null, to
+        // refill it instead).
+        private final String mCallGetChangesCommand;
 
         public NameValueCache(String versionSystemProperty, Uri uri,
-                String getCommand, String setCommand, ContentProviderHolder providerHolder) {
+                String getCommand, String setCommand, String setBatchCommand,
+                String upsertCommand, String getAllCommand, String getChangesCommand,
+                ContentProviderHolder providerHolder, Collection<String> knownKeys,
+                Set<String> movedKeys) {
+            mKeys = new KeyRegistry(knownKeys, movedKeys);
+            mEmptySnapshot = newSnapshot(0, false, null);
+            mEmptyTrackedSnapshot = newSnapshot(CacheSnapshot.TRACKED_GENERATION, false, null);
             mVersionSystemProperty = versionSystemProperty;
             mUri = uri;
             mCallGetCommand = getCommand;
             mCallSetCommand = setCommand;
+            mCallSetBatchCommand = setBatchCommand;
+            mCallUpsertCommand = upsertCommand;
+            mCallGetAllCommand = getAllCommand;
+            mCallGetChangesCommand = getChangesCommand;
             mProviderHolder = providerHolder;
         }
 
+        private CacheSnapshot newSnapshot(long generation, boolean complete,
+                int[] bucketGenerations) {
+            return new CacheSnapshot(generation, new CacheEntry[mKeys.size()],
+                    new HashMap<String, CacheEntry>(), complete, bucketGenerations);
+        }
+
+        @VisibleForTesting
+        CacheStats getStats() {
+            return mStats;
+        }
+
+        /**
+         * @return The current generation of the table, bumped by the provider on every write.
+         */
+        @VisibleForTesting
+        long getTableGeneration() {
+            return SystemProperties.getLong(mVersionSystemProperty, 0);
+        }
+
+        /**
+         * @return The interned id of a known key, or {@link #UNKNOWN_KEY}.
+         */
+        public int getKeyId(String name) {
+            return mKeys.getId(name);
+        }
+
+        /**
+         * Resolves the user whose cache serves a request.
+         * @param userId The user id passed by the caller, possibly a pseudo-user.
+         * @return A concrete user id, or {@link UserHandle#USER_NULL} if the request can't be
+         *         cached and must be resolved by the provider.
+         */
+        private static int resolveCacheUserId(int userId) {
+            if (userId >= 0) {
+                return userId;
+            }
+            if (userId == UserHandle.USER_CURRENT) {
+                return CurrentUserTracker.getCurrentUser();
+            }
+            return UserHandle.USER_NULL;
+        }
+
+        private UserCache getUserCache(int userId) {
+            UserCache userCache = mUserCaches.get(userId);
+            if (userCache != null) {
+                return userCache;
+            }
+            synchronized (mUserCachesLock) {
+                userCache = mUserCaches.get(userId);
+                if (userCache == null) {
+                    userCache = new UserCache(mEmptySnapshot);
+                    final SparseArray<UserCache> userCaches = mUserCaches.clone();
+                    userCaches.put(userId, userCache);
+                    mUserCaches = userCaches;
+                }
+                return userCache;
+            }
+        }
+
+        /**
+         * Starts validating a user's cache against the provider's per-key generations.
+         * Whatever was cached against the table generation is dropped.
+         */
+        private void installGenerationTracker(UserCache userCache, MemoryIntArray tracker) {
+            synchronized (userCache) {
+                if (userCache.mGenerationTracker == null) {
+                    userCache.mGenerationTracker = tracker;
+                    userCache.mSnapshot.set(mEmptyTrackedSnapshot);
+                    if (LOCAL_LOGV) Log.v(TAG, "tracking generations of " + mUri);
+                    return;
+                }
+            }
+            // Another thread won the race, ours is a duplicate mapping.
+            closeQuietly(tracker);
+        }
+
+        /**
+         * Stops using a user's generation tracker, falling back to the table generation.
+         */
+        private void dropGenerationTracker(UserCache userCache, MemoryIntArray tracker) {
+            synchronized (userCache) {
+                if (userCache.mGenerationTracker != tracker) {
+                    return;
+                }
+                userCache.mGenerationTracker = null;
+                userCache.mSnapshot.set(mEmptySnapshot);
+            }
+            mStats.mTrackerDrops.increment();
+            closeQuietly(tracker);
+        }
+
+        private static void closeQuietly(MemoryIntArray tracker) {
+            // The provider runs in the system process, where call() hands back its own array
+            // instead of a parceled copy. Closing it there would break the provider's tracking.
+            if (Process.myUid() == Process.SYSTEM_UID) {
+                return;
+            }
+            try {
+                tracker.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Error closing generation tracker", e);
+            }
+        }
+
+        /**
+         * Reads the current generation of a key's bucket.
+         * @return The generation, or {@link #UNTRACKED} if the user has no usable tracker.
+         */
+        private int readGeneration(UserCache userCache, int bucket) {
+            final MemoryIntArray tracker = userCache.mGenerationTracker;
+            if (tracker == null) {
+                return UNTRACKED;
+            }
+            try {
+                // Counters wrap around, keep them clear of the UNTRACKED marker.
+                return tracker.get(bucket) & Integer.MAX_VALUE;
+            } catch (IOException | IllegalStateException e) {
+                // Closed under us when the provider shares its own array, as it does with the
+                // system process, and the user is removed.
+                Log.w(TAG, "Error reading generation tracker of " + mUri, e);
+                dropGenerationTracker(userCache, tracker);
+                return UNTRACKED;
+            }
+        }
+
         /**
          * Puts a string name/value pair into the content provider for the specified user.
          * @param cr The content resolver to use.
-         * @param name The name of the key to put into the content provider.
-         * @param value The value to put into the content provider.
+         * @param name The name of the key to put into the content provider.
+         * @param value The value to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringForUser(ContentResolver cr, String name, String value,
+                final int userId) {
+            try {
+                Bundle arg = new Bundle();
+                arg.putString(Settings.NameValueTable.VALUE, value);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallSetCommand, name, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
+                mStats.mRemoteExceptions.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Puts several string name/value pairs into the content provider for the specified
+         * user. The provider validates all of them, writes them in one transaction and notifies
+         * observers once.
+         * @param cr The content resolver to use.
+         * @param values The name/value pairs to put into the content provider.
+         * @param userId The user id to use for the content provider.
+         * @return Whether the put was successful.
+         */
+        public boolean putStringsForUser(ContentResolver cr, Map<String, String> values,
+                final int userId) {
+            final int size = values.size();
+            final String[] names = new String[size];
+            final String[] newValues = new String[size];
+            int i = 0;
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                names[i] = entry.getKey();
+                newValues[i] = entry.getValue();
+                i++;
+            }
+            try {
+                Bundle arg = new Bundle();
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, newValues);
+                arg.putInt(CALL_METHOD_USER_KEY, userId);
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallSetBatchCommand, null, arg);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't set keys " + values.keySet() + " in " + mUri, e);
+                mStats.mRemoteExceptions.increment();
+                return false;
+            }
+            return true;
+        }
+
+        /**
+         * Writes the valid ones of several string name/value pairs into the content provider
+         * for the specified user. The provider validates each pair on its own, writes the valid
+         * ones as one batch and notifies observers once.
+         * @param cr The content resolver to use.
+         * @param names The names of the settings to write.
+         * @param values The values to write, parallel to the names.
          * @param userId The user id to use for the content provider.
-         * @return Whether the put was successful.
+         * @return The outcome of each pair, one of the UPSERT_RESULT_* values, or null if the
+         *     provider could not be reached.
          */
-        public boolean putStringForUser(ContentResolver cr, String name, String value,
+        public int[] upsertStringsForUser(ContentResolver cr, String[] names, String[] values,
                 final int userId) {
+            if (names.length != values.length) {
+                throw new IllegalArgumentException("Upsert needs parallel names and values");
+            }
+            final int[] results;
             try {
                 Bundle arg = new Bundle();
-                arg.putString(Settings.NameValueTable.VALUE, value);
+                arg.putStringArray(CALL_METHOD_NAMES_KEY, names);
+                arg.putStringArray(CALL_METHOD_VALUES_KEY, values);
                 arg.putInt(CALL_METHOD_USER_KEY, userId);
                 IContentProvider cp = mProviderHolder.getProvider(cr);
-                cp.call(cr.getAttributionSource(),
-                        mProviderHolder.mUri.getAuthority(), mCallSetCommand, name, arg);
+                Bundle b = cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallUpsertCommand, null, arg);
+                results = b != null ? b.getIntArray(CALL_METHOD_RESULTS_KEY) : null;
             } catch (RemoteException e) {
-                Log.w(TAG, "Can't set key " + name + " in " + mUri, e);
-                return false;
+                Log.w(TAG, "Can't upsert keys " + Arrays.toString(names) + " in " + mUri, e);
+                mStats.mRemoteExceptions.increment();
+                return null;
             }
-            return true;
+            return results;
+        }
+
+        /**
+         * Looks a value up in a snapshot, without calling the provider.
+         * @param snapshot The snapshot of the user's cache.
+         * @param keyId The interned id of the key, or UNKNOWN_KEY.
+         * @param name The name of the key to search for.
+         * @param bucket The generation bucket of the key.
+         * @param keyGeneration The current generation of the bucket, or UNTRACKED.
+         * @param version The current table generation, used when untracked.
+         * @return The cached entry, or null if the snapshot can't answer.
+         */
+        private static CacheEntry findCachedEntry(CacheSnapshot snapshot, int keyId,
+                String name, int bucket, int keyGeneration, long version) {
+            if (keyGeneration != UNTRACKED) {
+                // Only writes landing in this key's bucket invalidate it
+                if (snapshot.isTracked()) {
+                    final CacheEntry entry = snapshot.get(keyId, name);
+                    if (entry != null) {
+                        if (entry.mGeneration == keyGeneration) {
+                            return entry;  // Value could be null -- negative caching
+                        }
+                    } else if (snapshot.mBucketGenerations != null
+                            && snapshot.mBucketGenerations[bucket] == keyGeneration) {
+                        return NULL_ENTRY;
+                    }
+                }
+            } else if (snapshot.mGeneration == version) {
+                final CacheEntry entry = snapshot.get(keyId, name);
+                if (entry != null) {
+                    return entry;  // Value could be null -- negative caching
+                } else if (snapshot.mComplete) {
+                    return NULL_ENTRY;
+                }
+            }
+            return null;
         }
 
         /**
-         * Gets a string value with the specified name from the name/value cache if possible. If
+         * Gets a value with the specified name from the name/value cache if possible. If
          * not, it will use the content resolver and perform a query.
          * @param cr Content resolver to use if name/value cache does not contain the name or if
          *           the cache version is older than the current version.
          * @param name The name of the key to search for.
          * @param userId The user id of the cache to look in.
-         * @return The string value of the specified key.
+         * @return The entry holding the string value of the specified key, never null. Typed
+         *         reads reuse its parsed value instead of parsing the string on every call.
          */
-        public String getStringForUser(ContentResolver cr, String name, final int userId) {
-            final boolean isSelf = (userId == UserHandle.myUserId());
-            if (isSelf) {
-                if (LOCAL_LOGV) Log.d(TAG, "get setting for self");
-                long newValuesVersion = SystemProperties.getLong(mVersionSystemProperty, 0);
-
-                // Our own user's settings data uses a client-side cache
-                synchronized (NameValueCache.this) {
-                    if (mValuesVersion != newValuesVersion) {
-                        if (LOCAL_LOGV || false) {
-                            Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
-                                    + newValuesVersion + " != cached " + mValuesVersion);
-                        }
+        public CacheEntry getEntryForUser(ContentResolver cr, String name, final int userId) {
+            return getEntryForUser(cr, mKeys.getId(name), name, userId);
+        }
+
+        /**
+         * Gets the value of a known key by its interned id. On a cache hit this neither hashes
+         * nor allocates.
+         * @param cr The content resolver to use on a miss.
+         * @param keyId The id returned by {@link #getKeyId(String)}.
+         * @param userId The user id of the cache to look in.
+         * @return The entry holding the string value of the key, never null.
+         */
+        public CacheEntry getEntryByIdForUser(ContentResolver cr, int keyId, final int userId) {
+            return getEntryForUser(cr, keyId, mKeys.getName(keyId), userId);
+        }
+
+        private CacheEntry getEntryForUser(ContentResolver cr, int keyId, String name,
+                final int userId) {
+            final int cacheUserId = resolveCacheUserId(userId);
+            if (cacheUserId == UserHandle.USER_NULL) {
+                if (LOCAL_LOGV) Log.v(TAG, "get setting for unresolved user " + userId
+                        + " by user " + UserHandle.myUserId() + " so skipping cache");
+                mStats.mUncached.increment();
+                final long missStart = SystemClock.elapsedRealtimeNanos();
+                try {
+                    return fetchEntry(cr, keyId, name, userId, null, 0, UNTRACKED);
+                } finally {
+                    mStats.recordMiss(missStart);
+                }
+            }
+            if (LOCAL_LOGV) Log.d(TAG, "get setting for user " + cacheUserId);
+
+            // Each resolved user's settings data uses a client-side cache
+            final UserCache userCache = getUserCache(cacheUserId);
+            final CacheSnapshot snapshot = userCache.mSnapshot.get();
+            final int bucket = keyId != UNKNOWN_KEY
+                    ? mKeys.mBuckets[keyId] : getGenerationBucket(name);
+            int keyGeneration = readGeneration(userCache, bucket);
+            final long newValuesVersion = keyGeneration != UNTRACKED
+                    ? CacheSnapshot.TRACKED_GENERATION
+                    : getTableGeneration();
+            final CacheEntry cached = findCachedEntry(snapshot, keyId, name, bucket,
+                    keyGeneration, newValuesVersion);
+            if (cached != null) {
+                mStats.recordHit(cached.mValue == null);
+                return cached;
+            }
+
+            final long missStart = SystemClock.elapsedRealtimeNanos();
+            try {
+                return loadEntry(cr, keyId, name, cacheUserId, userCache, snapshot, bucket,
+                        keyGeneration, newValuesVersion);
+            } finally {
+                mStats.recordMiss(missStart);
+            }
+        }
 
-                        mValues.clear();
-                        mValuesVersion = newValuesVersion;
-                    } else if (mValues.containsKey(name)) {
-                        return mValues.get(name);  // Could be null, that's OK -- negative caching
+        /**
+         * Handles a cache miss: refills the cache if it was invalidated, otherwise reads the
+         * single key, sharing the provider call with other threads missing on it.
+         */
+        private CacheEntry loadEntry(ContentResolver cr, int keyId, String name,
+                int cacheUserId, UserCache userCache, CacheSnapshot snapshot, int bucket,
+                int keyGeneration, long newValuesVersion) {
+            final boolean invalidated = keyGeneration != UNTRACKED
+                    ? !snapshot.isTracked() || snapshot == mEmptyTrackedSnapshot
+                    : snapshot.mGeneration != newValuesVersion;
+            if (invalidated) {
+                mStats.mInvalidations.increment();
+                // First miss since the cache was invalidated: refill the whole cache at
+                // once rather than paying one round trip per key from here on.
+                final CacheSnapshot prefetched = prefetchShared(cr, userCache, cacheUserId,
+                        newValuesVersion);
+                if (prefetched != null) {
+                    if (!prefetched.isTracked() || keyGeneration == UNTRACKED) {
+                        final CacheEntry entry = prefetched.get(keyId, name);
+                        return entry != null ? entry : NULL_ENTRY;
+                    }
+                    // A shared tracked prefetch may have read the key's bucket before a
+                    // write this thread has already seen.
+                    final CacheEntry entry = findCachedEntry(prefetched, keyId, name, bucket,
+                            keyGeneration, newValuesVersion);
+                    if (entry != null) {
+                        return entry;
                     }
                 }
-            } else {
-                if (LOCAL_LOGV) Log.v(TAG, "get setting for user " + userId
-                        + " by user " + UserHandle.myUserId() + " so skipping cache");
+                // The prefetch may have handed out a tracker.
+                keyGeneration = readGeneration(userCache, bucket);
+            }
+
+            final String readKey = name + (keyGeneration != UNTRACKED
+                    ? "/t" + keyGeneration : "/u" + newValuesVersion);
+            final CompletableFuture<CacheEntry> read = new CompletableFuture<CacheEntry>();
+            final CompletableFuture<CacheEntry> pending =
+                    userCache.mPendingReads.putIfAbsent(readKey, read);
+            if (pending != null) {
+                // Another thread is already reading this key at this generation.
+                mStats.mSharedReads.increment();
+                final CacheEntry entry = awaitQuietly(pending);
+                if (entry != null) {
+                    return entry;
+                }
+                return fetchEntry(cr, keyId, name, cacheUserId, userCache, newValuesVersion,
+                        keyGeneration);
+            }
+            try {
+                final CacheEntry entry = fetchEntry(cr, keyId, name, cacheUserId, userCache,
+                        newValuesVersion, keyGeneration);
+                read.complete(entry);
+                return entry;
+            } catch (RuntimeException e) {
+                read.completeExceptionally(e);
+                throw e;
+            } finally {
+                userCache.mPendingReads.remove(readKey, read);
+            }
+        }
+
+        /**
+         * Returns a value if it can be served from the cache without calling the provider.
+         * @param name The name of the key to search for.
+         * @param userId The user id of the cache to look in.
+         * @return The cached entry, or null if reading it needs a provider call.
+         */
+        private CacheEntry peekEntryForUser(String name, int userId) {
+            final int cacheUserId = userId == UserHandle.USER_CURRENT
+                    ? CurrentUserTracker.peekCurrentUser() : userId;
+            if (cacheUserId < 0) {
+                return null;
+            }
+            final UserCache userCache = mUserCaches.get(cacheUserId);
+            if (userCache == null) {
+                return null;
+            }
+            final int keyId = mKeys.getId(name);
+            final int bucket = keyId != UNKNOWN_KEY
+                    ? mKeys.mBuckets[keyId] : getGenerationBucket(name);
+            final int keyGeneration = readGeneration(userCache, bucket);
+            final long version = keyGeneration != UNTRACKED
+                    ? CacheSnapshot.TRACKED_GENERATION
+                    : getTableGeneration();
+            return findCachedEntry(userCache.mSnapshot.get(), keyId, name, bucket,
+                    keyGeneration, version);
+        }
+
+        /**
+         * Gets a value without blocking the calling thread on the provider. Cached values
+         * complete right away; anything else is read on a background thread.
+         * @param cr The content resolver to use.
+         * @param name The name of the key to search for.
+         * @param userId The user id of the cache to look in.
+         * @return A future completing with the value, or null if unset.
+         */
+        public CompletableFuture<String> getStringForUserAsync(ContentResolver cr, String name,
+                final int userId) {
+            final CacheEntry cached = peekEntryForUser(name, userId);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached.mValue);
+            }
+            return CompletableFuture.supplyAsync(
+                    () -> getEntryForUser(cr, name, userId).mValue,
+                    BackgroundThread.getExecutor());
+        }
+
+        /**
+         * Waits for a read started by another thread.
+         * @return Its result, or null if it failed and the caller should read on its own.
+         */
+        private static <T> T awaitQuietly(CompletableFuture<T> future) {
+            try {
+                return future.join();
+            } catch (CompletionException | CancellationException e) {
+                return null;
             }
+        }
 
+        /**
+         * Reads a value from the provider and caches it.
+         * @param cr The content resolver to use.
+         * @param keyId The interned id of the key, or UNKNOWN_KEY.
+         * @param name The name of the key to read.
+         * @param userId The resolved user to read for, or the raw user id if uncached.
+         * @param userCache The cache to publish into, or null to not cache.
+         * @param newValuesVersion The table generation observed before the read.
+         * @param keyGeneration The bucket generation observed before the read, or UNTRACKED.
+         * @return The entry read, never null.
+         */
+        private CacheEntry fetchEntry(ContentResolver cr, int keyId, String name, int userId,
+                UserCache userCache, long newValuesVersion, int keyGeneration) {
+            final boolean isSelf = (userId == UserHandle.myUserId());
             IContentProvider cp = mProviderHolder.getProvider(cr);
 
             // Try the fast path first, not using query().  If this
@@ -270,30 +1489,51 @@ public final class EVSettings {
                         args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userId);
                     }
+                    final boolean needsTracker = userCache != null && keyGeneration == UNTRACKED;
+                    if (needsTracker) {
+                        if (args == null) {
+                            args = new Bundle();
+                        }
+                        args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                    }
                     Bundle b = cp.call(cr.getAttributionSource(),
                             mProviderHolder.mUri.getAuthority(), mCallGetCommand, name, args);
                     if (b != null) {
-                        String value = b.getPairValue();
-                        // Don't update our cache for reads of other users' data
-                        if (isSelf) {
-                            synchronized (NameValueCache.this) {
-                                mValues.put(name, value);
+                        // Once more than the value is returned the pair shortcut no longer
+                        // applies; the provider always names the value.
+                        String value = needsTracker
+                                ? b.getString(Settings.NameValueTable.VALUE)
+                                : b.getPairValue();
+                        if (needsTracker) {
+                            final MemoryIntArray tracker = b.getParcelable(
+                                    CALL_METHOD_GENERATION_TRACKER_KEY, MemoryIntArray.class);
+                            if (tracker != null) {
+                                installGenerationTracker(userCache, tracker);
+                                keyGeneration = b.getInt(CALL_METHOD_KEY_GENERATION_KEY)
+                                        & Integer.MAX_VALUE;
                             }
+                        }
+                        final CacheEntry entry = newEntry(value, keyGeneration);
+                        if (userCache != null) {
+                            publishValue(userCache, newValuesVersion, keyGeneration, keyId,
+                                    name, entry);
                         } else {
                             if (LOCAL_LOGV) Log.i(TAG, "call-query of user " + userId
                                     + " by " + UserHandle.myUserId()
                                     + " so not updating cache");
                         }
-                        return value;
+                        return entry;
                     }
                     // If the response Bundle is null, we fall through
                     // to the query interface below.
                 } catch (RemoteException e) {
                     // Not supported by the remote side?  Fall through
                     // to query().
+                    mStats.mRemoteExceptions.increment();
                 }
             }
 
+            mStats.mQueryFallbacks.increment();
             Cursor c = null;
             try {
                 Bundle queryArgs = ContentResolver.createSqlQueryBundle(
@@ -302,25 +1542,327 @@ public final class EVSettings {
                         SELECT_VALUE_PROJECTION, queryArgs, null);
                 if (c == null) {
                     Log.w(TAG, "Can't get key " + name + " from " + mUri);
-                    return null;
+                    return NULL_ENTRY;
                 }
 
                 String value = c.moveToNext() ? c.getString(0) : null;
-                synchronized (NameValueCache.this) {
-                    mValues.put(name, value);
+                final CacheEntry entry = newEntry(value, keyGeneration);
+                // query() always runs as the calling user, only cache it as such.
+                if (userCache != null && isSelf) {
+                    publishValue(userCache, newValuesVersion, keyGeneration, keyId, name,
+                            entry);
                 }
                 if (LOCAL_LOGV) {
                     Log.v(TAG, "cache miss [" + mUri.getLastPathSegment() + "]: " +
                             name + " = " + (value == null ? "(null)" : value));
                 }
-                return value;
+                return entry;
             } catch (RemoteException e) {
                 Log.w(TAG, "Can't get key " + name + " from " + mUri, e);
-                return null;  // Return null, but don't cache it.
+                mStats.mRemoteExceptions.increment();
+                return NULL_ENTRY;  // Return null, but don't cache it.
             } finally {
                 if (c != null) c.close();
             }
         }
+
+        /**
+         * Prefetches a table, sharing the provider call with any other thread already
+         * prefetching it at the same generation.
+         * @return The prefetched snapshot, or null if none could be read.
+         */
+        private CacheSnapshot prefetchShared(ContentResolver cr, UserCache userCache,
+                int userId, long minGeneration) {
+            final CompletableFuture<CacheSnapshot> prefetch =
+                    new CompletableFuture<CacheSnapshot>();
+            final CompletableFuture<CacheSnapshot> pending =
+                    userCache.mPendingPrefetches.putIfAbsent(minGeneration, prefetch);
+            if (pending != null) {
+                return awaitQuietly(pending);
+            }
+            try {
+                final CacheSnapshot snapshot = prefetch(cr, userCache, userId, minGeneration);
+                prefetch.complete(snapshot);
+                return snapshot;
+            } catch (RuntimeException e) {
+                prefetch.completeExceptionally(e);
+                throw e;
+            } finally {
+                userCache.mPendingPrefetches.remove(minGeneration, prefetch);
+            }
+        }
+
+        /**
+         * Prints the counters and per-user cache state of this table.
+         */
+        void dump(PrintWriter pw, String prefix) {
+            pw.println(prefix + mUri.getLastPathSegment() + ":");
+            mStats.dump(pw, prefix + "  ");
+            final SparseArray<UserCache> userCaches = mUserCaches;
+            for (int i = 0; i < userCaches.size(); i++) {
+                final UserCache userCache = userCaches.valueAt(i);
+                final CacheSnapshot snapshot = userCache.mSnapshot.get();
+                int known = 0;
+                for (CacheEntry entry : snapshot.mKnownValues) {
+                    if (entry != null) {
+                        known++;
+                    }
+                }
+                pw.println(prefix + "  user " + userCaches.keyAt(i) + ": "
+                        + (snapshot.isTracked() ? "tracked" : "generation "
+                                + snapshot.mGeneration)
+                        + (snapshot.mComplete ? ", complete" : "")
+                        + ", " + known + "/" + mKeys.size() + " known keys, "
+                        + snapshot.mValues.size() + " other keys");
+            }
+        }
+
+        /**
+         * Reads every name/value pair of the table in a single provider call and publishes the
+         * result as a complete snapshot.
+         * @param cr The content resolver to use.
+         * @param userCache The cache of the user being read.
+         * @param userId The user whose table is read.
+         * @param minGeneration The table generation the caller needs the snapshot to be
+         *                      current for, or TRACKED_GENERATION if the user is tracked.
+         * @return The published snapshot, or null if the provider can't serve a current one.
+         */
+        private CacheSnapshot prefetch(ContentResolver cr, UserCache userCache, int userId,
+                long minGeneration) {
+            if (mCallGetAllCommand == null) {
+                return null;
+            }
+            final boolean tracked = minGeneration == CacheSnapshot.TRACKED_GENERATION;
+            if (!tracked && mCallGetChangesCommand != null) {
+                final CacheSnapshot current = userCache.mSnapshot.get();
+                if (!current.isTracked() && current.mComplete
+                        && current.mSequence != CacheSnapshot.NO_SEQUENCE) {
+                    final CacheSnapshot caughtUp = catchUp(cr, userCache, userId, current,
+                            minGeneration);
+                    if (caughtUp != null) {
+                        return caughtUp;
+                    }
+                }
+            }
+            final Bundle b;
+            try {
+                Bundle args = null;
+                if (userId != UserHandle.myUserId()) {
+                    args = new Bundle();
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                if (!tracked) {
+                    if (args == null) {
+                        args = new Bundle();
+                    }
+                    args.putBoolean(CALL_METHOD_TRACK_GENERATION_KEY, true);
+                }
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                mStats.mPrefetches.increment();
+                b = cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallGetAllCommand, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't prefetch " + mUri, e);
+                mStats.mRemoteExceptions.increment();
+                return null;
+            }
+            if (b == null) {
+                return null;
+            }
+            final long generation = b.getLong(CALL_METHOD_GENERATION_KEY, -1);
+            final long epoch = b.getLong(CALL_METHOD_EPOCH_KEY);
+            final long sequence = b.getLong(CALL_METHOD_SEQUENCE_KEY, CacheSnapshot.NO_SEQUENCE);
+            final String[] names = b.getStringArray(CALL_METHOD_NAMES_KEY);
+            final String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+            final int[] bucketGenerations = b.getIntArray(CALL_METHOD_BUCKET_GENERATIONS_KEY);
+            if (names == null || values == null || names.length != values.length) {
+                return null;
+            }
+
+            if (!tracked) {
+                final MemoryIntArray tracker = b.getParcelable(
+                        CALL_METHOD_GENERATION_TRACKER_KEY, MemoryIntArray.class);
+                if (tracker != null) {
+                    installGenerationTracker(userCache, tracker);
+                }
+            }
+            final boolean publishTracked = userCache.mGenerationTracker != null;
+            if (publishTracked) {
+                if (bucketGenerations == null
+                        || bucketGenerations.length != GENERATION_BUCKET_COUNT) {
+                    return null;
+                }
+                for (int i = 0; i < bucketGenerations.length; i++) {
+                    bucketGenerations[i] &= Integer.MAX_VALUE;
+                }
+            } else if (generation < minGeneration) {
+                // Read before a change we've already seen.
+                return null;
+            }
+
+            final CacheEntry[] known = new CacheEntry[mKeys.size()];
+            final HashMap<String, CacheEntry> map = new HashMap<String, CacheEntry>();
+            for (int i = 0; i < names.length; i++) {
+                final int keyId = mKeys.getId(names[i]);
+                final int bucket = keyId != UNKNOWN_KEY
+                        ? mKeys.mBuckets[keyId] : getGenerationBucket(names[i]);
+                final CacheEntry entry = new CacheEntry(values[i],
+                        publishTracked ? bucketGenerations[bucket] : 0);
+                if (keyId != UNKNOWN_KEY) {
+                    known[keyId] = entry;
+                } else {
+                    map.put(names[i], entry);
+                }
+            }
+            final CacheSnapshot prefetched = publishTracked
+                    ? new CacheSnapshot(CacheSnapshot.TRACKED_GENERATION, known, map, true,
+                            bucketGenerations)
+                    : new CacheSnapshot(generation, known, map, true, null, epoch, sequence);
+            if (publishSnapshot(userCache, prefetched) && LOCAL_LOGV) {
+                Log.v(TAG, "prefetched [" + mUri.getLastPathSegment() + "] for user "
+                        + userId + ": " + names.length + " values at " + generation);
+            }
+            return prefetched;
+        }
+
+        /**
+         * Brings a complete untracked snapshot up to date by applying the changes the provider
+         * logged since it was read, and publishes the result.
+         * @param cr The content resolver to use.
+         * @param userCache The cache of the user being read.
+         * @param userId The user whose table is read.
+         * @param stale The snapshot to catch up.
+         * @param minGeneration The table generation the caller needs the snapshot to be
+         *                      current for.
+         * @return The caught up snapshot, or null if the table has to be read again.
+         */
+        private CacheSnapshot catchUp(ContentResolver cr, UserCache userCache, int userId,
+                CacheSnapshot stale, long minGeneration) {
+            final Bundle b;
+            try {
+                final Bundle args = new Bundle();
+                if (userId != UserHandle.myUserId()) {
+                    args.putInt(CALL_METHOD_USER_KEY, userId);
+                }
+                args.putLong(CALL_METHOD_EPOCH_KEY, stale.mEpoch);
+                args.putLong(CALL_METHOD_SEQUENCE_KEY, stale.mSequence);
+                IContentProvider cp = mProviderHolder.getProvider(cr);
+                b = cp.call(cr.getAttributionSource(),
+                        mProviderHolder.mUri.getAuthority(), mCallGetChangesCommand, null, args);
+            } catch (RemoteException e) {
+                Log.w(TAG, "Can't read changes of " + mUri, e);
+                mStats.mRemoteExceptions.increment();
+                return null;
+            }
+            if (b == null) {
+                return null;
+            }
+            if (b.getBoolean(CALL_METHOD_RESYNC_KEY)) {
+                mStats.mResyncs.increment();
+                return null;
+            }
+            final long generation = b.getLong(CALL_METHOD_GENERATION_KEY, -1);
+            final long sequence = b.getLong(CALL_METHOD_SEQUENCE_KEY, CacheSnapshot.NO_SEQUENCE);
+            final String[] names = b.getStringArray(CALL_METHOD_NAMES_KEY);
+            final String[] values = b.getStringArray(CALL_METHOD_VALUES_KEY);
+            final boolean[] deleted = b.getBooleanArray(CALL_METHOD_DELETED_KEY);
+            if (names == null || values == null || deleted == null
+                    || names.length != values.length || names.length != deleted.length
+                    || generation < minGeneration) {
+                return null;
+            }
+
+            // Absent names of a complete snapshot are known to be unset, so removed settings
+            // are simply dropped.
+            final CacheEntry[] known = stale.mKnownValues.clone();
+            final HashMap<String, CacheEntry> map =
+                    new HashMap<String, CacheEntry>(stale.mValues);
+            for (int i = 0; i < names.length; i++) {
+                final int keyId = mKeys.getId(names[i]);
+                final CacheEntry entry = deleted[i] ? null : new CacheEntry(values[i], 0);
+                if (keyId != UNKNOWN_KEY) {
+                    known[keyId] = entry;
+                } else if (entry != null) {
+                    map.put(names[i], entry);
+                } else {
+                    map.remove(names[i]);
+                }
+            }
+            final CacheSnapshot caughtUp = new CacheSnapshot(generation, known, map, true,
+                    null, stale.mEpoch, sequence);
+            mStats.mCatchUps.increment();
+            if (publishSnapshot(userCache, caughtUp) && LOCAL_LOGV) {
+                Log.v(TAG, "caught up [" + mUri.getLastPathSegment() + "] for user " + userId
+                        + ": " + names.length + " changes up to " + generation);
+            }
+            return caughtUp;
+        }
+
+        /**
+         * Replaces the snapshot of a user with a complete one, unless the cache changed modes
+         * or already moved past its generation.
+         * @return Whether the snapshot was published.
+         */
+        private static boolean publishSnapshot(UserCache userCache, CacheSnapshot snapshot) {
+            while (true) {
+                final CacheSnapshot current = userCache.mSnapshot.get();
+                if (current.isTracked() != snapshot.isTracked()
+                        || current.mGeneration > snapshot.mGeneration) {
+                    // The result is still good to return to the caller.
+                    return false;
+                }
+                if (userCache.mSnapshot.compareAndSet(current, snapshot)) {
+                    return true;
+                }
+            }
+        }
+
+        private static CacheEntry newEntry(String value, int keyGeneration) {
+            return new CacheEntry(value, keyGeneration != UNTRACKED ? keyGeneration : 0);
+        }
+
+        /**
+         * Publishes a value read from the provider into the cache. Untracked values are only
+         * kept if they were read at the generation the cache is (or is about to be) tracking; a
+         * value read before a newer generation was published is dropped rather than cached as
+         * current. Tracked values carry their own bucket generation and are always kept.
+         * @param userCache The cache of the user the value was read for.
+         * @param generation The table generation observed before the value was read, or
+         *                   TRACKED_GENERATION.
+         * @param keyGeneration The bucket generation observed before the value was read.
+         * @param keyId The interned id of the key, or UNKNOWN_KEY.
+         * @param name The name of the key that was read.
+         * @param entry The entry holding the value that was read.
+         */
+        private void publishValue(UserCache userCache, long generation, int keyGeneration,
+                int keyId, String name, CacheEntry entry) {
+            final boolean tracked = keyGeneration != UNTRACKED;
+            while (true) {
+                final CacheSnapshot current = userCache.mSnapshot.get();
+                final CacheSnapshot next;
+                if (tracked) {
+                    if (!current.isTracked()) {
+                        // The tracker was dropped meanwhile.
+                        return;
+                    }
+                    next = current.withValue(keyId, name, entry);
+                } else if (current.mGeneration == generation) {
+                    next = current.withValue(keyId, name, entry);
+                } else if (current.mGeneration < generation) {
+                    if (LOCAL_LOGV) {
+                        Log.v(TAG, "invalidate [" + mUri.getLastPathSegment() + "]: current "
+                                + generation + " != cached " + current.mGeneration);
+                    }
+                    next = newSnapshot(generation, false, null).withValue(keyId, name, entry);
+                } else {
+                    // A newer generation is already cached, this value may be stale.
+                    return;
+                }
+                if (userCache.mSnapshot.compareAndSet(current, next)) {
+                    return;
+                }
+            }
+        }
     }
 
     // region Validators
@@ -333,16 +1875,8 @@ public final class EVSettings {
     private static final Validator sBooleanValidator =
             new DiscreteValueValidator(new String[] {"0", "1"});
 
-    private static final Validator sNonNegativeIntegerValidator = new Validator() {
-        @Override
-        public boolean validate(String value) {
-            try {
-                return Integer.parseInt(value) >= 0;
-            } catch (NumberFormatException e) {
-                return false;
-            }
-        }
-    };
+    private static final InclusiveIntegerRangeValidator sNonNegativeIntegerValidator =
+            new InclusiveIntegerRangeValidator(0, Integer.MAX_VALUE);
 
     private static final Validator sUriValidator = new Validator() {
         @Override
@@ -356,9 +1890,12 @@ public final class EVSettings {
         }
     };
 
-    private static final Validator sColorValidator =
+    private static final InclusiveIntegerRangeValidator sColorValidator =
             new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
 
+    private static final InclusiveFloatRangeValidator sUnitFloatValidator =
+            new InclusiveFloatRangeValidator(0, 1);
+
     /**
      * Action to perform when a key is pressed.
      * 0 - Nothing
@@ -416,12 +1953,15 @@ public final class EVSettings {
 
         @Override
         public boolean validate(String value) {
-            try {
-                final int intValue = Integer.parseInt(value);
-                return intValue >= mMin && intValue <= mMax;
-            } catch (NumberFormatException e) {
-                return false;
-            }
+            return value != null && validate(value, 0, value.length());
+        }
+
+        /**
+         * Validates the region [start, end) of a value.
+         */
+        boolean validate(String value, int start, int end) {
+            final long intValue = ValueScanner.parseInt(value, start, end);
+            return intValue != ValueScanner.NOT_AN_INT && intValue >= mMin && intValue <= mMax;
         }
     }
 
@@ -436,49 +1976,245 @@ public final class EVSettings {
 
         @Override
         public boolean validate(String value) {
+            // Like Float.parseFloat(), a null value throws.
+            return validate(value, 0, value.length());
+        }
+
+        /**
+         * Validates the region [start, end) of a value.
+         */
+        boolean validate(String value, int start, int end) {
+            if (!ValueScanner.mayBeFloat(value, start, end)) {
+                return false;
+            }
             try {
-                final float floatValue = Float.parseFloat(value);
+                final float floatValue = Float.parseFloat(start == 0 && end == value.length()
+                        ? value : value.substring(start, end));
                 return floatValue >= mMin && floatValue <= mMax;
             } catch (NumberFormatException e) {
+                // Only reached for malformed hexadecimal numbers
                 return false;
             }
         }
     }
 
     private static final class DelimitedListValidator implements Validator {
-        private final ArraySet<String> mValidValueSet;
+        private final String[] mValidValues;
         private final String mDelimiter;
         private final boolean mAllowEmptyList;
 
         public DelimitedListValidator(String[] validValues, String delimiter,
                                       boolean allowEmptyList) {
-            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mValidValues = validValues.clone();
             mDelimiter = delimiter;
             mAllowEmptyList = allowEmptyList;
         }
 
         @Override
         public boolean validate(String value) {
-            ArraySet<String> values = new ArraySet<String>();
+            boolean sawItem = false;
             if (!TextUtils.isEmpty(value)) {
-                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
-                for (String item : array) {
-                    if (TextUtils.isEmpty(item)) {
-                        continue;
+                final int length = value.length();
+                int start = 0;
+                while (start < length) {
+                    // An empty delimiter separates every character.
+                    final int end = mDelimiter.isEmpty()
+                            ? start + Character.charCount(value.codePointAt(start))
+                            : ValueScanner.fieldEnd(value, start, length, mDelimiter);
+                    if (end > start) {
+                        if (!isValidItem(value, start, end)) {
+                            return false;
+                        }
+                        sawItem = true;
                     }
-                    values.add(item);
+                    start = end + mDelimiter.length();
+                }
+            }
+            return sawItem || mAllowEmptyList;
+        }
+
+        private boolean isValidItem(String value, int start, int end) {
+            final int length = end - start;
+            for (String validValue : mValidValues) {
+                if (validValue.length() == length
+                        && value.regionMatches(start, validValue, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Parsing helpers for the validators. They work on a region of the value, so that lists are
+     * checked field by field instead of being split, and report malformed input through their
+     * return value: rejecting a value neither allocates nor throws.
+     */
+    private static final class ValueScanner {
+        // Returned by parseInt() for anything Integer.parseInt() rejects
+        static final long NOT_AN_INT = Long.MIN_VALUE;
+
+        /**
+         * Parses the region [start, end) of a string like {@link Integer#parseInt(String)}.
+         * @return The value, or {@link #NOT_AN_INT}.
+         */
+        static long parseInt(String s, int start, int end) {
+            if (s == null || start >= end) {
+                return NOT_AN_INT;
+            }
+            int i = start;
+            boolean negative = false;
+            int limit = -Integer.MAX_VALUE;
+            final char first = s.charAt(i);
+            if (first < '0') {
+                if (first == '-') {
+                    negative = true;
+                    limit = Integer.MIN_VALUE;
+                } else if (first != '+') {
+                    return NOT_AN_INT;
+                }
+                if (end - start == 1) {
+                    return NOT_AN_INT;
+                }
+                i++;
+            }
+            // Accumulated negatively, as the negative range is the larger one.
+            final int multmin = limit / 10;
+            int result = 0;
+            while (i < end) {
+                final int digit = Character.digit(s.charAt(i++), 10);
+                if (digit < 0 || result < multmin) {
+                    return NOT_AN_INT;
+                }
+                result *= 10;
+                if (result < limit + digit) {
+                    return NOT_AN_INT;
                 }
+                result -= digit;
+            }
+            return negative ? result : -result;
+        }
+
+        /**
+         * Checks the region [start, end) of a string against the syntax accepted by
+         * {@link Float#parseFloat(String)}: surrounding whitespace, an optional sign, then NaN,
+         * Infinity, or a decimal number with an optional exponent and type suffix.
+         * Hexadecimal numbers aren't checked, and are left to the parser.
+         * @return Whether the region may parse; false only if it can't.
+         */
+        static boolean mayBeFloat(String s, int start, int end) {
+            if (s == null) {
+                return false;
+            }
+            // Whitespace is trimmed like String.trim() does.
+            while (start < end && s.charAt(start) <= ' ') {
+                start++;
+            }
+            while (end > start && s.charAt(end - 1) <= ' ') {
+                end--;
+            }
+            int i = start;
+            if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                i++;
+            }
+            if (i == end) {
+                return false;
             }
-            if (values.size() > 0) {
-                values.removeAll(mValidValueSet);
-                // values.size() will be non-zero if it contains any values not in
-                // mValidValueSet
-                return values.size() == 0;
-            } else if (mAllowEmptyList) {
+            final char c = s.charAt(i);
+            if (c == 'N') {
+                return end - i == 3 && s.startsWith("NaN", i);
+            } else if (c == 'I') {
+                return end - i == 8 && s.startsWith("Infinity", i);
+            } else if (c == '0' && i + 1 < end
+                    && (s.charAt(i + 1) == 'x' || s.charAt(i + 1) == 'X')) {
                 return true;
             }
 
-            return false;
+            // Digits with at most one decimal point, at least one of them a digit
+            boolean sawDigit = false;
+            boolean sawPoint = false;
+            for (; i < end; i++) {
+                final char ch = s.charAt(i);
+                if (ch >= '0' && ch <= '9') {
+                    sawDigit = true;
+                } else if (ch == '.' && !sawPoint) {
+                    sawPoint = true;
+                } else {
+                    break;
+                }
+            }
+            if (!sawDigit) {
+                return false;
+            }
+            if (i < end && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+                i++;
+                if (i < end && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+                    i++;
+                }
+                final int exponentStart = i;
+                while (i < end && s.charAt(i) >= '0' && s.charAt(i) <= '9') {
+                    i++;
+                }
+                if (i == exponentStart) {
+                    return false;
+                }
+            }
+            if (i == end) {
+                return true;
+            }
+            final char suffix = s.charAt(i);
+            return i == end - 1
+                    && (suffix == 'f' || suffix == 'F' || suffix == 'd' || suffix == 'D');
+        }
+
+        /**
+         * Returns the end of the field starting at start, that is the index of the next
+         * delimiter before end, or end.
+         */
+        static int fieldEnd(String s, int start, int end, char delimiter) {
+            final int index = s.indexOf(delimiter, start);
+            return index < 0 || index > end ? end : index;
+        }
+
+        static int fieldEnd(String s, int start, int end, String delimiter) {
+            final int index = s.indexOf(delimiter, start);
+            return index < 0 || index + delimiter.length() > end ? end : index;
+        }
+
+        /**
+         * Counts the fields of the region [start, end) of a string like
+         * {@link String#split(String)} with a single character expression does: trailing
+         * empty fields aren't counted, unless the region holds no delimiter at all.
+         */
+        static int countFields(String s, int start, int end, char delimiter) {
+            int fields = 0;
+            int nonEmptyFields = 0;
+            int fieldStart = start;
+            boolean sawDelimiter = false;
+            for (int i = start; i <= end; i++) {
+                if (i == end || s.charAt(i) == delimiter) {
+                    sawDelimiter |= i < end;
+                    fields++;
+                    if (i > fieldStart) {
+                        nonEmptyFields = fields;
+                    }
+                    fieldStart = i + 1;
+                }
+            }
+            return sawDelimiter ? nonEmptyFields : 1;
+        }
+
+        /**
+         * Counts the occurrences of a character in the region [start, end) of a string.
+         */
+        static int count(String s, int start, int end, char c) {
+            int count = 0;
+            for (int i = start; i < end; i++) {
+                if (s.charAt(i) == c) {
+                    count++;
+                }
+            }
+            return count;
         }
     }
     // endregion Validators
@@ -490,17 +2226,10 @@ public final class EVSettings {
     public static final class System extends Settings.NameValueTable {
         public static final Uri CONTENT_URI = Uri.parse("content://" + AUTHORITY + "/system");
 
-        public static final String SYS_PROP_SETTING_VERSION = "sys.evervolv_settings_system_version";
-        private static final ContentProviderHolder sProviderHolder =
-                new ContentProviderHolder(CONTENT_URI);
-
-        private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_SETTING_VERSION,
-                CONTENT_URI,
-                CALL_METHOD_GET_SYSTEM,
-                CALL_METHOD_PUT_SYSTEM,
-                sProviderHolder);
-
+        public static final String SYS_PROP_SETTING_VERSION = "sys.evervolv_settings_system_version";
+        private static final ContentProviderHolder sProviderHolder =
+                new ContentProviderHolder(CONTENT_URI);
+
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_SECURE;
         static {
@@ -582,12 +2311,82 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getEntryForUser(resolver, name, userId).mValue;
+        }
+
+        /**
+         * Look up a name in the database without blocking the calling thread. Cached values
+         * complete right away, anything else is read on a background thread.
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @return a future completing with the value, or null if not present
+         */
+        public static CompletableFuture<String> getStringAsync(ContentResolver resolver,
+                String name) {
+            return getStringForUserAsync(resolver, name, resolver.getUserId());
+        }
+
+        /** @hide */
+        public static CompletableFuture<String> getStringForUserAsync(ContentResolver resolver,
+                String name, int userId) {
+            if (MOVED_TO_SECURE.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from EVSettings.System"
+                        + " to EVSettings.Secure, value is unchanged.");
+                return EVSettings.Secure.getStringForUserAsync(resolver, name, userId);
+            }
+            return sNameValueCache.getStringForUserAsync(resolver, name, userId);
+        }
+
+        /**
+         * Returns the interned id of a known setting of this table, for the by-id getters.
+         * Resolve it once and keep it; ids are only meaningful within the current process.
+         * @param name The name of the setting.
+         * @return The id, or {@link EVSettings#UNKNOWN_KEY} if the name isn't a known setting.
+         * @hide
+         */
+        public static int getKeyId(String name) {
+            return sNameValueCache.getKeyId(name);
+        }
+
+        /**
+         * Look up a known setting by its id. A cached value is returned without hashing the
+         * name or allocating.
+         * @param resolver to access the database with
+         * @param keyId the id returned by {@link #getKeyId(String)}
+         * @param userId the user to look the setting up for
+         * @return the corresponding value, or null if not present
+         * @hide
+         */
+        public static String getStringById(ContentResolver resolver, int keyId, int userId) {
+            return sNameValueCache.getEntryByIdForUser(resolver, keyId, userId).mValue;
+        }
+
+        /** @hide */
+        public static int getIntById(ContentResolver cr, int keyId, int def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseInt() ? entry.getInt() : def;
+        }
+
+        /** @hide */
+        public static long getLongById(ContentResolver cr, int keyId, long def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseLong() ? entry.getLong() : def;
+        }
+
+        /** @hide */
+        public static float getFloatById(ContentResolver cr, int keyId, float def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userId) {
             if (MOVED_TO_SECURE.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from EVSettings.System"
                         + " to EVSettings.Secure, value is unchanged.");
-                return EVSettings.Secure.getStringForUser(resolver, name, userId);
+                return EVSettings.Secure.getEntryForUser(resolver, name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.getEntryForUser(resolver, name, userId);
         }
 
         /**
@@ -612,6 +2411,44 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. Either all of them are
+         * stored or none is, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store them for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_SECURE.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from EVSettings.System"
+                            + " to EVSettings.Secure, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
+        /**
+         * Store the valid ones of several name/value pairs into the database at once. Each
+         * pair is validated on its own, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param names the names of the settings to store
+         * @param values the values to store, parallel to the names
+         * @param userId the user to store them for
+         * @return the outcome of each pair, one of the UPSERT_RESULT_* values, or null on
+         *     database errors
+         * @hide
+         */
+        public static int[] upsertStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return upsertUnmovedStrings(sNameValueCache, resolver, names, values, userId,
+                    MOVED_TO_SECURE);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -632,12 +2469,8 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseInt() ? entry.getInt() : def;
         }
 
         /**
@@ -666,12 +2499,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -718,14 +2550,8 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseLong() ? entry.getLong() : def;
         }
 
         /**
@@ -753,12 +2579,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -805,12 +2630,8 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -839,15 +2660,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -1451,57 +3268,84 @@ public final class EVSettings {
                             return true;
                         }
 
-                        for (String packageValuesString : value.split("\\|")) {
-                            String[] packageValues = packageValuesString.split("=");
-                            if (packageValues.length != 2) {
-                                if (LOCAL_LOGV) {
-                                    Log.d(TAG, "Incorrect number of package values: "
-                                            + packageValues.length);
-                                }
+                        // Package entries are walked in place, with the field counts split()
+                        // would yield: trailing empty fields don't count.
+                        final int length = value.length();
+                        final int packages = ValueScanner.countFields(value, 0, length, '|');
+                        int start = 0;
+                        for (int p = 0; p < packages; p++) {
+                            final int end = ValueScanner.fieldEnd(value, start, length, '|');
+                            if (!validatePackageValues(value, start, end)) {
                                 return false;
                             }
-                            String packageName = packageValues[0];
-                            if (TextUtils.isEmpty(packageName)) {
-                                if (LOCAL_LOGV)  Log.d(TAG, "Empty package name");
-                                return false;
+                            start = end + 1;
+                        }
+                        // if we make it all the way through then the data is considered valid
+                        return true;
+                    }
+
+                    /**
+                     * Validates the package entry in the region [start, end) of the value,
+                     * package=color;on;off.
+                     */
+                    private boolean validatePackageValues(String value, int start, int end) {
+                        final int packageValues =
+                                ValueScanner.countFields(value, start, end, '=');
+                        if (packageValues != 2) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Incorrect number of package values: "
+                                        + packageValues);
                             }
-                            String[] values = packageValues[1].split(";");
-                            if (values.length != 3) {
-                                if (LOCAL_LOGV) {
-                                    Log.d(TAG, "Incorrect number of values: " + values.length);
-                                }
-                                return false;
+                            return false;
+                        }
+                        final int nameEnd = ValueScanner.fieldEnd(value, start, end, '=');
+                        if (nameEnd == start) {
+                            if (LOCAL_LOGV)  Log.d(TAG, "Empty package name");
+                            return false;
+                        }
+                        final int valuesStart = nameEnd + 1;
+                        final int valuesEnd = ValueScanner.fieldEnd(value, valuesStart, end, '=');
+                        final int values =
+                                ValueScanner.countFields(value, valuesStart, valuesEnd, ';');
+                        if (values != 3) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Incorrect number of values: " + values);
                             }
-                            try {
-                                // values[0] is LED color
-                                if (!sColorValidator.validate(values[0])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED color (" + values[0] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                                // values[1] is the LED on time and should be non-negative
-                                if (!sNonNegativeIntegerValidator.validate(values[1])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED on time (" + values[1] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                                // values[1] is the LED off time and should be non-negative
-                                if (!sNonNegativeIntegerValidator.validate(values[2])) {
-                                    if (LOCAL_LOGV) {
-                                        Log.d(TAG, "Invalid LED off time (" + values[2] + ") for "
-                                                + packageName);
-                                    }
-                                    return false;
-                                }
-                            } catch (NumberFormatException e) {
-                                return false;
+                            return false;
+                        }
+                        // values[0] is LED color
+                        final int colorEnd = ValueScanner.fieldEnd(value, valuesStart, valuesEnd,
+                                ';');
+                        if (!sColorValidator.validate(value, valuesStart, colorEnd)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED color ("
+                                        + value.substring(valuesStart, colorEnd) + ") for "
+                                        + value.substring(start, nameEnd));
                             }
+                            return false;
+                        }
+                        // values[1] is the LED on time and should be non-negative
+                        final int onEnd = ValueScanner.fieldEnd(value, colorEnd + 1, valuesEnd,
+                                ';');
+                        if (!sNonNegativeIntegerValidator.validate(value, colorEnd + 1, onEnd)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED on time ("
+                                        + value.substring(colorEnd + 1, onEnd) + ") for "
+                                        + value.substring(start, nameEnd));
+                            }
+                            return false;
+                        }
+                        // values[2] is the LED off time and should be non-negative
+                        final int offEnd = ValueScanner.fieldEnd(value, onEnd + 1, valuesEnd,
+                                ';');
+                        if (!sNonNegativeIntegerValidator.validate(value, onEnd + 1, offEnd)) {
+                            if (LOCAL_LOGV) {
+                                Log.d(TAG, "Invalid LED off time ("
+                                        + value.substring(onEnd + 1, offEnd) + ") for "
+                                        + value.substring(start, nameEnd));
+                            }
+                            return false;
                         }
-                        // if we make it all the way through then the data is considered valid
                         return true;
                     }
                 };
@@ -1759,16 +3603,20 @@ public final class EVSettings {
                 new Validator() {
                     @Override
                     public boolean validate(String value) {
-                        String[] colorAdjustment = value == null ?
-                                null : value.split(" ");
-                        if (colorAdjustment != null && colorAdjustment.length != 3) {
+                        if (value == null) {
+                            return true;
+                        }
+                        final int length = value.length();
+                        if (ValueScanner.countFields(value, 0, length, ' ') != 3) {
                             return false;
                         }
-                        Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
-                        return colorAdjustment == null ||
-                                floatValidator.validate(colorAdjustment[0]) &&
-                                floatValidator.validate(colorAdjustment[1]) &&
-                                floatValidator.validate(colorAdjustment[2]);
+                        final int redEnd = ValueScanner.fieldEnd(value, 0, length, ' ');
+                        final int greenEnd = ValueScanner.fieldEnd(value, redEnd + 1, length, ' ');
+                        final int blueEnd =
+                                ValueScanner.fieldEnd(value, greenEnd + 1, length, ' ');
+                        return sUnitFloatValidator.validate(value, 0, redEnd)
+                                && sUnitFloatValidator.validate(value, redEnd + 1, greenEnd)
+                                && sUnitFloatValidator.validate(value, greenEnd + 1, blueEnd);
                     }
                 };
 
@@ -1796,12 +3644,16 @@ public final class EVSettings {
                         if (TextUtils.isEmpty(value)) {
                             return true;
                         }
-                        final String[] sp = TextUtils.split(value, ",");
-                        for (String s : sp) {
-                            final String[] sp2 = TextUtils.split(s, ":");
-                            if (sp2.length != 2) {
+                        // Every comma separated field, including empty ones, has to be a
+                        // single key:value pair.
+                        final int length = value.length();
+                        int start = 0;
+                        while (start <= length) {
+                            final int end = ValueScanner.fieldEnd(value, start, length, ',');
+                            if (ValueScanner.count(value, start, end, ':') != 1) {
                                 return false;
                             }
+                            start = end + 1;
                         }
                         return true;
                     }
@@ -2125,6 +3977,20 @@ public final class EVSettings {
             VALIDATORS.put(__MAGICAL_TEST_PASSING_ENABLER,
                     __MAGICAL_TEST_PASSING_ENABLER_VALIDATOR);
         };
+
+        // Declared after VALIDATORS, whose keys are interned as the cache's known keys.
+        private static final NameValueCache sNameValueCache = new NameValueCache(
+                SYS_PROP_SETTING_VERSION,
+                CONTENT_URI,
+                CALL_METHOD_GET_SYSTEM,
+                CALL_METHOD_PUT_SYSTEM,
+                CALL_METHOD_PUT_BATCH_SYSTEM,
+                CALL_METHOD_UPSERT_SYSTEM,
+                CALL_METHOD_GET_ALL_SYSTEM,
+                CALL_METHOD_GET_CHANGES_SYSTEM,
+                sProviderHolder,
+                VALIDATORS.keySet(),
+                MOVED_TO_SECURE);
         // endregion
     }
 
@@ -2141,13 +4007,6 @@ public final class EVSettings {
         private static final ContentProviderHolder sProviderHolder =
                 new ContentProviderHolder(CONTENT_URI);
 
-        private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_SETTING_VERSION,
-                CONTENT_URI,
-                CALL_METHOD_GET_SECURE,
-                CALL_METHOD_PUT_SECURE,
-                sProviderHolder);
-
         /** @hide */
         protected static final ArraySet<String> MOVED_TO_GLOBAL;
         static {
@@ -2229,12 +4088,82 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
+            return getEntryForUser(resolver, name, userId).mValue;
+        }
+
+        /**
+         * Look up a name in the database without blocking the calling thread. Cached values
+         * complete right away, anything else is read on a background thread.
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @return a future completing with the value, or null if not present
+         */
+        public static CompletableFuture<String> getStringAsync(ContentResolver resolver,
+                String name) {
+            return getStringForUserAsync(resolver, name, resolver.getUserId());
+        }
+
+        /** @hide */
+        public static CompletableFuture<String> getStringForUserAsync(ContentResolver resolver,
+                String name, int userId) {
+            if (MOVED_TO_GLOBAL.contains(name)) {
+                Log.w(TAG, "Setting " + name + " has moved from EVSettings.Secure"
+                        + " to EVSettings.Global, value is unchanged.");
+                return EVSettings.Global.getStringForUserAsync(resolver, name, userId);
+            }
+            return sNameValueCache.getStringForUserAsync(resolver, name, userId);
+        }
+
+        /**
+         * Returns the interned id of a known setting of this table, for the by-id getters.
+         * Resolve it once and keep it; ids are only meaningful within the current process.
+         * @param name The name of the setting.
+         * @return The id, or {@link EVSettings#UNKNOWN_KEY} if the name isn't a known setting.
+         * @hide
+         */
+        public static int getKeyId(String name) {
+            return sNameValueCache.getKeyId(name);
+        }
+
+        /**
+         * Look up a known setting by its id. A cached value is returned without hashing the
+         * name or allocating.
+         * @param resolver to access the database with
+         * @param keyId the id returned by {@link #getKeyId(String)}
+         * @param userId the user to look the setting up for
+         * @return the corresponding value, or null if not present
+         * @hide
+         */
+        public static String getStringById(ContentResolver resolver, int keyId, int userId) {
+            return sNameValueCache.getEntryByIdForUser(resolver, keyId, userId).mValue;
+        }
+
+        /** @hide */
+        public static int getIntById(ContentResolver cr, int keyId, int def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseInt() ? entry.getInt() : def;
+        }
+
+        /** @hide */
+        public static long getLongById(ContentResolver cr, int keyId, long def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseLong() ? entry.getLong() : def;
+        }
+
+        /** @hide */
+        public static float getFloatById(ContentResolver cr, int keyId, float def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userId) {
             if (MOVED_TO_GLOBAL.contains(name)) {
                 Log.w(TAG, "Setting " + name + " has moved from EVSettings.Secure"
                         + " to EVSettings.Global, value is unchanged.");
-                return EVSettings.Global.getStringForUser(resolver, name, userId);
+                return EVSettings.Global.getEntryForUser(resolver, name, userId);
             }
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return sNameValueCache.getEntryForUser(resolver, name, userId);
         }
 
         /**
@@ -2259,6 +4188,44 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. Either all of them are
+         * stored or none is, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store them for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            for (String name : values.keySet()) {
+                if (MOVED_TO_GLOBAL.contains(name)) {
+                    Log.w(TAG, "Setting " + name + " has moved from EVSettings.Secure"
+                            + " to EVSettings.Global, values are unchanged.");
+                    return false;
+                }
+            }
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
+        /**
+         * Store the valid ones of several name/value pairs into the database at once. Each
+         * pair is validated on its own, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param names the names of the settings to store
+         * @param values the values to store, parallel to the names
+         * @param userId the user to store them for
+         * @return the outcome of each pair, one of the UPSERT_RESULT_* values, or null on
+         *     database errors
+         * @hide
+         */
+        public static int[] upsertStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return upsertUnmovedStrings(sNameValueCache, resolver, names, values, userId,
+                    MOVED_TO_GLOBAL);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2279,12 +4246,8 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseInt() ? entry.getInt() : def;
         }
 
         /**
@@ -2313,12 +4276,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -2365,14 +4327,8 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseLong() ? entry.getLong() : def;
         }
 
         /**
@@ -2400,12 +4356,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -2452,12 +4407,8 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -2486,15 +4437,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -2724,6 +4671,20 @@ public final class EVSettings {
             VALIDATORS.put(__MAGICAL_TEST_PASSING_ENABLER,
                     __MAGICAL_TEST_PASSING_ENABLER_VALIDATOR);
         }
+
+        // Declared after VALIDATORS, whose keys are interned as the cache's known keys.
+        private static final NameValueCache sNameValueCache = new NameValueCache(
+                SYS_PROP_SETTING_VERSION,
+                CONTENT_URI,
+                CALL_METHOD_GET_SECURE,
+                CALL_METHOD_PUT_SECURE,
+                CALL_METHOD_PUT_BATCH_SECURE,
+                CALL_METHOD_UPSERT_SECURE,
+                CALL_METHOD_GET_ALL_SECURE,
+                CALL_METHOD_GET_CHANGES_SECURE,
+                sProviderHolder,
+                VALIDATORS.keySet(),
+                MOVED_TO_GLOBAL);
     }
 
     /**
@@ -2739,13 +4700,6 @@ public final class EVSettings {
         private static final ContentProviderHolder sProviderHolder =
                 new ContentProviderHolder(CONTENT_URI);
 
-        private static final NameValueCache sNameValueCache = new NameValueCache(
-                SYS_PROP_SETTING_VERSION,
-                CONTENT_URI,
-                CALL_METHOD_GET_GLOBAL,
-                CALL_METHOD_PUT_GLOBAL,
-                sProviderHolder);
-
         // region Methods
 
         /**
@@ -2821,7 +4775,72 @@ public final class EVSettings {
         /** @hide */
         public static String getStringForUser(ContentResolver resolver, String name,
                 int userId) {
-            return sNameValueCache.getStringForUser(resolver, name, userId);
+            return getEntryForUser(resolver, name, userId).mValue;
+        }
+
+        /**
+         * Look up a name in the database without blocking the calling thread. Cached values
+         * complete right away, anything else is read on a background thread.
+         * @param resolver to access the database with
+         * @param name to look up in the table
+         * @return a future completing with the value, or null if not present
+         */
+        public static CompletableFuture<String> getStringAsync(ContentResolver resolver,
+                String name) {
+            return getStringForUserAsync(resolver, name, resolver.getUserId());
+        }
+
+        /** @hide */
+        public static CompletableFuture<String> getStringForUserAsync(ContentResolver resolver,
+                String name, int userId) {
+            return sNameValueCache.getStringForUserAsync(resolver, name, userId);
+        }
+
+        /**
+         * Returns the interned id of a known setting of this table, for the by-id getters.
+         * Resolve it once and keep it; ids are only meaningful within the current process.
+         * @param name The name of the setting.
+         * @return The id, or {@link EVSettings#UNKNOWN_KEY} if the name isn't a known setting.
+         * @hide
+         */
+        public static int getKeyId(String name) {
+            return sNameValueCache.getKeyId(name);
+        }
+
+        /**
+         * Look up a known setting by its id. A cached value is returned without hashing the
+         * name or allocating.
+         * @param resolver to access the database with
+         * @param keyId the id returned by {@link #getKeyId(String)}
+         * @param userId the user to look the setting up for
+         * @return the corresponding value, or null if not present
+         * @hide
+         */
+        public static String getStringById(ContentResolver resolver, int keyId, int userId) {
+            return sNameValueCache.getEntryByIdForUser(resolver, keyId, userId).mValue;
+        }
+
+        /** @hide */
+        public static int getIntById(ContentResolver cr, int keyId, int def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseInt() ? entry.getInt() : def;
+        }
+
+        /** @hide */
+        public static long getLongById(ContentResolver cr, int keyId, long def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseLong() ? entry.getLong() : def;
+        }
+
+        /** @hide */
+        public static float getFloatById(ContentResolver cr, int keyId, float def, int userId) {
+            final CacheEntry entry = sNameValueCache.getEntryByIdForUser(cr, keyId, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
+        }
+
+        private static CacheEntry getEntryForUser(ContentResolver resolver, String name,
+                int userId) {
+            return sNameValueCache.getEntryForUser(resolver, name, userId);
         }
 
         /**
@@ -2841,6 +4860,36 @@ public final class EVSettings {
             return sNameValueCache.putStringForUser(resolver, name, value, userId);
         }
 
+        /**
+         * Store several name/value pairs into the database at once. Either all of them are
+         * stored or none is, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param values the name/value pairs to store
+         * @param userId the user to store them for
+         * @return true if the values were set, false on database errors
+         * @hide
+         */
+        public static boolean putStringsForUser(ContentResolver resolver,
+                Map<String, String> values, int userId) {
+            return sNameValueCache.putStringsForUser(resolver, values, userId);
+        }
+
+        /**
+         * Store the valid ones of several name/value pairs into the database at once. Each
+         * pair is validated on its own, and observers are notified once for the whole batch.
+         * @param resolver to access the database with
+         * @param names the names of the settings to store
+         * @param values the values to store, parallel to the names
+         * @param userId the user to store them for
+         * @return the outcome of each pair, one of the UPSERT_RESULT_* values, or null on
+         *     database errors
+         * @hide
+         */
+        public static int[] upsertStringsForUser(ContentResolver resolver, String[] names,
+                String[] values, int userId) {
+            return sNameValueCache.upsertStringsForUser(resolver, names, values, userId);
+        }
+
         /**
          * Convenience function for retrieving a single settings value
          * as an integer.  Note that internally setting values are always
@@ -2861,12 +4910,8 @@ public final class EVSettings {
 
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int def, int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Integer.parseInt(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseInt() ? entry.getInt() : def;
         }
 
         /**
@@ -2895,12 +4940,11 @@ public final class EVSettings {
         /** @hide */
         public static int getIntForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return Integer.parseInt(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseInt()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getInt();
         }
 
         /**
@@ -2947,14 +4991,8 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, long def,
                 int userId) {
-            String valString = getStringForUser(cr, name, userId);
-            long value;
-            try {
-                value = valString != null ? Long.parseLong(valString) : def;
-            } catch (NumberFormatException e) {
-                value = def;
-            }
-            return value;
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseLong() ? entry.getLong() : def;
         }
 
         /**
@@ -2982,12 +5020,11 @@ public final class EVSettings {
         /** @hide */
         public static long getLongForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String valString = getStringForUser(cr, name, userId);
-            try {
-                return Long.parseLong(valString);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseLong()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getLong();
         }
 
         /**
@@ -3034,12 +5071,8 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, float def,
                 int userId) {
-            String v = getStringForUser(cr, name, userId);
-            try {
-                return v != null ? Float.parseFloat(v) : def;
-            } catch (NumberFormatException e) {
-                return def;
-            }
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            return entry.parseFloat() ? entry.getFloat() : def;
         }
 
         /**
@@ -3068,15 +5101,11 @@ public final class EVSettings {
         /** @hide */
         public static float getFloatForUser(ContentResolver cr, String name, int userId)
                 throws EVSettingNotFoundException {
-            String v = getStringForUser(cr, name, userId);
-            if (v == null) {
-                throw new EVSettingNotFoundException(name);
-            }
-            try {
-                return Float.parseFloat(v);
-            } catch (NumberFormatException e) {
+            final CacheEntry entry = getEntryForUser(cr, name, userId);
+            if (!entry.parseFloat()) {
                 throw new EVSettingNotFoundException(name);
             }
+            return entry.getFloat();
         }
 
         /**
@@ -3138,5 +5167,19 @@ public final class EVSettings {
             VALIDATORS.put(__MAGICAL_TEST_PASSING_ENABLER,
                     __MAGICAL_TEST_PASSING_ENABLER_VALIDATOR);
         };
+
+        // Declared after VALIDATORS, whose keys are interned as the cache's known keys.
+        private static final NameValueCache sNameValueCache = new NameValueCache(
+                SYS_PROP_SETTING_VERSION,
+                CONTENT_URI,
+                CALL_METHOD_GET_GLOBAL,
+                CALL_METHOD_PUT_GLOBAL,
+                CALL_METHOD_PUT_BATCH_GLOBAL,
+                CALL_METHOD_UPSERT_GLOBAL,
+                CALL_METHOD_GET_ALL_GLOBAL,
+                CALL_METHOD_GET_CHANGES_GLOBAL,
+                sProviderHolder,
+                VALIDATORS.keySet(),
+                null);
     }
 }
@@ -17,8 +17,11 @@
 package evervolv.util.palette;
 
 import android.graphics.Color;
+import android.util.Pools.SynchronizedPool;
 import android.util.TimingLogger;
 
+import com.android.internal.annotations.VisibleForTesting;
+
 import evervolv.util.palette.Palette.Swatch;
 
 import java.util.ArrayList;
@@ -27,6 +30,8 @@ import java.util.Collection;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 /**
  * An color quantizer based on the Median-cut algorithm, but optimized for picking out distinct
@@ -41,6 +46,19 @@ import java.util.PriorityQueue;
  * This means that the color space is divided into distinct colors, rather than representative
  * colors.
  *
+ * Instances are pooled, as palettes are generated over and over for notifications and
+ * wallpapers: {@link #obtain()} one, {@link #quantize} any number of images, and
+ * {@link #recycle()} it. The histogram, color, pixel and box storage is reused across images, so
+ * that the only allocations in the steady state are the returned swatches. A pooled quantizer
+ * keeps at most its 128KB histogram, up to 128KB of distinct colors and three buffers of up to
+ * 256KB each, so the pool holds on to about 2MB at most. Larger buffers, and the shard
+ * histograms of parallel quantization, are dropped on recycle.
+ *
+ * Large images can be quantized in parallel: the pixels are counted in shards, each into its own
+ * histogram, and the histograms are merged and filtered a range of colors at a time, on the
+ * common fork-join pool. Counting and filtering don't depend on the order of the work, so the
+ * result is identical to the serial one.
+ *
  * @hide
  */
 final class ColorCutQuantizer {
@@ -55,45 +73,163 @@ final class ColorCutQuantizer {
     private static final int QUANTIZE_WORD_WIDTH = 5;
     private static final int QUANTIZE_WORD_MASK = (1 << QUANTIZE_WORD_WIDTH) - 1;
 
-    final int[] mColors;
-    final int[] mHistogram;
-    final List<Swatch> mQuantizedColors;
-    final TimingLogger mTimingLogger;
-    final Palette.Filter[] mFilters;
+    // Number of quantizers kept for reuse. Palettes are generated by a few threads at most.
+    private static final int POOL_SIZE = 2;
+
+    // Buffers larger than this are dropped on recycle rather than kept in the pool. The pixels
+    // of the default resize of 192px fit.
+    private static final int MAX_POOLED_BUFFER_BYTES = 256 * 1024;
+
+    // Fewest pixels worth counting on another thread
+    private static final int MIN_PIXELS_PER_SHARD = 64 * 1024;
+
+    private static final SynchronizedPool<ColorCutQuantizer> sPool =
+            new SynchronizedPool<>(POOL_SIZE);
+
+    final int[] mHistogram = new int[1 << (QUANTIZE_WORD_WIDTH * 3)];
+    // Distinct colors of the current image, in the first mColorCount elements
+    int[] mColors = new int[0];
+    int mColorCount;
+    TimingLogger mTimingLogger;
+    Palette.Filter[] mFilters;
+
+    private int[] mPixels = new int[0];
+
+    // Scratch space of Palette.Builder when sampling the rows of a bitmap
+    private int[] mRowBuffer = new int[0];
+    private long[] mSumBuffer = new long[0];
+
+    // Histograms of the pixel shards besides the first one, which uses mHistogram
+    private int[][] mShardHistograms = new int[0][];
+
+    // Boxes of the current image come from mBoxes, the first mBoxCount being in use
+    private final ArrayList<Vbox> mBoxes = new ArrayList<>();
+    private int mBoxCount;
+    private final PriorityQueue<Vbox> mQueue = new PriorityQueue<>(VBOX_COMPARATOR_VOLUME);
 
     private final float[] mTempHsl = new float[3];
 
+    private ColorCutQuantizer() {
+    }
+
+    /**
+     * Returns a quantizer from the pool, or a new one if the pool is empty. Pass it to
+     * {@link #recycle()} when done.
+     */
+    static ColorCutQuantizer obtain() {
+        final ColorCutQuantizer quantizer = sPool.acquire();
+        return quantizer != null ? quantizer : new ColorCutQuantizer();
+    }
+
+    /**
+     * Empties the pool, so that the next quantizers obtained are new ones.
+     */
+    @VisibleForTesting
+    static void clearPool() {
+        while (sPool.acquire() != null) {
+            // Dropped
+        }
+    }
+
+    /**
+     * Returns this quantizer to the pool. It must not be used afterwards.
+     */
+    void recycle() {
+        mFilters = null;
+        mTimingLogger = null;
+        if ((long) mPixels.length * Integer.BYTES > MAX_POOLED_BUFFER_BYTES) {
+            mPixels = new int[0];
+        }
+        if ((long) mRowBuffer.length * Integer.BYTES > MAX_POOLED_BUFFER_BYTES) {
+            mRowBuffer = new int[0];
+        }
+        if ((long) mSumBuffer.length * Long.BYTES > MAX_POOLED_BUFFER_BYTES) {
+            mSumBuffer = new long[0];
+        }
+        // A histogram per shard would add 128KB each for the life of the process.
+        mShardHistograms = new int[0][];
+        sPool.release(this);
+    }
+
+    /**
+     * Returns a buffer for the pixels of an image, valid until the next call or until this
+     * quantizer is recycled.
+     *
+     * @param size The number of pixels of the image.
+     */
+    int[] getPixelBuffer(int size) {
+        if (mPixels.length < size) {
+            mPixels = new int[size];
+        }
+        return mPixels;
+    }
+
+    /**
+     * Returns a buffer for a row of a source image, valid until the next call or until this
+     * quantizer is recycled.
+     *
+     * @param size The number of pixels of the row.
+     */
+    int[] getRowBuffer(int size) {
+        if (mRowBuffer.length < size) {
+            mRowBuffer = new int[size];
+        }
+        return mRowBuffer;
+    }
+
+    /**
+     * Returns a buffer for sums of color components, valid until the next call or until this
+     * quantizer is recycled. Its content is undefined.
+     *
+     * @param size The number of sums.
+     */
+    long[] getSumBuffer(int size) {
+        if (mSumBuffer.length < size) {
+            mSumBuffer = new long[size];
+        }
+        return mSumBuffer;
+    }
+
     /**
-     * Constructor.
+     * Quantizes the colors of an image.
      *
-     * @param pixels histogram representing an image's pixel data
+     * @param pixels the image's pixel data, in ARGB8888. Its content is left unchanged.
+     * @param pixelCount The number of pixels, from the start of {@code pixels}.
      * @param maxColors The maximum number of colors that should be in the result palette.
      * @param filters Set of filters to use in the quantization stage
+     * @param parallel Whether to build and filter the histogram on several threads, in which
+     *     case the filters must be safe to call from several threads at once.
+     * @return the list of quantized colors
      */
-    ColorCutQuantizer(final int[] pixels, final int maxColors, final Palette.Filter[] filters) {
+    List<Swatch> quantize(final int[] pixels, final int pixelCount, final int maxColors,
+            final Palette.Filter[] filters, final boolean parallel) {
         mTimingLogger = LOG_TIMINGS ? new TimingLogger(LOG_TAG, "Creation") : null;
         mFilters = filters;
 
-        final int[] hist = mHistogram = new int[1 << (QUANTIZE_WORD_WIDTH * 3)];
-        for (int i = 0; i < pixels.length; i++) {
-            final int quantizedColor = quantizeFromRgb888(pixels[i]);
-            // Now update the pixel value to the quantized value
-            pixels[i] = quantizedColor;
-            // And update the histogram
-            hist[quantizedColor]++;
+        final int[] hist = mHistogram;
+        final int parallelism = parallel ? ForkJoinPool.getCommonPoolParallelism() : 1;
+        final int shards = Math.max(1,
+                Math.min(parallelism, pixelCount / MIN_PIXELS_PER_SHARD));
+        if (shards > 1) {
+            buildHistogramInParallel(pixels, pixelCount, shards);
+        } else {
+            Arrays.fill(hist, 0);
+            countPixels(pixels, 0, pixelCount, hist);
         }
 
         if (LOG_TIMINGS) {
             mTimingLogger.addSplit("Histogram created");
         }
 
+        if (parallelism > 1) {
+            filterHistogramInParallel(shards, parallelism);
+        } else {
+            filterHistogram(0, hist.length, 1, mTempHsl);
+        }
+
         // Now let's count the number of distinct colors
         int distinctColorCount = 0;
         for (int color = 0; color < hist.length; color++) {
-            if (hist[color] > 0 && shouldIgnoreColor(color)) {
-                // If we should ignore the color, set the population to 0
-                hist[color] = 0;
-            }
             if (hist[color] > 0) {
                 // If the color has population, increase the distinct color count
                 distinctColorCount++;
@@ -105,7 +241,11 @@ final class ColorCutQuantizer {
         }
 
         // Now lets go through create an array consisting of only distinct colors
-        final int[] colors = mColors = new int[distinctColorCount];
+        if (mColors.length < distinctColorCount) {
+            mColors = new int[distinctColorCount];
+        }
+        final int[] colors = mColors;
+        mColorCount = distinctColorCount;
         int distinctColorIndex = 0;
         for (int color = 0; color < hist.length; color++) {
             if (hist[color] > 0) {
@@ -117,11 +257,13 @@ final class ColorCutQuantizer {
             mTimingLogger.addSplit("Distinct colors copied into array");
         }
 
+        final List<Swatch> quantizedColors;
         if (distinctColorCount <= maxColors) {
             // The image has fewer colors than the maximum requested, so just return the colors
-            mQuantizedColors = new ArrayList<>();
-            for (int color : colors) {
-                mQuantizedColors.add(new Swatch(approximateToRgb888(color), hist[color]));
+            quantizedColors = new ArrayList<>(distinctColorCount);
+            for (int i = 0; i < distinctColorCount; i++) {
+                final int color = colors[i];
+                quantizedColors.add(new Swatch(approximateToRgb888(color), hist[color]));
             }
 
             if (LOG_TIMINGS) {
@@ -130,36 +272,130 @@ final class ColorCutQuantizer {
             }
         } else {
             // We need use quantization to reduce the number of colors
-            mQuantizedColors = quantizePixels(maxColors);
+            quantizedColors = quantizePixels(maxColors);
 
             if (LOG_TIMINGS) {
                 mTimingLogger.addSplit("Quantized colors computed");
                 mTimingLogger.dumpToLog();
             }
         }
+        return quantizedColors;
     }
 
     /**
-     * @return the list of quantized colors
+     * Adds the quantized colors of the pixels between start, inclusive, and end, exclusive, to
+     * a histogram.
      */
-    List<Swatch> getQuantizedColors() {
-        return mQuantizedColors;
+    private static void countPixels(int[] pixels, int start, int end, int[] hist) {
+        for (int i = start; i < end; i++) {
+            hist[quantizeFromRgb888(pixels[i])]++;
+        }
+    }
+
+    /**
+     * Counts the pixels into a histogram per shard, the first one being {@link #mHistogram}.
+     * The shard histograms are merged into it by {@link #filterHistogramInParallel}.
+     */
+    private void buildHistogramInParallel(final int[] pixels, final int pixelCount,
+            final int shards) {
+        if (mShardHistograms.length < shards - 1) {
+            mShardHistograms = Arrays.copyOf(mShardHistograms, shards - 1);
+        }
+        final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[shards];
+        for (int shard = 0; shard < shards; shard++) {
+            final int[] hist = shard == 0 ? mHistogram : getShardHistogram(shard - 1);
+            final int start = (int) ((long) pixelCount * shard / shards);
+            final int end = (int) ((long) pixelCount * (shard + 1) / shards);
+            tasks[shard] = ForkJoinTask.adapt(() -> {
+                Arrays.fill(hist, 0);
+                countPixels(pixels, start, end, hist);
+            });
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    private int[] getShardHistogram(int index) {
+        if (mShardHistograms[index] == null) {
+            mShardHistograms[index] = new int[mHistogram.length];
+        }
+        return mShardHistograms[index];
+    }
+
+    /**
+     * Runs {@link #filterHistogram} over ranges of colors on several threads.
+     *
+     * @param shards The number of shard histograms to merge, 1 if there are none.
+     * @param parallelism The number of ranges to split the colors into.
+     */
+    private void filterHistogramInParallel(final int shards, final int parallelism) {
+        final int colorCount = mHistogram.length;
+        final ForkJoinTask<?>[] tasks = new ForkJoinTask<?>[parallelism];
+        for (int range = 0; range < parallelism; range++) {
+            final int start = colorCount * range / parallelism;
+            final int end = colorCount * (range + 1) / parallelism;
+            tasks[range] = ForkJoinTask.adapt(
+                    () -> filterHistogram(start, end, shards, new float[3]));
+        }
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    /**
+     * Merges the shard histograms into {@link #mHistogram} and clears the population of the
+     * colors which should be ignored, for the colors between start, inclusive, and end,
+     * exclusive.
+     *
+     * @param shards The number of shard histograms to merge, 1 if there are none.
+     * @param tempHsl Scratch space for the filters, owned by the calling thread.
+     */
+    private void filterHistogram(int start, int end, int shards, float[] tempHsl) {
+        final int[] hist = mHistogram;
+        for (int color = start; color < end; color++) {
+            int population = hist[color];
+            for (int shard = 0; shard < shards - 1; shard++) {
+                population += mShardHistograms[shard][color];
+            }
+            if (population > 0 && shouldIgnoreQuantizedColor(color, tempHsl)) {
+                // If we should ignore the color, set the population to 0
+                population = 0;
+            }
+            hist[color] = population;
+        }
     }
 
     private List<Swatch> quantizePixels(int maxColors) {
-        // Create the priority queue which is sorted by volume descending. This means we always
-        // split the largest box in the queue
-        final PriorityQueue<Vbox> pq = new PriorityQueue<>(maxColors, VBOX_COMPARATOR_VOLUME);
+        // The priority queue is sorted by volume descending. This means we always split the
+        // largest box in the queue
+        final PriorityQueue<Vbox> pq = mQueue;
+        pq.clear();
+        mBoxCount = 0;
 
         // To start, offer a box which contains all of the colors
-        pq.offer(new Vbox(0, mColors.length - 1));
+        pq.offer(obtainBox(0, mColorCount - 1));
 
         // Now go through the boxes, splitting them until we have reached maxColors or there are no
         // more boxes to split
         splitBoxes(pq, maxColors);
 
         // Finally, return the average colors of the color boxes
-        return generateAverageColors(pq);
+        final List<Swatch> swatches = generateAverageColors(pq);
+        pq.clear();
+        return swatches;
+    }
+
+    /**
+     * Returns a box of the current image, reusing one of a previous image if possible.
+     */
+    private Vbox obtainBox(int lowerIndex, int upperIndex) {
+        final Vbox box;
+        if (mBoxCount < mBoxes.size()) {
+            box = mBoxes.get(mBoxCount);
+        } else {
+            box = new Vbox();
+            mBoxes.add(box);
+        }
+        mBoxCount++;
+        box.set(lowerIndex, upperIndex);
+        return box;
     }
 
     /**
@@ -221,7 +457,10 @@ final class ColorCutQuantizer {
         private int mMinGreen, mMaxGreen;
         private int mMinBlue, mMaxBlue;
 
-        Vbox(int lowerIndex, int upperIndex) {
+        /**
+         * Makes this box hold the colors between the given indexes, inclusive.
+         */
+        final void set(int lowerIndex, int upperIndex) {
             mLowerIndex = lowerIndex;
             mUpperIndex = upperIndex;
             fitBox();
@@ -303,7 +542,7 @@ final class ColorCutQuantizer {
             // find median along the longest dimension
             final int splitPoint = findSplitPoint();
 
-            Vbox newBox = new Vbox(splitPoint + 1, mUpperIndex);
+            Vbox newBox = obtainBox(splitPoint + 1, mUpperIndex);
 
             // Now change this box's upperIndex and recompute the color boundaries
             mUpperIndex = splitPoint;
@@ -427,10 +666,10 @@ final class ColorCutQuantizer {
         }
     }
 
-    private boolean shouldIgnoreColor(int color565) {
+    private boolean shouldIgnoreQuantizedColor(int color565, float[] tempHsl) {
         final int rgb = approximateToRgb888(color565);
-        ColorUtils.colorToHSL(rgb, mTempHsl);
-        return shouldIgnoreColor(rgb, mTempHsl);
+        ColorUtils.colorToHSL(rgb, tempHsl);
+        return shouldIgnoreColor(rgb, tempHsl);
     }
 
     private boolean shouldIgnoreColor(Swatch color) {
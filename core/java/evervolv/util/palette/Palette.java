@@ -18,6 +18,7 @@ package evervolv.util.palette;
 
 import android.graphics.Bitmap;
 import android.graphics.Color;
+import android.graphics.Rect;
 import android.os.AsyncTask;
 import android.annotation.ColorInt;
 import android.annotation.Nullable;
@@ -78,6 +79,26 @@ public final class Palette {
         void onGenerated(Palette palette);
     }
 
+    /**
+     * Sampling mode which scales the bitmap down with {@link Bitmap#createScaledBitmap} before
+     * reading its pixels. This is the default.
+     */
+    public static final int SAMPLING_SCALE = 0;
+
+    /**
+     * Sampling mode which reads every n-th pixel of every n-th row of the bitmap, n being the
+     * smallest step making the sampled image fit the resize dimension. No scaled bitmap is
+     * created.
+     */
+    public static final int SAMPLING_STRIDE = 1;
+
+    /**
+     * Sampling mode which averages each n by n block of pixels of the bitmap, n being the
+     * smallest step making the sampled image fit the resize dimension. No scaled bitmap is
+     * created.
+     */
+    public static final int SAMPLING_BOX = 2;
+
     private static final int DEFAULT_RESIZE_BITMAP_MAX_DIMENSION = 192;
     private static final int DEFAULT_CALCULATE_NUMBER_COLORS = 16;
 
@@ -445,6 +466,9 @@ public final class Palette {
         private Bitmap mBitmap;
         private int mMaxColors = DEFAULT_CALCULATE_NUMBER_COLORS;
         private int mResizeMaxDimension = DEFAULT_RESIZE_BITMAP_MAX_DIMENSION;
+        private boolean mParallelQuantization;
+        private int mSamplingMode = SAMPLING_SCALE;
+        private Rect mRegion;
         private final List<Filter> mFilters = new ArrayList<>();
 
         private Generator mGenerator;
@@ -513,6 +537,66 @@ public final class Palette {
             return this;
         }
 
+        /**
+         * Set how the pixels of a {@link android.graphics.Bitmap} source are sampled when it is
+         * larger than {@link #resizeBitmapSize}: {@link #SAMPLING_SCALE},
+         * {@link #SAMPLING_STRIDE} or {@link #SAMPLING_BOX}.
+         * <p>
+         * The stride and box modes read the rows of the bitmap into reused buffers instead of
+         * creating a scaled copy of it, which cuts the memory and time spent on large images.
+         */
+        public Builder samplingMode(int mode) {
+            if (mode != SAMPLING_SCALE && mode != SAMPLING_STRIDE && mode != SAMPLING_BOX) {
+                throw new IllegalArgumentException("Unknown sampling mode " + mode);
+            }
+            mSamplingMode = mode;
+            return this;
+        }
+
+        /**
+         * Set a region of the bitmap to be used exclusively when calculating the palette.
+         * <p>This only works when the original input is a {@link Bitmap}.</p>
+         *
+         * @param left The left side of the rectangle used for the region.
+         * @param top The top of the rectangle used for the region.
+         * @param right The right side of the rectangle used for the region.
+         * @param bottom The bottom of the rectangle used for the region.
+         */
+        public Builder setRegion(int left, int top, int right, int bottom) {
+            if (mBitmap != null) {
+                if (mRegion == null) mRegion = new Rect();
+                // Set the Rect to be initially the whole Bitmap
+                mRegion.set(0, 0, mBitmap.getWidth(), mBitmap.getHeight());
+                // Now just get the intersection with the region
+                if (!mRegion.intersect(left, top, right, bottom)) {
+                    throw new IllegalArgumentException("The given region must intersect with "
+                            + "the Bitmap's dimensions.");
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Clear any previously region set via {@link #setRegion(int, int, int, int)}.
+         */
+        public Builder clearRegion() {
+            mRegion = null;
+            return this;
+        }
+
+        /**
+         * Set whether to quantize the colors of a {@link android.graphics.Bitmap} source on
+         * several threads. The resulting palette is the same either way.
+         * <p>
+         * This only pays off for large images, when {@link #resizeBitmapSize} is well above its
+         * default. When enabled, filters added with {@link #addFilter} must be safe to call from
+         * several threads at once.
+         */
+        public Builder parallelQuantization(boolean parallel) {
+            mParallelQuantization = parallel;
+            return this;
+        }
+
         /**
          * Clear all added filters. This includes any default filters added automatically by
          * {@link Palette}.
@@ -553,27 +637,25 @@ public final class Palette {
                             "Minimum dimension size for resizing should should be >= 1");
                 }
 
-                // First we'll scale down the bitmap so it's largest dimension is as specified
-                final Bitmap scaledBitmap = scaleBitmapDown(mBitmap, mResizeMaxDimension);
-
-                if (logger != null) {
-                    logger.addSplit("Processed Bitmap");
-                }
-
-                // Now generate a quantizer from the Bitmap
-                final int width = scaledBitmap.getWidth();
-                final int height = scaledBitmap.getHeight();
-                final int[] pixels = new int[width * height];
-                scaledBitmap.getPixels(pixels, 0, width, 0, 0, width, height);
-
-                final ColorCutQuantizer quantizer = new ColorCutQuantizer(pixels, mMaxColors,
-                        mFilters.isEmpty() ? null : mFilters.toArray(new Filter[mFilters.size()]));
-
-                // If created a new bitmap, recycle it
-                if (scaledBitmap != mBitmap) {
-                    scaledBitmap.recycle();
+                final ColorCutQuantizer quantizer = ColorCutQuantizer.obtain();
+                try {
+                    // First we'll sample the bitmap so it's largest dimension is as specified
+                    final int pixelCount = mSamplingMode == SAMPLING_SCALE
+                            ? readScaledPixels(quantizer) : samplePixels(quantizer);
+
+                    if (logger != null) {
+                        logger.addSplit("Processed Bitmap");
+                    }
+
+                    // Now quantize the pixels, read into the quantizer's reused buffer
+                    swatches = quantizer.quantize(quantizer.getPixelBuffer(pixelCount),
+                            pixelCount, mMaxColors,
+                            mFilters.isEmpty()
+                                    ? null : mFilters.toArray(new Filter[mFilters.size()]),
+                            mParallelQuantization);
+                } finally {
+                    quantizer.recycle();
                 }
-                swatches = quantizer.getQuantizedColors();
 
                 if (logger != null) {
                     logger.addSplit("Color quantization completed");
@@ -606,6 +688,105 @@ public final class Palette {
             return p;
         }
 
+        /**
+         * Scales the bitmap down, and reads the pixels of the region into the quantizer's pixel
+         * buffer.
+         *
+         * @return the number of pixels read.
+         */
+        private int readScaledPixels(ColorCutQuantizer quantizer) {
+            final Bitmap scaledBitmap = scaleBitmapDown(mBitmap, mResizeMaxDimension);
+            try {
+                int left = 0;
+                int top = 0;
+                int width = scaledBitmap.getWidth();
+                int height = scaledBitmap.getHeight();
+                if (mRegion != null) {
+                    // Scale the region to the scaled bitmap
+                    final double scale = width / (double) mBitmap.getWidth();
+                    left = (int) Math.floor(mRegion.left * scale);
+                    top = (int) Math.floor(mRegion.top * scale);
+                    width = Math.min((int) Math.ceil(mRegion.right * scale), width) - left;
+                    height = Math.min((int) Math.ceil(mRegion.bottom * scale), height) - top;
+                }
+
+                final int[] pixels = quantizer.getPixelBuffer(width * height);
+                scaledBitmap.getPixels(pixels, 0, width, left, top, width, height);
+                return width * height;
+            } finally {
+                // If created a new bitmap, recycle it
+                if (scaledBitmap != mBitmap) {
+                    scaledBitmap.recycle();
+                }
+            }
+        }
+
+        /**
+         * Samples the region of the bitmap a row at a time, with {@link #SAMPLING_STRIDE} or
+         * {@link #SAMPLING_BOX}, into the quantizer's pixel buffer.
+         *
+         * @return the number of pixels sampled.
+         */
+        private int samplePixels(ColorCutQuantizer quantizer) {
+            final Bitmap bitmap = mBitmap;
+            final int left = mRegion != null ? mRegion.left : 0;
+            final int top = mRegion != null ? mRegion.top : 0;
+            final int width = mRegion != null ? mRegion.width() : bitmap.getWidth();
+            final int height = mRegion != null ? mRegion.height() : bitmap.getHeight();
+
+            // The smallest step which makes the largest dimension fit
+            final int maxDimension = Math.max(width, height);
+            final int step = (maxDimension + mResizeMaxDimension - 1) / mResizeMaxDimension;
+            final int sampledWidth = (width + step - 1) / step;
+            final int sampledHeight = (height + step - 1) / step;
+            final int[] pixels = quantizer.getPixelBuffer(sampledWidth * sampledHeight);
+
+            if (step == 1) {
+                // Small enough already, so read the region as-is
+                bitmap.getPixels(pixels, 0, width, left, top, width, height);
+                return width * height;
+            }
+
+            final int[] row = quantizer.getRowBuffer(width);
+            if (mSamplingMode == SAMPLING_STRIDE) {
+                for (int y = 0; y < sampledHeight; y++) {
+                    bitmap.getPixels(row, 0, width, left, top + y * step, width, 1);
+                    final int offset = y * sampledWidth;
+                    for (int x = 0; x < sampledWidth; x++) {
+                        pixels[offset + x] = row[x * step];
+                    }
+                }
+                return sampledWidth * sampledHeight;
+            }
+
+            // Box sampling: sum the red, green and blue components of each block, a row of
+            // blocks at a time. Blocks on the right and bottom edges may be smaller.
+            final long[] sums = quantizer.getSumBuffer(sampledWidth * 3);
+            for (int y = 0; y < sampledHeight; y++) {
+                final int blockTop = top + y * step;
+                final int blockRows = Math.min(step, top + height - blockTop);
+                Arrays.fill(sums, 0, sampledWidth * 3, 0);
+                for (int r = 0; r < blockRows; r++) {
+                    bitmap.getPixels(row, 0, width, left, blockTop + r, width, 1);
+                    for (int x = 0; x < width; x++) {
+                        final int color = row[x];
+                        final int sum = (x / step) * 3;
+                        sums[sum] += Color.red(color);
+                        sums[sum + 1] += Color.green(color);
+                        sums[sum + 2] += Color.blue(color);
+                    }
+                }
+                final int offset = y * sampledWidth;
+                for (int x = 0; x < sampledWidth; x++) {
+                    final long count = (long) blockRows * Math.min(step, width - x * step);
+                    final int sum = x * 3;
+                    pixels[offset + x] = Color.rgb((int) (sums[sum] / count),
+                            (int) (sums[sum + 1] / count), (int) (sums[sum + 2] / count));
+                }
+            }
+            return sampledWidth * sampledHeight;
+        }
+
         /**
          * Generate the {@link Palette} asynchronously. The provided listener's
          * {@link PaletteAsyncListener#onGenerated} method will be called with the palette when
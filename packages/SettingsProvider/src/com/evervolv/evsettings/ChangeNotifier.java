@@ -0,0 +1,185 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.ContentResolver;
+import android.content.Context;
+import android.net.Uri;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.SystemProperties;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Bumps the setting version of a table and notifies observers of changed settings, coalescing
+ * bursts of writes.
+ *
+ * The first change of a table and user is dispatched right away and opens a window. Changes
+ * arriving within the window are collected, and dispatched together with a single version
+ * bump when it ends, which opens the next window. A window without changes closes, so the
+ * last change of a burst is always dispatched, at most one window after it was made.
+ */
+final class ChangeNotifier {
+    private static final String TAG = "ChangeNotifier";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final Context mContext;
+    private final long mWindowMs;
+    private final Handler mHandler;
+
+    private final Object mLock = new Object();
+
+    // Serializes version bumps. Dispatches run both on binder threads and on the handler,
+    // and an increment lost to a racing read-modify-write would leave client caches stale.
+    // Held apart from mLock, so that collecting changes never waits on a property write.
+    private final Object mVersionLock = new Object();
+
+    // Open windows, by table and notified user
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Window> mWindows = new ArrayMap<String, Window>();
+
+    // Statistics, reported by dump()
+    @GuardedBy("mLock")
+    private long mChanges;
+    @GuardedBy("mLock")
+    private long mDispatches;
+
+    /**
+     * @param context The provider's context.
+     * @param windowMs How long changes are collected after a dispatch, 0 to dispatch every
+     *     change on its own.
+     */
+    ChangeNotifier(Context context, long windowMs) {
+        mContext = context;
+        mWindowMs = windowMs;
+        mHandler = BackgroundThread.getHandler();
+    }
+
+    /**
+     * Reports changed settings of a table.
+     * @param uris The uris to notify observers of.
+     * @param tableName The table that changed.
+     * @param notifyTarget The user to notify, or {@link android.os.UserHandle#USER_ALL}.
+     */
+    public void notifyChange(Uri[] uris, String tableName, int notifyTarget) {
+        synchronized (mLock) {
+            mChanges++;
+            if (mWindowMs > 0) {
+                final String key = tableName + "/" + notifyTarget;
+                final Window window = mWindows.get(key);
+                if (window != null) {
+                    window.mUris.addAll(Arrays.asList(uris));
+                    return;
+                }
+                final Window newWindow = new Window(key, tableName, notifyTarget);
+                mWindows.put(key, newWindow);
+                mHandler.postDelayed(newWindow, mWindowMs);
+            }
+            mDispatches++;
+        }
+        dispatch(uris, tableName, notifyTarget);
+    }
+
+    private void dispatch(Uri[] uris, String tableName, int notifyTarget) {
+        final String property = SettingsProvider.getVersionPropertyForTable(tableName);
+        if (property != null) {
+            synchronized (mVersionLock) {
+                final long version = SystemProperties.getLong(property, 0) + 1;
+                if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
+                SystemProperties.set(property, Long.toString(version));
+            }
+        }
+
+        final long oldId = Binder.clearCallingIdentity();
+        try {
+            mContext.getContentResolver().notifyChange(uris, null,
+                    ContentResolver.NOTIFY_SYNC_TO_NETWORK, notifyTarget);
+        } finally {
+            Binder.restoreCallingIdentity(oldId);
+        }
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "notifying for " + notifyTarget + ": " + Arrays.toString(uris));
+        }
+    }
+
+    /**
+     * Drops the windows of a removed user, without dispatching their changes.
+     * @param userId The id of the user that was removed.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            final String suffix = "/" + userId;
+            for (int i = mWindows.size() - 1; i >= 0; i--) {
+                if (mWindows.keyAt(i).endsWith(suffix)) {
+                    mHandler.removeCallbacks(mWindows.valueAt(i));
+                    mWindows.removeAt(i);
+                }
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Change notifier: window=" + mWindowMs + "ms");
+            pw.println("  changes=" + mChanges);
+            pw.println("  dispatches=" + mDispatches);
+            pw.println("  openWindows=" + mWindows.size());
+        }
+    }
+
+    /**
+     * The changes of a table and user collected since the last dispatch.
+     */
+    private final class Window implements Runnable {
+        final String mKey;
+        final String mTableName;
+        final int mNotifyTarget;
+
+        @GuardedBy("mLock")
+        final ArraySet<Uri> mUris = new ArraySet<Uri>();
+
+        Window(String key, String tableName, int notifyTarget) {
+            mKey = key;
+            mTableName = tableName;
+            mNotifyTarget = notifyTarget;
+        }
+
+        @Override
+        public void run() {
+            final Uri[] uris;
+            synchronized (mLock) {
+                if (mUris.isEmpty()) {
+                    mWindows.remove(mKey);
+                    return;
+                }
+                uris = mUris.toArray(new Uri[mUris.size()]);
+                mUris.clear();
+                mDispatches++;
+                mHandler.postDelayed(this, mWindowMs);
+            }
+            dispatch(uris, mTableName, mNotifyTarget);
+        }
+    }
+}
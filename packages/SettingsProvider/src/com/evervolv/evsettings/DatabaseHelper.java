@@ -27,16 +27,21 @@ import android.database.sqlite.SQLiteDoneException;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.os.Environment;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.provider.Settings;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.DisplayMetrics;
 import android.util.Log;
 
+import com.android.internal.annotations.GuardedBy;
+
 import evervolv.provider.EVSettings;
 
 import java.io.File;
+import java.util.Map;
 
 /**
  * The DatabaseHelper allows creation of a database to store Lineage specific settings for a user
@@ -71,14 +76,26 @@ public class DatabaseHelper extends SQLiteOpenHelper{
 
     private Context mContext;
     private int mUserHandle;
-    private String mPublicSrcDir;
+
+    // Default values of each table, resolved from resources on first use. The resources don't
+    // depend on the user, so every database is created from the same copy.
+    @GuardedBy("DatabaseHelper.class")
+    private static ArrayMap<String, ArrayMap<String, String>> sDefaults;
+    @GuardedBy("DatabaseHelper.class")
+    private static long sDefaultsResolveTimeMs;
+
+    // Resources for the prebundled MCC, null if there is none
+    @GuardedBy("DatabaseHelper.class")
+    private static Resources sMccResources;
+    @GuardedBy("DatabaseHelper.class")
+    private static boolean sMccResourcesResolved;
 
     /**
      * Gets the appropriate database path for a specific user
      * @param userId The database path for this user
      * @return The database path string
      */
-    private static String dbNameForUser(Context context, int userId, String baseName) {
+    static String dbNameForUser(Context context, int userId, String baseName) {
         if (userId == UserHandle.USER_SYSTEM) {
             return context.getDatabasePath(baseName).getPath();
         } else {
@@ -99,14 +116,6 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         super(context, dbNameForUser(context, userId, DATABASE_NAME), null, DATABASE_VERSION);
         mContext = context;
         mUserHandle = userId;
-
-        try {
-            String packageName = mContext.getPackageName();
-            mPublicSrcDir = mContext.getPackageManager().getApplicationInfo(packageName, 0)
-                    .publicSourceDir;
-        } catch (PackageManager.NameNotFoundException e) {
-            e.printStackTrace();
-        }
     }
 
     /**
@@ -116,6 +125,7 @@ public class DatabaseHelper extends SQLiteOpenHelper{
      */
     @Override
     public void onCreate(SQLiteDatabase db) {
+        final long start = SystemClock.uptimeMillis();
         db.beginTransaction();
 
         try {
@@ -134,6 +144,11 @@ public class DatabaseHelper extends SQLiteOpenHelper{
         } finally {
             db.endTransaction();
         }
+        synchronized (DatabaseHelper.class) {
+            Log.i(TAG, "Created settings of user " + mUserHandle + " in "
+                    + (SystemClock.uptimeMillis() - start) + "ms, defaults resolved in "
+                    + sDefaultsResolveTimeMs + "ms");
+        }
     }
 
     /**
@@ -141,7 +156,7 @@ public class DatabaseHelper extends SQLiteOpenHelper{
      * @param db The {@link SQLiteDatabase} to create the table and index in.
      * @param tableName The name of the database table to create.
      */
-    private void createDbTable(SQLiteDatabase db, String tableName) {
+    static void createDbTable(SQLiteDatabase db, String tableName) {
         if (LOCAL_LOGV) Log.d(TAG, "Creating table and index for: " + tableName);
 
         String createTableSql = String.format(CREATE_TABLE_SQL_FORMAT, tableName);
@@ -304,161 +319,200 @@ public class DatabaseHelper extends SQLiteOpenHelper{
      * @param db The {@link SQLiteDatabase} to insert into.
      */
     private void loadSettings(SQLiteDatabase db) {
-        loadSystemSettings(db);
-        loadSecureSettings(db);
+        final ArrayMap<String, ArrayMap<String, String>> defaults = getDefaults();
+        loadDefaults(db, TableNames.TABLE_SYSTEM, defaults.get(TableNames.TABLE_SYSTEM));
+        loadDefaults(db, TableNames.TABLE_SECURE, defaults.get(TableNames.TABLE_SECURE));
         // The global table only exists for the 'owner' user
         if (mUserHandle == UserHandle.USER_SYSTEM) {
-            loadGlobalSettings(db);
+            loadDefaults(db, TableNames.TABLE_GLOBAL, defaults.get(TableNames.TABLE_GLOBAL));
         }
     }
 
-    private void loadSecureSettings(SQLiteDatabase db) {
+    /**
+     * Inserts the default values of a table through a single statement. Values already in the
+     * table are kept.
+     */
+    private static void loadDefaults(SQLiteDatabase db, String tableName,
+            ArrayMap<String, String> values) {
+        if (values.isEmpty()) {
+            return;
+        }
         SQLiteStatement stmt = null;
         try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO secure(name,value)"
+            stmt = db.compileStatement("INSERT OR IGNORE INTO " + tableName + "(name,value)"
                     + " VALUES(?,?);");
-            // Secure
-            loadIntegerSetting(stmt, EVSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
-                    R.integer.def_force_show_navbar);
-            loadBooleanSetting(stmt, EVSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
-                    R.bool.def_lockscreen_visualizer);
-            loadBooleanSetting(stmt, EVSettings.Secure.LOCKSCREEN_MEDIA_METADATA,
-                    R.bool.def_lockscreen_media_metadata);
-            loadBooleanSetting(stmt, EVSettings.Secure.VOLUME_PANEL_ON_LEFT,
-                    R.bool.def_volume_panel_on_left);
+            for (int i = 0; i < values.size(); i++) {
+                stmt.bindString(1, values.keyAt(i));
+                stmt.bindString(2, values.valueAt(i));
+                stmt.execute();
+            }
         } finally {
             if (stmt != null) stmt.close();
         }
     }
 
-    private void loadSystemSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO system(name,value)"
-                    + " VALUES(?,?);");
-            // System
-            loadIntegerSetting(stmt, EVSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
-                    R.integer.def_qs_quick_pulldown);
+    /**
+     * Returns the default values of every table, resolving them on first use.
+     */
+    private ArrayMap<String, ArrayMap<String, String>> getDefaults() {
+        synchronized (DatabaseHelper.class) {
+            if (sDefaults == null) {
+                final long start = SystemClock.uptimeMillis();
+                final ArrayMap<String, ArrayMap<String, String>> defaults =
+                        new ArrayMap<String, ArrayMap<String, String>>(3);
+                final ArrayMap<String, String> system = new ArrayMap<String, String>();
+                loadSystemSettings(system);
+                defaults.put(TableNames.TABLE_SYSTEM, system);
+                final ArrayMap<String, String> secure = new ArrayMap<String, String>();
+                loadSecureSettings(secure);
+                defaults.put(TableNames.TABLE_SECURE, secure);
+                final ArrayMap<String, String> global = new ArrayMap<String, String>();
+                loadGlobalSettings(global);
+                defaults.put(TableNames.TABLE_GLOBAL, global);
+                sDefaults = defaults;
+                sDefaultsResolveTimeMs = SystemClock.uptimeMillis() - start;
+            }
+            return sDefaults;
+        }
+    }
 
-            loadIntegerSetting(stmt, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_battery_brightness_level);
+    private void loadSecureSettings(Map<String, String> defaults) {
+        // Secure
+        loadIntegerSetting(defaults, EVSettings.Secure.DEV_FORCE_SHOW_NAVBAR,
+                R.integer.def_force_show_navbar);
+        loadBooleanSetting(defaults, EVSettings.Secure.LOCKSCREEN_VISUALIZER_ENABLED,
+                R.bool.def_lockscreen_visualizer);
+        loadBooleanSetting(defaults, EVSettings.Secure.LOCKSCREEN_MEDIA_METADATA,
+                R.bool.def_lockscreen_media_metadata);
+        loadBooleanSetting(defaults, EVSettings.Secure.VOLUME_PANEL_ON_LEFT,
+                R.bool.def_volume_panel_on_left);
+    }
 
-            loadIntegerSetting(stmt, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_battery_brightness_level_zen);
+    private void loadSystemSettings(Map<String, String> defaults) {
+        // System
+        loadIntegerSetting(defaults, EVSettings.System.STATUS_BAR_QUICK_QS_PULLDOWN,
+                R.integer.def_qs_quick_pulldown);
 
-            loadIntegerSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
-                    R.integer.def_notification_brightness_level);
+        loadIntegerSetting(defaults, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_battery_brightness_level);
 
-            loadIntegerSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
-                    R.integer.def_notification_brightness_level_zen);
+        loadIntegerSetting(defaults, EVSettings.System.BATTERY_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                R.integer.def_battery_brightness_level_zen);
 
-            loadBooleanSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
-                    R.bool.def_notification_pulse_custom_enable);
+        loadIntegerSetting(defaults, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL,
+                R.integer.def_notification_brightness_level);
 
-            if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
-                loadStringSetting(stmt, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
-                        R.string.def_notification_pulse_custom_value);
-            }
+        loadIntegerSetting(defaults, EVSettings.System.NOTIFICATION_LIGHT_BRIGHTNESS_LEVEL_ZEN,
+                R.integer.def_notification_brightness_level_zen);
 
-            loadIntegerSetting(stmt, EVSettings.System.STATUS_BAR_BATTERY_STYLE,
-                    R.integer.def_battery_style);
+        loadBooleanSetting(defaults, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_ENABLE,
+                R.bool.def_notification_pulse_custom_enable);
 
-            loadBooleanSetting(stmt, EVSettings.System.LOCKSCREEN_ROTATION,
-                    R.bool.def_lockscreen_rotation);
-        } finally {
-            if (stmt != null) stmt.close();
+        if (mContext.getResources().getBoolean(R.bool.def_notification_pulse_custom_enable)) {
+            loadStringSetting(defaults, EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES,
+                    R.string.def_notification_pulse_custom_value);
         }
+
+        loadIntegerSetting(defaults, EVSettings.System.STATUS_BAR_BATTERY_STYLE,
+                R.integer.def_battery_style);
+
+        loadBooleanSetting(defaults, EVSettings.System.LOCKSCREEN_ROTATION,
+                R.bool.def_lockscreen_rotation);
     }
 
-    private void loadGlobalSettings(SQLiteDatabase db) {
-        SQLiteStatement stmt = null;
-        try {
-            stmt = db.compileStatement("INSERT OR IGNORE INTO global(name,value)"
-                    + " VALUES(?,?);");
-            // Global
-        } finally {
-            if (stmt != null) stmt.close();
-        }
+    private void loadGlobalSettings(Map<String, String> defaults) {
+        // Global
     }
 
     /**
-     * Loads a region locked string setting into a database table. If the resource for the specific
+     * Loads a region locked string setting into the defaults. If the resource for the specific
      * mcc is not found, the setting is loaded from the default resources.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * @param defaults The default values of the table.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the string resource.
      */
-    private void loadRegionLockedStringSetting(SQLiteStatement stmt, String name, int resId) {
-        String mcc = SystemProperties.get(MCC_PROP_NAME);
-        Resources customResources = null;
+    private void loadRegionLockedStringSetting(Map<String, String> defaults, String name,
+            int resId) {
+        final Resources customResources = getMccResources();
+        String value = customResources == null ? mContext.getResources().getString(resId)
+                : customResources.getString(resId);
+        loadSetting(defaults, name, value);
+    }
 
-        if (!TextUtils.isEmpty(mcc)) {
-            Configuration tempConfiguration = new Configuration();
-            boolean useTempConfig = false;
+    /**
+     * Returns the resources for the prebundled MCC, creating them on first use.
+     * @return The resources, or null if no valid MCC is prebundled.
+     */
+    private Resources getMccResources() {
+        synchronized (DatabaseHelper.class) {
+            if (sMccResourcesResolved) {
+                return sMccResources;
+            }
+            sMccResourcesResolved = true;
 
+            String mcc = SystemProperties.get(MCC_PROP_NAME);
+            if (TextUtils.isEmpty(mcc)) {
+                return null;
+            }
+            Configuration tempConfiguration = new Configuration();
             try {
                 tempConfiguration.mcc = Integer.parseInt(mcc);
-                useTempConfig = true;
             } catch (NumberFormatException e) {
                 // not able to parse mcc, catch exception and exit out of this logic
                 e.printStackTrace();
+                return null;
             }
 
-            if (useTempConfig) {
-                AssetManager assetManager = new AssetManager();
-
-                if (!TextUtils.isEmpty(mPublicSrcDir)) {
-                    assetManager.addAssetPath(mPublicSrcDir);
+            AssetManager assetManager = new AssetManager();
+            try {
+                String packageName = mContext.getPackageName();
+                String publicSrcDir = mContext.getPackageManager()
+                        .getApplicationInfo(packageName, 0).publicSourceDir;
+                if (!TextUtils.isEmpty(publicSrcDir)) {
+                    assetManager.addAssetPath(publicSrcDir);
                 }
-
-                customResources = new Resources(assetManager, new DisplayMetrics(),
-                        tempConfiguration);
+            } catch (PackageManager.NameNotFoundException e) {
+                e.printStackTrace();
             }
+            sMccResources = new Resources(assetManager, new DisplayMetrics(),
+                    tempConfiguration);
+            return sMccResources;
         }
-
-        String value = customResources == null ? mContext.getResources().getString(resId)
-                : customResources.getString(resId);
-        loadSetting(stmt, name, value);
     }
 
     /**
-     * Loads a string resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads a string resource into the defaults.
+     * @param defaults The default values of the table.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the string resource.
      */
-    private void loadStringSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name, mContext.getResources().getString(resId));
+    private void loadStringSetting(Map<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name, mContext.getResources().getString(resId));
     }
 
     /**
-     * Loads a boolean resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads a boolean resource into the defaults.
+     * @param defaults The default values of the table.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the boolean resource.
      */
-    private void loadBooleanSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
+    private void loadBooleanSetting(Map<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name,
                 mContext.getResources().getBoolean(resId) ? "1" : "0");
     }
 
     /**
-     * Loads an integer resource into a database table. If a conflict occurs, that value is not
-     * inserted into the database table.
-     * @param stmt The SQLLiteStatement (transaction) for this setting.
+     * Loads an integer resource into the defaults.
+     * @param defaults The default values of the table.
      * @param name The name of the value to insert into the table.
      * @param resId The name of the integer resource.
      */
-    private void loadIntegerSetting(SQLiteStatement stmt, String name, int resId) {
-        loadSetting(stmt, name,
+    private void loadIntegerSetting(Map<String, String> defaults, String name, int resId) {
+        loadSetting(defaults, name,
                 Integer.toString(mContext.getResources().getInteger(resId)));
     }
 
-    private void loadSetting(SQLiteStatement stmt, String key, Object value) {
-        stmt.bindString(1, key);
-        stmt.bindString(2, value.toString());
-        stmt.execute();
+    private void loadSetting(Map<String, String> defaults, String key, Object value) {
+        defaults.put(key, value.toString());
     }
 }
@@ -0,0 +1,427 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.AtomicFile;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps each settings table of a user in a small binary file, instead of a SQLite database.
+ *
+ * A table file holds a header and every row of the table, and is rewritten as a whole on each
+ * commit through {@link AtomicFile}, which syncs the new file before replacing the old one and
+ * falls back to the previous file if a write was interrupted.
+ *
+ * Tables without a file are migrated from the user's {@link DatabaseHelper} database on open,
+ * which also creates that database with the default settings for a new user. The database is
+ * left in place afterwards, but isn't updated anymore, so it is no backup: if both a table file
+ * and its AtomicFile backup are unreadable, the table is rolled back to the database as it was
+ * at migration, losing every change made since. That is reported with {@link Log#wtf} and
+ * counted in the dump, and the unreadable file is kept aside for inspection.
+ *
+ * Operations taking arbitrary SQL selections run against a throwaway in-memory SQLite copy of
+ * the table, so they behave as they do with the SQLite backend, apart from row ids not being
+ * stable.
+ */
+final class FileSettingsBackend implements SettingsBackend {
+    private static final String TAG = "FileSettingsBackend";
+    private static final boolean LOCAL_LOGV = false;
+
+    private static final String FILE_NAME_FORMAT = "evervolv_%s.bin";
+    private static final String CORRUPT_SUFFIX = ".corrupt";
+    private static final int FILE_MAGIC = 0x45565354;
+    private static final int FILE_VERSION = 1;
+
+    private final Context mContext;
+    private final int mUserId;
+
+    // Persisted rows of each table, which commits are applied to before rewriting its file
+    @GuardedBy("this")
+    private final ArrayMap<String, HashMap<String, String>> mTables =
+            new ArrayMap<String, HashMap<String, String>>();
+
+    @GuardedBy("this")
+    private boolean mOpened;
+
+    // Statistics, reported by dump()
+    @GuardedBy("this")
+    private long mOpenTimeMs = -1;
+    @GuardedBy("this")
+    private int mMigratedTables;
+    @GuardedBy("this")
+    private int mRolledBackTables;
+
+    FileSettingsBackend(Context context, int userId) {
+        mContext = context;
+        mUserId = userId;
+    }
+
+    private String[] getTableNames() {
+        if (mUserId == UserHandle.USER_SYSTEM) {
+            return new String[] { DatabaseHelper.TableNames.TABLE_SYSTEM,
+                    DatabaseHelper.TableNames.TABLE_SECURE,
+                    DatabaseHelper.TableNames.TABLE_GLOBAL };
+        }
+        return new String[] { DatabaseHelper.TableNames.TABLE_SYSTEM,
+                DatabaseHelper.TableNames.TABLE_SECURE };
+    }
+
+    private AtomicFile getFile(String tableName) {
+        return new AtomicFile(new File(DatabaseHelper.dbNameForUser(mContext, mUserId,
+                String.format(FILE_NAME_FORMAT, tableName))));
+    }
+
+    @Override
+    public synchronized void open() {
+        if (mOpened) {
+            return;
+        }
+
+        final long start = SystemClock.uptimeMillis();
+        final ArraySet<String> toMigrate = new ArraySet<String>();
+        for (String tableName : getTableNames()) {
+            final AtomicFile file = getFile(tableName);
+            if (!file.exists()) {
+                toMigrate.add(tableName);
+                continue;
+            }
+            try {
+                mTables.put(tableName, readTable(file));
+            } catch (IOException e) {
+                // Both the file and its backup are unusable. The database is the only other
+                // copy, and it stopped being updated when the table was migrated.
+                Log.wtf(TAG, "Failed to read " + file.getBaseFile() + ", rolling "
+                        + tableName + " of user " + mUserId + " back to its database", e);
+                moveAside(file);
+                toMigrate.add(tableName);
+                mRolledBackTables++;
+            }
+        }
+        if (!toMigrate.isEmpty()) {
+            migrateFromDatabase(toMigrate);
+        }
+        mOpened = true;
+
+        if (mOpenTimeMs < 0) {
+            mOpenTimeMs = SystemClock.uptimeMillis() - start;
+        }
+        if (LOCAL_LOGV) Log.v(TAG, "Opened settings of user " + mUserId + " in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Keeps an unreadable table file for inspection, replacing any kept before.
+     */
+    private static void moveAside(AtomicFile file) {
+        final File base = file.getBaseFile();
+        final File corrupt = new File(base.getPath() + CORRUPT_SUFFIX);
+        if (!base.renameTo(corrupt)) {
+            Log.w(TAG, "Failed to move " + base + " aside");
+        }
+    }
+
+    @GuardedBy("this")
+    private void migrateFromDatabase(ArraySet<String> tableNames) {
+        final DatabaseHelper dbHelper = new DatabaseHelper(mContext, mUserId);
+        try {
+            final SQLiteDatabase db = dbHelper.getReadableDatabase();
+            for (int i = 0; i < tableNames.size(); i++) {
+                final String tableName = tableNames.valueAt(i);
+                final HashMap<String, String> rows = new HashMap<String, String>();
+                SqliteSettingsBackend.readRows(db, tableName, rows);
+                mTables.put(tableName, rows);
+                try {
+                    writeTable(getFile(tableName), rows);
+                    mMigratedTables++;
+                } catch (IOException e) {
+                    // Served from memory for now, and migrated again on the next open.
+                    Log.e(TAG, "Failed to migrate " + tableName + " of user " + mUserId, e);
+                }
+            }
+        } finally {
+            dbHelper.close();
+        }
+    }
+
+    private static HashMap<String, String> readTable(AtomicFile file) throws IOException {
+        final DataInputStream in = new DataInputStream(
+                new BufferedInputStream(file.openRead()));
+        try {
+            if (in.readInt() != FILE_MAGIC) {
+                throw new IOException("Bad magic");
+            }
+            final int version = in.readInt();
+            if (version != FILE_VERSION) {
+                throw new IOException("Unknown version " + version);
+            }
+            final int count = in.readInt();
+            final HashMap<String, String> rows = new HashMap<String, String>(count * 2);
+            for (int i = 0; i < count; i++) {
+                final String name = readString(in);
+                rows.put(name, readString(in));
+            }
+            return rows;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void writeTable(AtomicFile file, Map<String, String> rows)
+            throws IOException {
+        FileOutputStream stream = null;
+        try {
+            stream = file.startWrite();
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeInt(rows.size());
+            for (Map.Entry<String, String> row : rows.entrySet()) {
+                writeString(out, row.getKey());
+                writeString(out, row.getValue());
+            }
+            out.flush();
+            file.finishWrite(stream);
+        } catch (IOException e) {
+            if (stream != null) {
+                file.failWrite(stream);
+            }
+            throw e;
+        }
+    }
+
+    // Strings are written as their UTF-8 length and bytes, -1 standing for null, since
+    // DataOutputStream.writeUTF() can't handle values over 64KB.
+    static String readString(DataInputStream in) throws IOException {
+        return readString(in, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads a string whose encoded length is checked against a limit before its bytes are
+     * allocated, for streams that aren't trusted.
+     * @throws IOException if the length is over the limit.
+     */
+    static String readString(DataInputStream in, int maxLength) throws IOException {
+        final int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > maxLength) {
+            throw new IOException("String of " + length + " bytes over the limit of "
+                    + maxLength);
+        }
+        final byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    @Override
+    public synchronized void load(String tableName, Map<String, String> rows) {
+        open();
+        final HashMap<String, String> table = mTables.get(tableName);
+        if (table != null) {
+            rows.putAll(table);
+        }
+    }
+
+    @Override
+    public synchronized void commit(ArrayMap<String, SettingsWriter.TableChanges> changes)
+            throws IOException {
+        open();
+        IOException failure = null;
+        for (int i = 0; i < changes.size(); i++) {
+            final String tableName = changes.keyAt(i);
+            final HashMap<String, String> table = mTables.get(tableName);
+            if (table == null) {
+                continue;
+            }
+            final SettingsWriter.TableChanges tableChanges = changes.valueAt(i);
+            table.keySet().removeAll(tableChanges.mDeletes);
+            table.putAll(tableChanges.mPuts);
+            try {
+                writeTable(getFile(tableName), table);
+            } catch (IOException e) {
+                // Keep writing the other tables, this one is written again with its next
+                // commit.
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Creates an in-memory SQLite database holding a copy of a table.
+     */
+    @GuardedBy("this")
+    private SQLiteDatabase createScratchDatabase(String tableName) {
+        final SQLiteDatabase db = SQLiteDatabase.create(null);
+        DatabaseHelper.createDbTable(db, tableName);
+        final HashMap<String, String> table = mTables.get(tableName);
+        if (table != null) {
+            final ContentValues row = new ContentValues(2);
+            db.beginTransaction();
+            try {
+                for (Map.Entry<String, String> entry : table.entrySet()) {
+                    row.put(Settings.NameValueTable.NAME, entry.getKey());
+                    row.put(Settings.NameValueTable.VALUE, entry.getValue());
+                    db.insert(tableName, null, row);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        }
+        return db;
+    }
+
+    @Override
+    public synchronized Cursor query(String tableName, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        open();
+        final SQLiteDatabase db = createScratchDatabase(tableName);
+        try {
+            final Cursor cursor = db.query(tableName, projection, selection, selectionArgs,
+                    null, null, sortOrder);
+            try {
+                // Copy the rows out, the scratch database is closed before returning.
+                final MatrixCursor result = new MatrixCursor(cursor.getColumnNames(),
+                        cursor.getCount());
+                final Object[] row = new Object[cursor.getColumnCount()];
+                while (cursor.moveToNext()) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = cursor.getType(i) == Cursor.FIELD_TYPE_INTEGER
+                                ? (Object) cursor.getLong(i) : cursor.getString(i);
+                    }
+                    result.addRow(row);
+                }
+                return result;
+            } finally {
+                cursor.close();
+            }
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public synchronized int update(String tableName, ContentValues values, String selection,
+            String[] selectionArgs) {
+        open();
+        final SQLiteDatabase db = createScratchDatabase(tableName);
+        try {
+            final int count = db.update(tableName, values, selection, selectionArgs);
+            if (count > 0) {
+                replaceTable(db, tableName);
+            }
+            return count;
+        } finally {
+            db.close();
+        }
+    }
+
+    @Override
+    public synchronized int delete(String tableName, String selection, String[] selectionArgs) {
+        open();
+        final SQLiteDatabase db = createScratchDatabase(tableName);
+        try {
+            final int count = db.delete(tableName, selection, selectionArgs);
+            if (count > 0) {
+                replaceTable(db, tableName);
+            }
+            return count;
+        } finally {
+            db.close();
+        }
+    }
+
+    /**
+     * Takes the rows of a table back from its scratch copy and persists them.
+     */
+    @GuardedBy("this")
+    private void replaceTable(SQLiteDatabase db, String tableName) {
+        final HashMap<String, String> rows = new HashMap<String, String>();
+        SqliteSettingsBackend.readRows(db, tableName, rows);
+        mTables.put(tableName, rows);
+        try {
+            writeTable(getFile(tableName), rows);
+        } catch (IOException e) {
+            Log.e(TAG, "Failed to write " + tableName + " of user " + mUserId, e);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        mTables.clear();
+        mOpened = false;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpened;
+    }
+
+    @Override
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix + "file openTimeMs=" + mOpenTimeMs + " migratedTables="
+                + mMigratedTables + " rolledBackTables=" + mRolledBackTables
+                + (mOpened ? " open" : " closed"));
+        long copyBytes = 0;
+        for (int i = 0; i < mTables.size(); i++) {
+            copyBytes += SettingsStore.estimateSize(mTables.valueAt(i));
+        }
+        pw.print(" copyBytes~" + copyBytes);
+        for (String tableName : getTableNames()) {
+            pw.print(" " + tableName + "=" + getFile(tableName).getBaseFile().length());
+        }
+        pw.println();
+    }
+}
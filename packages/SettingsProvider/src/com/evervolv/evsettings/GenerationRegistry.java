@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.os.Bundle;
+import android.util.ArrayMap;
+import android.util.Log;
+import android.util.MemoryIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import evervolv.provider.EVSettings;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Keeps per-key generation counters for each table and user in shared memory. Clients map the
+ * same {@link MemoryIntArray} read-only and compare the counter of a key's bucket against the
+ * one they cached the value with, so a write only invalidates the keys sharing its bucket
+ * instead of a client's whole table.
+ */
+final class GenerationRegistry {
+    private static final String TAG = "GenerationRegistry";
+    private static final boolean LOCAL_LOGV = false;
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, MemoryIntArray> mBackingStores =
+            new ArrayMap<String, MemoryIntArray>();
+
+    private static String getKey(String tableName, int userId) {
+        return tableName + "/" + userId;
+    }
+
+    @GuardedBy("mLock")
+    private MemoryIntArray getBackingStoreLocked(String tableName, int userId,
+            boolean createIfNotExist) {
+        final String key = getKey(tableName, userId);
+        MemoryIntArray backingStore = mBackingStores.get(key);
+        if (backingStore == null && createIfNotExist) {
+            try {
+                backingStore = new MemoryIntArray(EVSettings.GENERATION_BUCKET_COUNT);
+                mBackingStores.put(key, backingStore);
+                if (LOCAL_LOGV) Log.v(TAG, "Created backing store for " + key);
+            } catch (IOException e) {
+                Log.e(TAG, "Error creating generation tracker for " + key, e);
+            }
+        }
+        return backingStore;
+    }
+
+    /**
+     * Bumps the generation of the bucket holding a setting.
+     * @param tableName The table that was written.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param name The name of the setting that changed.
+     */
+    public void incrementGeneration(String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked(tableName, userId, false);
+            if (backingStore == null) {
+                // No client is tracking this table yet, nothing to invalidate.
+                return;
+            }
+            incrementBucketLocked(backingStore, EVSettings.getGenerationBucket(name));
+        }
+    }
+
+    /**
+     * Bumps the generations of the buckets holding several settings, each bucket once.
+     * @param tableName The table that was written.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param names The names of the settings that changed.
+     * @param count The number of names to use, from the start of the array.
+     */
+    public void incrementGenerations(String tableName, int userId, String[] names, int count) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked(tableName, userId, false);
+            if (backingStore == null) {
+                return;
+            }
+            final boolean[] bumped = new boolean[EVSettings.GENERATION_BUCKET_COUNT];
+            for (int i = 0; i < count; i++) {
+                final int bucket = EVSettings.getGenerationBucket(names[i]);
+                if (!bumped[bucket]) {
+                    bumped[bucket] = true;
+                    incrementBucketLocked(backingStore, bucket);
+                }
+            }
+        }
+    }
+
+    /**
+     * Bumps every bucket of a table, for writes whose affected keys aren't known.
+     * @param tableName The table that was written.
+     * @param userId The user owning the table, as resolved for that table.
+     */
+    public void incrementAllGenerations(String tableName, int userId) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked(tableName, userId, false);
+            if (backingStore == null) {
+                return;
+            }
+            for (int i = 0; i < EVSettings.GENERATION_BUCKET_COUNT; i++) {
+                incrementBucketLocked(backingStore, i);
+            }
+        }
+    }
+
+    @GuardedBy("mLock")
+    private void incrementBucketLocked(MemoryIntArray backingStore, int bucket) {
+        try {
+            backingStore.set(bucket, backingStore.get(bucket) + 1);
+        } catch (IOException e) {
+            Log.e(TAG, "Error updating generation tracker", e);
+        }
+    }
+
+    /**
+     * Reads the current generation of every bucket of a table.
+     * @param tableName The table being read.
+     * @param userId The user owning the table, as resolved for that table.
+     * @return The bucket generations, all zero if nobody tracks the table yet.
+     */
+    public int[] getGenerations(String tableName, int userId) {
+        final int[] generations = new int[EVSettings.GENERATION_BUCKET_COUNT];
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked(tableName, userId, false);
+            if (backingStore == null) {
+                return generations;
+            }
+            try {
+                for (int i = 0; i < generations.length; i++) {
+                    generations[i] = backingStore.get(i);
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation tracker", e);
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * Adds the shared generation array for a table to a call() result, creating it on first
+     * use. When a setting name is given, its current bucket generation is added as well.
+     * @param result The Bundle returned to the client.
+     * @param tableName The table being read.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param name The setting being read, or null.
+     */
+    public void addGenerationData(Bundle result, String tableName, int userId, String name) {
+        synchronized (mLock) {
+            final MemoryIntArray backingStore = getBackingStoreLocked(tableName, userId, true);
+            if (backingStore == null) {
+                return;
+            }
+            try {
+                if (name != null) {
+                    result.putInt(EVSettings.CALL_METHOD_KEY_GENERATION_KEY,
+                            backingStore.get(EVSettings.getGenerationBucket(name)));
+                }
+                result.putParcelable(EVSettings.CALL_METHOD_GENERATION_TRACKER_KEY,
+                        backingStore);
+            } catch (IOException e) {
+                Log.e(TAG, "Error reading generation tracker", e);
+            }
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Generation trackers: " + mBackingStores.size());
+            for (int i = 0; i < mBackingStores.size(); i++) {
+                pw.println("  " + mBackingStores.keyAt(i));
+            }
+        }
+    }
+
+    /**
+     * Drops the generation arrays of a removed user. Clients still mapping them keep their
+     * copy until they drop their own cache.
+     * @param userId The id of the user that was removed.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            final String suffix = "/" + userId;
+            for (int i = mBackingStores.size() - 1; i >= 0; i--) {
+                if (mBackingStores.keyAt(i).endsWith(suffix)) {
+                    try {
+                        mBackingStores.valueAt(i).close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error closing generation tracker", e);
+                    }
+                    mBackingStores.removeAt(i);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.util.ArrayMap;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Persists the settings tables of one user. The provider serves reads from memory, so a
+ * backend is only asked to load a table, to commit queued writes, and to run the rare
+ * operations taking arbitrary SQL selections.
+ */
+interface SettingsBackend {
+    /**
+     * Opens the backend, creating the tables with their default values if needed. Calling it
+     * again once open does nothing.
+     */
+    void open();
+
+    /**
+     * Adds every row of a table to the given map. Tables the user doesn't have add nothing.
+     */
+    void load(String tableName, Map<String, String> rows);
+
+    /**
+     * Persists a batch of writes.
+     * @param changes The writes, by table name.
+     * @throws IOException if the batch could not be persisted.
+     */
+    void commit(ArrayMap<String, SettingsWriter.TableChanges> changes) throws IOException;
+
+    Cursor query(String tableName, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder);
+
+    int update(String tableName, ContentValues values, String selection,
+            String[] selectionArgs);
+
+    int delete(String tableName, String selection, String[] selectionArgs);
+
+    /**
+     * Releases the resources held by the backend. Any later operation opens it again, so this
+     * can be called while writes are still queued for it.
+     */
+    void close();
+
+    /**
+     * @return Whether the backend currently holds its resources.
+     */
+    boolean isOpen();
+
+    void dump(PrintWriter pw, String prefix);
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.util.ArrayMap;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * Reads and writes settings backups.
+ *
+ * A backup is a stream holding a magic number and a version, then a section per table: the
+ * table name, the number of rows and the rows as name/value pairs. A null table name ends the
+ * stream. Strings are encoded as in {@link FileSettingsBackend}. A backup is written a table at
+ * a time, and read in one pass.
+ */
+final class SettingsBackup {
+    private static final int BACKUP_MAGIC = 0x45565342;
+    private static final int BACKUP_VERSION = 1;
+
+    // Limits on what a backup may hold, checked before anything is allocated for it: the
+    // number of rows across all tables, the encoded length of any one string, and the
+    // encoded length of all strings together.
+    private static final int MAX_ROWS = 16 * 1024;
+    private static final int MAX_STRING_BYTES = 1024 * 1024;
+    private static final int MAX_TOTAL_STRING_BYTES = 16 * 1024 * 1024;
+
+    /**
+     * Writes the sections of a backup, in the order they are added.
+     */
+    static final class Writer {
+        private final DataOutputStream mOut;
+
+        Writer(OutputStream stream) throws IOException {
+            mOut = new DataOutputStream(new BufferedOutputStream(stream));
+            mOut.writeInt(BACKUP_MAGIC);
+            mOut.writeInt(BACKUP_VERSION);
+        }
+
+        /**
+         * Writes a table.
+         * @param tableName The name of the table.
+         * @param names The names of its settings.
+         * @param values Their values, parallel to the names.
+         */
+        void writeTable(String tableName, List<String> names, List<String> values)
+                throws IOException {
+            FileSettingsBackend.writeString(mOut, tableName);
+            mOut.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                FileSettingsBackend.writeString(mOut, names.get(i));
+                FileSettingsBackend.writeString(mOut, values.get(i));
+            }
+        }
+
+        /**
+         * Ends the backup and flushes it to the stream, which is left open.
+         */
+        void finish() throws IOException {
+            FileSettingsBackend.writeString(mOut, null);
+            mOut.flush();
+        }
+    }
+
+    /**
+     * Reads a backup. A table appearing more than once is merged, later rows replacing
+     * earlier ones.
+     * @return The settings, by table and name.
+     * @throws IOException if the stream can't be read, doesn't hold a backup this version
+     *     understands or holds more than a backup may.
+     */
+    static ArrayMap<String, ArrayMap<String, String>> read(InputStream stream)
+            throws IOException {
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        if (in.readInt() != BACKUP_MAGIC) {
+            throw new IOException("Bad magic");
+        }
+        final int version = in.readInt();
+        if (version != BACKUP_VERSION) {
+            throw new IOException("Unknown version " + version);
+        }
+
+        final ArrayMap<String, ArrayMap<String, String>> rows =
+                new ArrayMap<String, ArrayMap<String, String>>(3);
+        final Budget budget = new Budget();
+        String tableName;
+        while ((tableName = budget.readString(in)) != null) {
+            final int count = in.readInt();
+            if (count < 0 || count > budget.mRows) {
+                throw new IOException("Bad row count " + count + " for " + tableName);
+            }
+            budget.mRows -= count;
+            ArrayMap<String, String> tableRows = rows.get(tableName);
+            if (tableRows == null) {
+                tableRows = new ArrayMap<String, String>();
+                rows.put(tableName, tableRows);
+            }
+            for (int i = 0; i < count; i++) {
+                final String name = budget.readString(in);
+                final String value = budget.readString(in);
+                if (name == null) {
+                    throw new IOException("Null setting name in " + tableName);
+                }
+                tableRows.put(name, value);
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * What is left of the limits while a backup is read.
+     */
+    private static final class Budget {
+        int mRows = MAX_ROWS;
+        int mStringBytes = MAX_TOTAL_STRING_BYTES;
+
+        String readString(DataInputStream in) throws IOException {
+            final String value = FileSettingsBackend.readString(in,
+                    Math.min(MAX_STRING_BYTES, mStringBytes));
+            if (value != null) {
+                // The encoded length, as checked against the limit
+                mStringBytes -= value.getBytes(StandardCharsets.UTF_8).length;
+            }
+            return value;
+        }
+    }
+
+    private SettingsBackup() {
+    }
+}
@@ -30,26 +30,51 @@ import android.content.UriMatcher;
 import android.content.pm.PackageManager;
 import android.content.pm.UserInfo;
 import android.database.Cursor;
-import android.database.sqlite.SQLiteDatabase;
-import android.database.sqlite.SQLiteException;
-import android.database.sqlite.SQLiteQueryBuilder;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.ParcelFileDescriptor;
+import android.os.Process;
+import android.os.SharedMemory;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructPollfd;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseLongArray;
+
+import com.android.internal.annotations.VisibleForTesting;
+import com.android.internal.os.BackgroundThread;
 
 import evervolv.os.Build;
 import evervolv.provider.EVSettings;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.regex.Pattern;
+import java.util.stream.IntStream;
 
 /**
  * The SettingsProvider serves as a {@link ContentProvider} for Evervolv specific settings
@@ -62,8 +87,118 @@ public class SettingsProvider extends ContentProvider {
 
     private static final Bundle NULL_SETTING = Bundle.forPair("value", null);
 
+    // How long writes are held in memory before being committed to disk, so that bursts of
+    // writes share one transaction. A delay of 0 commits every write before it returns.
+    private static final String PROPERTY_WRITE_DELAY = "persist.sys.evsettings.write_delay_ms";
+    private static final long DEFAULT_WRITE_DELAY_MS = 200;
+
+    // Storage of the tables: "sqlite", the default, or "file" for FileSettingsBackend. Going
+    // back from "file" to "sqlite" loses the writes made since the tables were migrated.
+    private static final String PROPERTY_STORAGE = "ro.evsettings.storage";
+    private static final String STORAGE_FILE = "file";
+
+    // How long change notifications following a dispatched one are collected into one
+    // dispatch, per table and user. A window of 0 dispatches every change on its own.
+    private static final String PROPERTY_NOTIFY_WINDOW = "persist.sys.evsettings.notify_window_ms";
+    private static final long DEFAULT_NOTIFY_WINDOW_MS = 100;
+
+    // How long the backend of a background user stays open after its last use. Reads are served
+    // from memory, so a user that isn't written to doesn't need its database connection. A
+    // timeout of 0 keeps every backend open until its user is removed.
+    private static final String PROPERTY_IDLE_TIMEOUT = "persist.sys.evsettings.idle_timeout_ms";
+    private static final long DEFAULT_IDLE_TIMEOUT_MS = 5 * 60 * 1000;
+
+    // Pages of CALL_METHOD_EXPORT_* larger than this, in UTF-16 bytes of names and values, are
+    // returned in shared memory rather than in the reply parcel.
+    private static final int EXPORT_BLOB_THRESHOLD_BYTES = 64 * 1024;
+
+    // Tables with at least this many settings to migrate or restore are validated in parallel.
+    // Below it, handing the rows to other threads costs more than validating them.
+    private static final int PARALLEL_VALIDATION_MIN_ROWS = 256;
+
+    // Set once the settings of every existing user have been migrated
+    private static final String PREF_HAS_MIGRATED_SETTINGS = "has_migrated_settings";
+
     // Each defined user has their own settings
-    protected final SparseArray<DatabaseHelper> mDbHelpers = new SparseArray<DatabaseHelper>();
+    protected final SparseArray<SettingsBackend> mBackends = new SparseArray<SettingsBackend>();
+
+    // Uptime of the last use of each backend, guarded by this like mBackends
+    private final SparseLongArray mBackendLastUse = new SparseLongArray();
+
+    private long mIdleTimeoutMs;
+    private Handler mIdleHandler;
+    private final Runnable mCloseIdleBackends = this::closeIdleBackends;
+
+    // Guarded by this
+    private boolean mIdleCheckScheduled;
+    private long mClosedIdleBackends;
+
+    // Migration statistics, reported by dump(). Guarded by this.
+    private int mMigratedUsers;
+    private long mMigratedRows;
+    private long mSkippedMigrationRows;
+    private long mMigrationTimeMs;
+
+    // Backups are written on their own thread, created on first use and guarded by this, so
+    // that a caller that doesn't drain its pipe can't hold a binder thread. A backup whose
+    // file accepts nothing for BACKUP_WRITE_TIMEOUT_MS is abandoned.
+    private static final long BACKUP_WRITE_TIMEOUT_MS = 30 * 1000;
+    // A pipe reported writable takes this many bytes without blocking (PIPE_BUF)
+    private static final int BACKUP_WRITE_CHUNK = 4096;
+    private Handler mBackupHandler;
+
+    // Backup and restore statistics, reported by dump(). Guarded by this.
+    private int mBackups;
+    private int mFailedBackups;
+    private int mRestoredUsers;
+    private long mRestoredRows;
+    private long mSkippedRestoreRows;
+    private long mRestoreTimeMs;
+
+    // Per-key generations shared with the EVSettings client caches
+    private final GenerationRegistry mGenerationRegistry = new GenerationRegistry();
+
+    // In-memory copy of the tables, serving reads without SQLite
+    private final SettingsStore mSettingsStore = new SettingsStore();
+
+    // Persists the writes applied to mSettingsStore
+    private SettingsWriter mSettingsWriter;
+
+    // Bumps the setting versions and notifies observers of writes
+    private ChangeNotifier mChangeNotifier;
+
+    // Number of call() requests per method, reported by dump(). Only the known methods are
+    // counted, so the map is never modified after construction.
+    private final ArrayMap<String, LongAdder> mCallCounts = createCallCounts();
+
+    private static ArrayMap<String, LongAdder> createCallCounts() {
+        final String[] methods = new String[] {
+                EVSettings.CALL_METHOD_GET_SYSTEM, EVSettings.CALL_METHOD_GET_SECURE,
+                EVSettings.CALL_METHOD_GET_GLOBAL, EVSettings.CALL_METHOD_GET_ALL_SYSTEM,
+                EVSettings.CALL_METHOD_GET_ALL_SECURE, EVSettings.CALL_METHOD_GET_ALL_GLOBAL,
+                EVSettings.CALL_METHOD_GET_CHANGES_SYSTEM,
+                EVSettings.CALL_METHOD_GET_CHANGES_SECURE,
+                EVSettings.CALL_METHOD_GET_CHANGES_GLOBAL,
+                EVSettings.CALL_METHOD_PUT_SYSTEM, EVSettings.CALL_METHOD_PUT_SECURE,
+                EVSettings.CALL_METHOD_PUT_GLOBAL, EVSettings.CALL_METHOD_PUT_BATCH_SYSTEM,
+                EVSettings.CALL_METHOD_PUT_BATCH_SECURE, EVSettings.CALL_METHOD_PUT_BATCH_GLOBAL,
+                EVSettings.CALL_METHOD_UPSERT_SYSTEM, EVSettings.CALL_METHOD_UPSERT_SECURE,
+                EVSettings.CALL_METHOD_UPSERT_GLOBAL,
+                EVSettings.CALL_METHOD_LIST_SYSTEM, EVSettings.CALL_METHOD_LIST_SECURE,
+                EVSettings.CALL_METHOD_LIST_GLOBAL, EVSettings.CALL_METHOD_DELETE_SYSTEM,
+                EVSettings.CALL_METHOD_DELETE_SECURE, EVSettings.CALL_METHOD_DELETE_GLOBAL,
+                EVSettings.CALL_METHOD_EXPORT_SYSTEM, EVSettings.CALL_METHOD_EXPORT_SECURE,
+                EVSettings.CALL_METHOD_EXPORT_GLOBAL,
+                EVSettings.CALL_METHOD_MIGRATE_SETTINGS,
+                EVSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER,
+                EVSettings.CALL_METHOD_BACKUP_SETTINGS, EVSettings.CALL_METHOD_RESTORE_SETTINGS };
+        final ArrayMap<String, LongAdder> callCounts =
+                new ArrayMap<String, LongAdder>(methods.length);
+        for (String method : methods) {
+            callCounts.put(method, new LongAdder());
+        }
+        return callCounts;
+    }
 
     private static final int SYSTEM = 1;
     private static final int SECURE = 2;
@@ -107,6 +242,13 @@ public class SettingsProvider extends ContentProvider {
         if (LOCAL_LOGV) Log.d(TAG, "Creating SettingsProvider");
 
         mUserManager = UserManager.get(getContext());
+        mSettingsWriter = new SettingsWriter(
+                SystemProperties.getLong(PROPERTY_WRITE_DELAY, DEFAULT_WRITE_DELAY_MS));
+        mChangeNotifier = new ChangeNotifier(getContext(),
+                SystemProperties.getLong(PROPERTY_NOTIFY_WINDOW, DEFAULT_NOTIFY_WINDOW_MS));
+        mIdleTimeoutMs = SystemProperties.getLong(PROPERTY_IDLE_TIMEOUT,
+                DEFAULT_IDLE_TIMEOUT_MS);
+        mIdleHandler = BackgroundThread.getHandler();
 
         establishDbTracking(UserHandle.USER_SYSTEM);
 
@@ -118,6 +260,8 @@ public class SettingsProvider extends ContentProvider {
 
         IntentFilter userFilter = new IntentFilter();
         userFilter.addAction(Intent.ACTION_USER_REMOVED);
+        userFilter.addAction(Intent.ACTION_USER_STOPPED);
+        userFilter.addAction(Intent.ACTION_SHUTDOWN);
         getContext().registerReceiver(new BroadcastReceiver() {
             @Override
             public void onReceive(Context context, Intent intent) {
@@ -129,6 +273,10 @@ public class SettingsProvider extends ContentProvider {
 
                 if (action.equals(Intent.ACTION_USER_REMOVED)) {
                     onUserRemoved(userId);
+                } else if (action.equals(Intent.ACTION_USER_STOPPED)) {
+                    mSettingsWriter.flush(userId);
+                } else if (action.equals(Intent.ACTION_SHUTDOWN)) {
+                    mSettingsWriter.flushAll();
                 }
             }
         }, userFilter);
@@ -145,7 +293,12 @@ public class SettingsProvider extends ContentProvider {
             // the db file itself will be deleted automatically, but we need to tear down
             // our helpers and other internal bookkeeping.
 
-            mDbHelpers.delete(userId);
+            mBackends.delete(userId);
+            mBackendLastUse.delete(userId);
+            mGenerationRegistry.onUserRemoved(userId);
+            mSettingsStore.onUserRemoved(userId);
+            mSettingsWriter.onUserRemoved(userId);
+            mChangeNotifier.onUserRemoved(userId);
 
             if (LOCAL_LOGV) Log.d(TAG, "User " + userId + " is removed");
         }
@@ -157,6 +310,11 @@ public class SettingsProvider extends ContentProvider {
     public Bundle call(String method, String request, Bundle args) {
         if (LOCAL_LOGV) Log.d(TAG, "Call method: " + method + " " + request);
 
+        final LongAdder callCount = mCallCounts.get(method);
+        if (callCount != null) {
+            callCount.increment();
+        }
+
         int callingUserId = UserHandle.getCallingUserId();
         if (args != null) {
             int reqUser = args.getInt(EVSettings.CALL_METHOD_USER_KEY, callingUserId);
@@ -172,13 +330,29 @@ public class SettingsProvider extends ContentProvider {
             // Get methods
             case EVSettings.CALL_METHOD_GET_SYSTEM:
                 return lookupSingleValue(callingUserId, EVSettings.System.CONTENT_URI,
-                        request);
+                        request, args);
             case EVSettings.CALL_METHOD_GET_SECURE:
                 return lookupSingleValue(callingUserId, EVSettings.Secure.CONTENT_URI,
-                        request);
+                        request, args);
             case EVSettings.CALL_METHOD_GET_GLOBAL:
                 return lookupSingleValue(callingUserId, EVSettings.Global.CONTENT_URI,
-                        request);
+                        request, args);
+
+            // Get all methods
+            case EVSettings.CALL_METHOD_GET_ALL_SYSTEM:
+                return callHelperGetAll(callingUserId, EVSettings.System.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_GET_ALL_SECURE:
+                return callHelperGetAll(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_GET_ALL_GLOBAL:
+                return callHelperGetAll(callingUserId, EVSettings.Global.CONTENT_URI, args);
+
+            // Get changes methods
+            case EVSettings.CALL_METHOD_GET_CHANGES_SYSTEM:
+                return callHelperGetChanges(callingUserId, EVSettings.System.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_GET_CHANGES_SECURE:
+                return callHelperGetChanges(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_GET_CHANGES_GLOBAL:
+                return callHelperGetChanges(callingUserId, EVSettings.Global.CONTENT_URI, args);
 
             // Put methods
             case EVSettings.CALL_METHOD_PUT_SYSTEM:
@@ -196,6 +370,35 @@ public class SettingsProvider extends ContentProvider {
                 callHelperPut(callingUserId, EVSettings.Global.CONTENT_URI, request, args);
                 return null;
 
+            // Batched put methods
+            case EVSettings.CALL_METHOD_PUT_BATCH_SYSTEM:
+                enforceWritePermission(evervolv.platform.Manifest.permission.WRITE_SETTINGS);
+                callHelperPutBatch(callingUserId, EVSettings.System.CONTENT_URI, args);
+                return null;
+            case EVSettings.CALL_METHOD_PUT_BATCH_SECURE:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutBatch(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+                return null;
+            case EVSettings.CALL_METHOD_PUT_BATCH_GLOBAL:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                callHelperPutBatch(callingUserId, EVSettings.Global.CONTENT_URI, args);
+                return null;
+
+            // Upsert methods
+            case EVSettings.CALL_METHOD_UPSERT_SYSTEM:
+                enforceWritePermission(evervolv.platform.Manifest.permission.WRITE_SETTINGS);
+                return callHelperUpsert(callingUserId, EVSettings.System.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_UPSERT_SECURE:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                return callHelperUpsert(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_UPSERT_GLOBAL:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                return callHelperUpsert(callingUserId, EVSettings.Global.CONTENT_URI, args);
+
             // List methods
             case EVSettings.CALL_METHOD_LIST_SYSTEM:
                 return callHelperList(callingUserId, EVSettings.System.CONTENT_URI);
@@ -204,6 +407,14 @@ public class SettingsProvider extends ContentProvider {
             case EVSettings.CALL_METHOD_LIST_GLOBAL:
                 return callHelperList(callingUserId, EVSettings.Global.CONTENT_URI);
 
+            // Export methods
+            case EVSettings.CALL_METHOD_EXPORT_SYSTEM:
+                return callHelperExport(callingUserId, EVSettings.System.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_EXPORT_SECURE:
+                return callHelperExport(callingUserId, EVSettings.Secure.CONTENT_URI, args);
+            case EVSettings.CALL_METHOD_EXPORT_GLOBAL:
+                return callHelperExport(callingUserId, EVSettings.Global.CONTENT_URI, args);
+
             // Delete methods
             case EVSettings.CALL_METHOD_DELETE_SYSTEM:
                 enforceWritePermission(evervolv.platform.Manifest.permission.WRITE_SETTINGS);
@@ -219,11 +430,75 @@ public class SettingsProvider extends ContentProvider {
                         evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
                 return callHelperDelete(callingUserId, EVSettings.Global.CONTENT_URI,
                         request);
+
+            // Migrate methods
+            case EVSettings.CALL_METHOD_MIGRATE_SETTINGS:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                // Runs in the background, so that upgrades with many users don't stall boot.
+                BackgroundThread.getHandler().post(
+                        this::migrateSettingsForExistingUsersIfNeeded);
+                return null;
+            case EVSettings.CALL_METHOD_MIGRATE_SETTINGS_FOR_USER:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                return callHelperMigrate(callingUserId, args);
+
+            // Backup methods
+            case EVSettings.CALL_METHOD_BACKUP_SETTINGS:
+                getContext().enforceCallingOrSelfPermission(
+                        android.Manifest.permission.BACKUP, TAG);
+                callHelperBackup(callingUserId, args);
+                return null;
+            case EVSettings.CALL_METHOD_RESTORE_SETTINGS:
+                enforceWritePermission(
+                        evervolv.platform.Manifest.permission.WRITE_SECURE_SETTINGS);
+                return callHelperRestore(callingUserId, args);
         }
 
         return null;
     }
 
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+        getContext().enforceCallingOrSelfPermission(android.Manifest.permission.DUMP, TAG);
+
+        pw.println("EVSettings provider calls:");
+        for (int i = 0; i < mCallCounts.size(); i++) {
+            pw.println("  " + mCallCounts.keyAt(i) + "=" + mCallCounts.valueAt(i).sum());
+        }
+        mGenerationRegistry.dump(pw);
+        mSettingsStore.dump(pw);
+        mSettingsWriter.dump(pw);
+        mChangeNotifier.dump(pw);
+        final SparseArray<SettingsBackend> backends;
+        final SparseLongArray lastUse;
+        final long closedIdleBackends;
+        synchronized (this) {
+            backends = mBackends.clone();
+            lastUse = mBackendLastUse.clone();
+            closedIdleBackends = mClosedIdleBackends;
+        }
+        pw.println("Settings backends: " + backends.size() + ", idleTimeout="
+                + mIdleTimeoutMs + "ms closedIdle=" + closedIdleBackends);
+        final long now = SystemClock.uptimeMillis();
+        for (int i = 0; i < backends.size(); i++) {
+            final int userId = backends.keyAt(i);
+            backends.valueAt(i).dump(pw, "  user " + userId + " idleMs="
+                    + (now - lastUse.get(userId, now)) + ": ");
+        }
+        synchronized (this) {
+            pw.println("Migration: users=" + mMigratedUsers + " rows=" + mMigratedRows
+                    + " skipped=" + mSkippedMigrationRows + " timeMs=" + mMigrationTimeMs
+                    + " done=" + mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_SETTINGS, false));
+            pw.println("Backup: backups=" + mBackups + " failed=" + mFailedBackups
+                    + " restoredUsers=" + mRestoredUsers
+                    + " rows=" + mRestoredRows + " skipped=" + mSkippedRestoreRows
+                    + " timeMs=" + mRestoreTimeMs);
+        }
+        EVSettings.dumpCacheStats(pw);
+    }
+
     private void enforceWritePermission(String permission) {
         if (getContext().checkCallingOrSelfPermission(permission)
                 != PackageManager.PERMISSION_GRANTED) {
@@ -244,19 +519,162 @@ public class SettingsProvider extends ContentProvider {
 
     // Helper for call() CALL_METHOD_LIST_* methods
     private Bundle callHelperList(int callingUserId, Uri contentUri) {
-        final ArrayList<String> lines = new ArrayList<String>();
-        final Cursor cursor = queryForUser(callingUserId, contentUri, null, null, null, null);
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        getTableForUser(getTableNameFromUri(contentUri), callingUserId).getAll(names, values);
+
+        final ArrayList<String> lines = new ArrayList<String>(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            lines.add(names.get(i) + "=" + values.get(i));
+        }
+        final Bundle ret = new Bundle();
+        ret.putStringArrayList(RESULT_SETTINGS_LIST, lines);
+        return ret;
+    }
+
+    // Helper for call() CALL_METHOD_EXPORT_* methods
+    private Bundle callHelperExport(int callingUserId, Uri contentUri, Bundle args) {
+        final String tableName = getTableNameFromUri(contentUri);
+        final String startAfter = (args == null)
+                ? null : args.getString(EVSettings.CALL_METHOD_PAGE_START_KEY);
+        final int pageSize = (args == null)
+                ? 0 : args.getInt(EVSettings.CALL_METHOD_PAGE_SIZE_KEY);
+
+        // The generation must be read before the rows, see callHelperGetAll()
+        final long generation = SystemProperties.getLong(getVersionPropertyForTable(tableName),
+                0);
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        // One row past the page tells whether another page follows.
+        final long sequence = getTableForUser(tableName, callingUserId).getSorted(startAfter,
+                pageSize > 0 ? pageSize + 1 : 0, names, values);
+
+        final Bundle ret = new Bundle();
+        if (pageSize > 0 && names.size() > pageSize) {
+            names.remove(pageSize);
+            values.remove(pageSize);
+            ret.putString(EVSettings.CALL_METHOD_NEXT_PAGE_KEY, names.get(pageSize - 1));
+        }
+        ret.putLong(EVSettings.CALL_METHOD_GENERATION_KEY, generation);
+        ret.putLong(EVSettings.CALL_METHOD_EPOCH_KEY, mSettingsStore.getEpoch());
+        ret.putLong(EVSettings.CALL_METHOD_SEQUENCE_KEY, sequence);
+
+        long size = 0;
+        for (int i = 0; i < names.size(); i++) {
+            final String value = values.get(i);
+            size += 2L * (names.get(i).length() + (value != null ? value.length() : 0));
+        }
+        final SharedMemory blob = size > EXPORT_BLOB_THRESHOLD_BYTES
+                ? writeSettingsBlob(names, values) : null;
+        if (blob != null) {
+            ret.putParcelable(EVSettings.CALL_METHOD_BLOB_KEY, blob);
+        } else {
+            ret.putStringArray(EVSettings.CALL_METHOD_NAMES_KEY,
+                    names.toArray(new String[names.size()]));
+            ret.putStringArray(EVSettings.CALL_METHOD_VALUES_KEY,
+                    values.toArray(new String[values.size()]));
+        }
+        return ret;
+    }
+
+    /**
+     * Writes settings into read-only shared memory, in the format read by
+     * {@link EVSettings#readSettingsBlob}.
+     * @return The blob, or null if it couldn't be created.
+     */
+    private static SharedMemory writeSettingsBlob(List<String> names, List<String> values) {
         try {
-            while (cursor != null && cursor.moveToNext()) {
-                lines.add(cursor.getString(1) + "=" + cursor.getString(2));
+            final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            final DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(names.size());
+            for (int i = 0; i < names.size(); i++) {
+                FileSettingsBackend.writeString(out, names.get(i));
+                FileSettingsBackend.writeString(out, values.get(i));
             }
-        } finally {
-            if (cursor != null) {
-                cursor.close();
+            out.flush();
+            final byte[] data = bytes.toByteArray();
+
+            final SharedMemory blob = SharedMemory.create(TAG, data.length);
+            final ByteBuffer buffer = blob.mapReadWrite();
+            try {
+                buffer.put(data);
+            } finally {
+                SharedMemory.unmap(buffer);
             }
+            blob.setProtect(OsConstants.PROT_READ);
+            return blob;
+        } catch (IOException | ErrnoException e) {
+            Log.w(TAG, "Can't export settings to shared memory", e);
+            return null;
         }
+    }
+
+    // Helper for call() CALL_METHOD_GET_ALL_* methods
+    private Bundle callHelperGetAll(int callingUserId, Uri contentUri, Bundle args) {
+        final String tableName = getTableNameFromUri(contentUri);
+        final int tableUserId = getUserIdForTable(tableName, callingUserId);
         final Bundle ret = new Bundle();
-        ret.putStringArrayList(RESULT_SETTINGS_LIST, lines);
+        if (isGenerationTrackingRequested(args)) {
+            mGenerationRegistry.addGenerationData(ret, tableName, tableUserId, null);
+        }
+
+        // Read the generations before the rows: if a write lands in between, the client sees
+        // a newer generation on its next read and drops the affected values, which is safe.
+        final String property = getVersionPropertyForTable(tableName);
+        final long generation = SystemProperties.getLong(property, 0);
+        final int[] bucketGenerations = mGenerationRegistry.getGenerations(tableName,
+                tableUserId);
+
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        final long sequence = getTableForUser(tableName, callingUserId).getAll(names, values);
+        ret.putLong(EVSettings.CALL_METHOD_GENERATION_KEY, generation);
+        ret.putIntArray(EVSettings.CALL_METHOD_BUCKET_GENERATIONS_KEY, bucketGenerations);
+        ret.putLong(EVSettings.CALL_METHOD_EPOCH_KEY, mSettingsStore.getEpoch());
+        ret.putLong(EVSettings.CALL_METHOD_SEQUENCE_KEY, sequence);
+        ret.putStringArray(EVSettings.CALL_METHOD_NAMES_KEY,
+                names.toArray(new String[names.size()]));
+        ret.putStringArray(EVSettings.CALL_METHOD_VALUES_KEY,
+                values.toArray(new String[values.size()]));
+        return ret;
+    }
+
+    // Helper for call() CALL_METHOD_GET_CHANGES_* methods
+    private Bundle callHelperGetChanges(int callingUserId, Uri contentUri, Bundle args) {
+        final String tableName = getTableNameFromUri(contentUri);
+        final Bundle ret = new Bundle();
+        final long epoch = (args == null) ? 0 : args.getLong(EVSettings.CALL_METHOD_EPOCH_KEY);
+        if (epoch != mSettingsStore.getEpoch()) {
+            // The sequence was handed out before the provider restarted.
+            ret.putBoolean(EVSettings.CALL_METHOD_RESYNC_KEY, true);
+            return ret;
+        }
+
+        // The generation must be read before the changes, see callHelperGetAll()
+        final long generation = SystemProperties.getLong(getVersionPropertyForTable(tableName),
+                0);
+        final ArrayList<String> names = new ArrayList<String>();
+        final ArrayList<String> values = new ArrayList<String>();
+        final ArrayList<Boolean> deleted = new ArrayList<Boolean>();
+        final long sequence = getTableForUser(tableName, callingUserId).getChangesSince(
+                args.getLong(EVSettings.CALL_METHOD_SEQUENCE_KEY, -1), names, values, deleted);
+        if (sequence < 0) {
+            ret.putBoolean(EVSettings.CALL_METHOD_RESYNC_KEY, true);
+            return ret;
+        }
+
+        final boolean[] deletedArray = new boolean[deleted.size()];
+        for (int i = 0; i < deletedArray.length; i++) {
+            deletedArray[i] = deleted.get(i);
+        }
+        ret.putLong(EVSettings.CALL_METHOD_GENERATION_KEY, generation);
+        ret.putLong(EVSettings.CALL_METHOD_EPOCH_KEY, epoch);
+        ret.putLong(EVSettings.CALL_METHOD_SEQUENCE_KEY, sequence);
+        ret.putStringArray(EVSettings.CALL_METHOD_NAMES_KEY,
+                names.toArray(new String[names.size()]));
+        ret.putStringArray(EVSettings.CALL_METHOD_VALUES_KEY,
+                values.toArray(new String[values.size()]));
+        ret.putBooleanArray(EVSettings.CALL_METHOD_DELETED_KEY, deletedArray);
         return ret;
     }
 
@@ -273,35 +691,495 @@ public class SettingsProvider extends ContentProvider {
         insertForUser(callingUserId, contentUri, values);
     }
 
+    // Helper for call() CALL_METHOD_PUT_BATCH_* methods
+    private void callHelperPutBatch(int callingUserId, Uri contentUri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(EVSettings.CALL_METHOD_NAMES_KEY);
+        final String[] values = (args == null)
+                ? null : args.getStringArray(EVSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Batch needs parallel names and values");
+        }
+
+        insertBatchForUser(callingUserId, contentUri, names, values);
+    }
+
+    // Helper for call() CALL_METHOD_UPSERT_* methods
+    private Bundle callHelperUpsert(int callingUserId, Uri contentUri, Bundle args) {
+        final String[] names = (args == null)
+                ? null : args.getStringArray(EVSettings.CALL_METHOD_NAMES_KEY);
+        final String[] values = (args == null)
+                ? null : args.getStringArray(EVSettings.CALL_METHOD_VALUES_KEY);
+        if (names == null || values == null || names.length != values.length) {
+            throw new IllegalArgumentException("Upsert needs parallel names and values");
+        }
+
+        final Bundle ret = new Bundle();
+        ret.putIntArray(EVSettings.CALL_METHOD_RESULTS_KEY,
+                upsertForUser(callingUserId, contentUri, names, values));
+        return ret;
+    }
+
+    // Helper for call() CALL_METHOD_MIGRATE_SETTINGS_FOR_USER
+    private Bundle callHelperMigrate(int callingUserId, Bundle args) {
+        final ParcelFileDescriptor file = (args == null) ? null : args.getParcelable(
+                EVSettings.CALL_METHOD_MIGRATE_FILE_KEY, ParcelFileDescriptor.class);
+        final ArrayMap<String, ArrayMap<String, String>> rows;
+        if (file != null) {
+            try {
+                rows = readMigrationFile(file);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Can't read settings to migrate", e);
+            }
+        } else {
+            rows = readPlatformSettings(callingUserId);
+        }
+
+        final int[] counts = migrateSettingsForUser(callingUserId, rows);
+        final Bundle ret = new Bundle();
+        ret.putInt(EVSettings.CALL_METHOD_MIGRATED_KEY, counts[0]);
+        ret.putInt(EVSettings.CALL_METHOD_SKIPPED_KEY, counts[1]);
+        return ret;
+    }
+
     /**
-     * Looks up a single value for a specific user, uri, and key.
-     * @param userId The id of the user to perform the lookup for.
-     * @param uri The uri for which table to perform the lookup in.
-     * @param key The key to perform the lookup with.
-     * @return A single value stored in a {@link Bundle}.
+     * Migrates the settings of every existing user from the platform tables, once.
+     */
+    private void migrateSettingsForExistingUsersIfNeeded() {
+        if (mSharedPrefs.getBoolean(PREF_HAS_MIGRATED_SETTINGS, false)) {
+            return;
+        }
+        final long start = SystemClock.uptimeMillis();
+        final List<UserInfo> users = mUserManager.getAliveUsers();
+        for (int i = 0; i < users.size(); i++) {
+            final int userId = users.get(i).id;
+            final int[] counts = migrateSettingsForUser(userId, readPlatformSettings(userId));
+            Log.i(TAG, "Migrated settings of user " + userId + " (" + (i + 1) + "/"
+                    + users.size() + "): " + counts[0] + " written, " + counts[1]
+                    + " skipped");
+        }
+        mSharedPrefs.edit().putBoolean(PREF_HAS_MIGRATED_SETTINGS, true).apply();
+        Log.i(TAG, "Migrated settings of " + users.size() + " user(s) in "
+                + (SystemClock.uptimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Reads the platform settings that have a counterpart in our tables, for each table the
+     * user has.
+     * @return The values to migrate, by table and name.
+     */
+    private ArrayMap<String, ArrayMap<String, String>> readPlatformSettings(int userId) {
+        final ArrayMap<String, ArrayMap<String, String>> rows =
+                new ArrayMap<String, ArrayMap<String, String>>(3);
+        rows.put(DatabaseHelper.TableNames.TABLE_SYSTEM, readPlatformTable(userId,
+                Settings.System.CONTENT_URI, EVSettings.System.VALIDATORS.keySet()));
+        rows.put(DatabaseHelper.TableNames.TABLE_SECURE, readPlatformTable(userId,
+                Settings.Secure.CONTENT_URI, EVSettings.Secure.VALIDATORS.keySet()));
+        if (userId == UserHandle.USER_SYSTEM) {
+            rows.put(DatabaseHelper.TableNames.TABLE_GLOBAL, readPlatformTable(userId,
+                    Settings.Global.CONTENT_URI, EVSettings.Global.VALIDATORS.keySet()));
+        }
+        return rows;
+    }
+
+    /**
+     * Reads a whole platform table in one query, keeping the given names.
      */
-    private Bundle lookupSingleValue(int userId, Uri uri, String key) {
+    private ArrayMap<String, String> readPlatformTable(int userId, Uri uri, Set<String> names) {
+        final ArrayMap<String, String> rows = new ArrayMap<String, String>();
+        final long oldId = Binder.clearCallingIdentity();
         Cursor cursor = null;
         try {
-            cursor = queryForUser(userId, uri, new String[]{ Settings.NameValueTable.VALUE },
-                    Settings.NameValueTable.NAME + " = ?", new String[]{ key }, null);
+            cursor = getContext().getContentResolver().query(
+                    ContentProvider.maybeAddUserId(uri, userId),
+                    new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                    null, null, null);
+            while (cursor != null && cursor.moveToNext()) {
+                final String name = cursor.getString(0);
+                if (names.contains(name)) {
+                    rows.put(name, cursor.getString(1));
+                }
+            }
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Can't read " + uri + " of user " + userId + " to migrate", e);
+        } finally {
+            if (cursor != null) cursor.close();
+            Binder.restoreCallingIdentity(oldId);
+        }
+        return rows;
+    }
 
-            if (cursor != null && cursor.getCount() == 1) {
-                cursor.moveToFirst();
-                String value = cursor.getString(0);
-                return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE,
-                        value);
+    /**
+     * Reads an exported settings file, with one table/name=value line per setting. Later lines
+     * replace earlier ones for the same setting; lines that can't be parsed are skipped.
+     * @return The values to migrate, by table and name.
+     */
+    private static ArrayMap<String, ArrayMap<String, String>> readMigrationFile(
+            ParcelFileDescriptor file) throws IOException {
+        final ArrayMap<String, ArrayMap<String, String>> rows =
+                new ArrayMap<String, ArrayMap<String, String>>(3);
+        final BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new ParcelFileDescriptor.AutoCloseInputStream(file), StandardCharsets.UTF_8));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final int slash = line.indexOf('/');
+                final int equals = line.indexOf('=', slash + 1);
+                if (slash <= 0 || equals <= slash + 1) {
+                    if (!line.isEmpty()) Log.w(TAG, "Skipping malformed setting to migrate");
+                    continue;
+                }
+                final String tableName = line.substring(0, slash);
+                ArrayMap<String, String> tableRows = rows.get(tableName);
+                if (tableRows == null) {
+                    tableRows = new ArrayMap<String, String>();
+                    rows.put(tableName, tableRows);
+                }
+                tableRows.put(line.substring(slash + 1, equals), line.substring(equals + 1));
             }
-        } catch (SQLiteException e) {
-            Log.w(TAG, "settings lookup error", e);
-            return null;
         } finally {
-            if (cursor != null) {
-                cursor.close();
+            reader.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Writes settings read from another source into the tables of a user, see
+     * {@link #writeValidSettingsForUser}.
+     * @param userId The user to migrate the settings of.
+     * @param rows The values to migrate, by table and name.
+     * @return The number of settings written and skipped.
+     */
+    private int[] migrateSettingsForUser(int userId,
+            ArrayMap<String, ArrayMap<String, String>> rows) {
+        final long start = SystemClock.uptimeMillis();
+        final int[] invalid = new int[1];
+        final int[] counts = writeValidSettingsForUser(userId, filterValidSettings(rows, invalid));
+        counts[1] += invalid[0];
+
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mMigratedUsers++;
+            mMigratedRows += counts[0];
+            mSkippedMigrationRows += counts[1];
+            mMigrationTimeMs += elapsed;
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Migrated " + counts[0] + " setting(s) of user " + userId
+                + " in " + elapsed + "ms, skipped " + counts[1]);
+        return counts;
+    }
+
+    // Helper for call() CALL_METHOD_BACKUP_SETTINGS
+    private void callHelperBackup(int callingUserId, Bundle args) {
+        final ParcelFileDescriptor file = (args == null) ? null : args.getParcelable(
+                EVSettings.CALL_METHOD_BACKUP_FILE_KEY, ParcelFileDescriptor.class);
+        if (file == null) {
+            throw new IllegalArgumentException("Backup needs a file to write to");
+        }
+
+        // Tables are copied and encoded one at a time, each as of its own last write. Only
+        // writing the result to the caller's file is left to the backup thread.
+        final ByteArrayOutputStream backup = new ByteArrayOutputStream();
+        final ParcelFileDescriptor dup;
+        try {
+            final SettingsBackup.Writer writer = new SettingsBackup.Writer(backup);
+            for (String tableName : getTableNamesForUser(callingUserId)) {
+                final ArrayList<String> names = new ArrayList<String>();
+                final ArrayList<String> values = new ArrayList<String>();
+                getTableForUser(tableName, callingUserId).getAll(names, values);
+                writer.writeTable(tableName, names, values);
+            }
+            writer.finish();
+            // The caller may close its descriptor once the call returns.
+            dup = file.dup();
+        } catch (IOException e) {
+            throw new IllegalStateException("Can't write settings backup", e);
+        }
+
+        final byte[] bytes = backup.toByteArray();
+        getBackupHandler().post(() -> writeBackup(dup, bytes));
+    }
+
+    private synchronized Handler getBackupHandler() {
+        if (mBackupHandler == null) {
+            final HandlerThread thread = new HandlerThread("EVSettingsBackup",
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mBackupHandler = new Handler(thread.getLooper());
+        }
+        return mBackupHandler;
+    }
+
+    /**
+     * Writes an encoded backup to a file and closes it, giving up if the file accepts nothing
+     * for {@link #BACKUP_WRITE_TIMEOUT_MS}. Runs on the backup thread.
+     */
+    private void writeBackup(ParcelFileDescriptor file, byte[] backup) {
+        final FileDescriptor fd = file.getFileDescriptor();
+        final StructPollfd[] pollFds = { new StructPollfd() };
+        pollFds[0].fd = fd;
+        pollFds[0].events = (short) OsConstants.POLLOUT;
+        boolean written = false;
+        try {
+            int offset = 0;
+            while (offset < backup.length) {
+                if (Os.poll(pollFds, (int) BACKUP_WRITE_TIMEOUT_MS) == 0) {
+                    throw new IOException("Timed out writing settings backup");
+                }
+                offset += Os.write(fd, backup, offset,
+                        Math.min(BACKUP_WRITE_CHUNK, backup.length - offset));
+            }
+            written = true;
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Can't write settings backup", e);
+        } finally {
+            try {
+                file.close();
+            } catch (IOException e) {
+                Log.w(TAG, "Can't close settings backup", e);
+            }
+        }
+        synchronized (this) {
+            if (written) {
+                mBackups++;
+            } else {
+                mFailedBackups++;
+            }
+        }
+    }
+
+    // Helper for call() CALL_METHOD_RESTORE_SETTINGS
+    private Bundle callHelperRestore(int callingUserId, Bundle args) {
+        final ParcelFileDescriptor file = (args == null) ? null : args.getParcelable(
+                EVSettings.CALL_METHOD_BACKUP_FILE_KEY, ParcelFileDescriptor.class);
+        if (file == null) {
+            throw new IllegalArgumentException("Restore needs a backup file");
+        }
+        final int[] requestedUsers = args.getIntArray(EVSettings.CALL_METHOD_USERS_KEY);
+        final int[] users = requestedUsers != null
+                ? requestedUsers : new int[] { callingUserId };
+        for (int i = 0; i < users.length; i++) {
+            if (users[i] != callingUserId) {
+                users[i] = ActivityManager.handleIncomingUser(Binder.getCallingPid(),
+                        Binder.getCallingUid(), users[i], false, true, "restore settings", null);
+            }
+            final long oldId = Binder.clearCallingIdentity();
+            try {
+                if (mUserManager.getUserInfo(users[i]) == null) {
+                    throw new IllegalArgumentException("No user " + users[i] + " to restore");
+                }
+            } finally {
+                Binder.restoreCallingIdentity(oldId);
+            }
+        }
+
+        final ArrayMap<String, ArrayMap<String, String>> rows;
+        final InputStream stream = new ParcelFileDescriptor.AutoCloseInputStream(file);
+        try {
+            try {
+                rows = SettingsBackup.read(stream);
+            } finally {
+                stream.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Can't read settings backup", e);
+        }
+
+        // The backup is validated once, whatever the number of users it is restored into.
+        final long start = SystemClock.uptimeMillis();
+        final int[] invalid = new int[1];
+        final ArrayMap<String, ArrayMap<String, String>> validRows =
+                filterValidSettings(rows, invalid);
+        final int[] restored = new int[users.length];
+        final int[] skipped = new int[users.length];
+        long restoredRows = 0;
+        long skippedRows = 0;
+        for (int i = 0; i < users.length; i++) {
+            final int[] counts = writeValidSettingsForUser(users[i], validRows);
+            restored[i] = counts[0];
+            skipped[i] = counts[1] + invalid[0];
+            restoredRows += restored[i];
+            skippedRows += skipped[i];
+        }
+
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        synchronized (this) {
+            mRestoredUsers += users.length;
+            mRestoredRows += restoredRows;
+            mSkippedRestoreRows += skippedRows;
+            mRestoreTimeMs += elapsed;
+        }
+        if (LOCAL_LOGV) Log.d(TAG, "Restored " + restoredRows + " setting(s) into "
+                + users.length + " user(s) in " + elapsed + "ms, skipped " + skippedRows);
+
+        final Bundle ret = new Bundle();
+        ret.putIntArray(EVSettings.CALL_METHOD_RESTORED_KEY, restored);
+        ret.putIntArray(EVSettings.CALL_METHOD_RESTORE_SKIPPED_KEY, skipped);
+        return ret;
+    }
+
+    /**
+     * Keeps the settings that pass the validators of their table. Unset values are dropped as
+     * well, as they never replace our defaults. Large tables are validated in parallel, the
+     * validators being stateless.
+     * @param rows The settings to check, by table and name.
+     * @param invalid Receives the number of settings dropped, in its first element.
+     * @return The remaining settings, by table and name.
+     */
+    private ArrayMap<String, ArrayMap<String, String>> filterValidSettings(
+            ArrayMap<String, ArrayMap<String, String>> rows, int[] invalid) {
+        final ArrayMap<String, ArrayMap<String, String>> validRows =
+                new ArrayMap<String, ArrayMap<String, String>>(rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            final String tableName = rows.keyAt(i);
+            final ArrayMap<String, String> tableRows = rows.valueAt(i);
+            final boolean[] valid = new boolean[tableRows.size()];
+            IntStream indices = IntStream.range(0, tableRows.size());
+            if (tableRows.size() >= PARALLEL_VALIDATION_MIN_ROWS) {
+                indices = indices.parallel();
             }
+            indices.forEach(j -> valid[j] = tableRows.valueAt(j) != null
+                    && isValidSettingNameValue(tableName, tableRows.keyAt(j),
+                            tableRows.valueAt(j)));
+
+            final ArrayMap<String, String> validTableRows =
+                    new ArrayMap<String, String>(tableRows.size());
+            for (int j = 0; j < valid.length; j++) {
+                if (valid[j]) {
+                    // Keys come in the map's order, so each one lands at the end.
+                    validTableRows.put(tableRows.keyAt(j), tableRows.valueAt(j));
+                } else {
+                    invalid[0]++;
+                }
+            }
+            validRows.put(tableName, validTableRows);
+        }
+        return validRows;
+    }
+
+    /**
+     * Writes validated settings into the tables of a user. Settings already holding the given
+     * value are skipped, as are tables the user doesn't own. Each table is written as one
+     * batch with one notification, and the writes of every table are committed together
+     * before returning.
+     * @param userId The user to write the settings of.
+     * @param rows The values to write, by table and name, as kept by
+     *     {@link #filterValidSettings}.
+     * @return The number of settings written and skipped.
+     */
+    private int[] writeValidSettingsForUser(int userId,
+            ArrayMap<String, ArrayMap<String, String>> rows) {
+        int written = 0;
+        int skipped = 0;
+        for (int i = 0; i < rows.size(); i++) {
+            final String tableName = rows.keyAt(i);
+            final ArrayMap<String, String> tableRows = rows.valueAt(i);
+            final Uri uri = getContentUriForTable(tableName);
+            if (uri == null || (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)
+                    && userId != UserHandle.USER_SYSTEM)) {
+                // Only the system user owns the global table.
+                skipped += tableRows.size();
+                continue;
+            }
+
+            final SettingsStore.Table table = getTableForUser(tableName, userId);
+            final String[] names = new String[tableRows.size()];
+            final String[] values = new String[tableRows.size()];
+            int count = 0;
+            for (int j = 0; j < tableRows.size(); j++) {
+                final String name = tableRows.keyAt(j);
+                final String value = tableRows.valueAt(j);
+                if (value.equals(table.get(name))) {
+                    skipped++;
+                    continue;
+                }
+                names[count] = name;
+                values[count] = value;
+                count++;
+            }
+            if (count > 0) {
+                putValidatedSettingsForUser(userId, uri, tableName, names, values, count, false);
+                written += count;
+            }
+        }
+        // Commit the writes of the user in one batch.
+        mSettingsWriter.flush(userId);
+        return new int[] { written, skipped };
+    }
+
+    /**
+     * Returns the tables a user owns: the system and secure tables, and the global table for
+     * the system user.
+     */
+    private static String[] getTableNamesForUser(int userId) {
+        if (userId == UserHandle.USER_SYSTEM) {
+            return new String[] { DatabaseHelper.TableNames.TABLE_SYSTEM,
+                    DatabaseHelper.TableNames.TABLE_SECURE,
+                    DatabaseHelper.TableNames.TABLE_GLOBAL };
+        }
+        return new String[] { DatabaseHelper.TableNames.TABLE_SYSTEM,
+                DatabaseHelper.TableNames.TABLE_SECURE };
+    }
+
+    private static Uri getContentUriForTable(String tableName) {
+        if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
+            return EVSettings.System.CONTENT_URI;
+        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
+            return EVSettings.Secure.CONTENT_URI;
+        } else if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
+            return EVSettings.Global.CONTENT_URI;
+        }
+        return null;
+    }
+
+    private static boolean isGenerationTrackingRequested(Bundle args) {
+        return args != null && args.getBoolean(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY);
+    }
+
+    /**
+     * Looks up a single value for a specific user, uri, and key.
+     * @param userId The id of the user to perform the lookup for.
+     * @param uri The uri for which table to perform the lookup in.
+     * @param key The key to perform the lookup with.
+     * @param args The call() arguments, possibly asking for generation tracking data.
+     * @return A single value stored in a {@link Bundle}.
+     */
+    private Bundle lookupSingleValue(int userId, Uri uri, String key, Bundle args) {
+        if (isGenerationTrackingRequested(args)) {
+            // The generation must be read before the value, see callHelperGetAll()
+            final String tableName = getTableNameFromUri(uri);
+            final Bundle ret = new Bundle();
+            mGenerationRegistry.addGenerationData(ret, tableName,
+                    getUserIdForTable(tableName, userId), key);
+            final Bundle value = lookupSingleValue(userId, uri, key, null);
+            if (value == null) {
+                return null;
+            }
+            ret.putString(Settings.NameValueTable.VALUE,
+                    value.getString(Settings.NameValueTable.VALUE));
+            return ret;
         }
 
-        return NULL_SETTING;
+        final String value = getTableForUser(getTableNameFromUri(uri), userId).get(key);
+        return value == null ? NULL_SETTING : Bundle.forPair(Settings.NameValueTable.VALUE, value);
+    }
+
+    /**
+     * Returns the in-memory copy of a table for a specific user.
+     * @param tableName The table to return.
+     * @param userId The id of the user to return the table for, before resolving it for the
+     *     table.
+     * @return The table.
+     */
+    private SettingsStore.Table getTableForUser(String tableName, int userId) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        // Loaded tables don't need the backend, which may have been closed while idle.
+        final SettingsStore.Table table = mSettingsStore.getTable(tableName, tableUserId);
+        if (table != null) {
+            return table;
+        }
+        return mSettingsStore.getOrLoadTable(tableName, tableUserId,
+                getOrEstablishBackend(tableUserId));
     }
 
     @Override
@@ -331,20 +1209,19 @@ public class SettingsProvider extends ContentProvider {
         int code = sUriMatcher.match(uri);
         String tableName = getTableNameFromUriMatchCode(code);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getReadableDatabase();
-
-        SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
-        queryBuilder.setTables(tableName);
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SettingsBackend backend = getOrEstablishBackend(tableUserId);
+        // Cursors are read from the backend, which must see the writes still held in memory.
+        mSettingsWriter.flush(tableUserId);
 
         Cursor returnCursor;
         if (isItemUri(code)) {
             // The uri is looking for an element with a specific name
-            returnCursor = queryBuilder.query(db, projection, NAME_SELECTION,
-                    new String[] { uri.getLastPathSegment() }, null, null, sortOrder);
+            returnCursor = backend.query(tableName, projection, NAME_SELECTION,
+                    new String[] { uri.getLastPathSegment() }, sortOrder);
         } else {
-            returnCursor = queryBuilder.query(db, projection, selection, selectionArgs, null,
-                    null, sortOrder);
+            returnCursor = backend.query(tableName, projection, selection, selectionArgs,
+                    sortOrder);
         }
 
         return returnCursor;
@@ -384,37 +1261,32 @@ public class SettingsProvider extends ContentProvider {
             throw new IllegalArgumentException("ContentValues cannot be null");
         }
 
-        int numRowsAffected = 0;
-
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-
-        db.beginTransaction();
-        try {
-            for (ContentValues value : values) {
-                if (value == null) {
-                    continue;
-                }
-
-                long rowId = db.insert(tableName, null, value);
-
-                if (rowId >= 0) {
-                    numRowsAffected++;
-                } else {
-                    return 0;
-                }
+        // Rows failing validation are skipped, the others are written as one batch.
+        final String[] names = new String[values.length];
+        final String[] newValues = new String[values.length];
+        int numRowsAffected = 0;
+        for (ContentValues value : values) {
+            if (value == null) {
+                continue;
             }
 
-            db.setTransactionSuccessful();
-        } finally {
-            db.endTransaction();
+            final String name = value.getAsString(Settings.NameValueTable.NAME);
+            final String newValue = value.getAsString(Settings.NameValueTable.VALUE);
+            if (isValidSettingNameValue(tableName, name, newValue)) {
+                names[numRowsAffected] = name;
+                newValues[numRowsAffected] = newValue;
+                numRowsAffected++;
+            } else {
+                Log.w(TAG, "Skipping invalid setting " + name + " in bulk insert");
+            }
         }
 
         if (numRowsAffected > 0) {
-            notifyChange(uri, tableName, userId);
+            putValidatedSettingsForUser(userId, uri, tableName, names, newValues,
+                    numRowsAffected, false);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) inserted");
         }
 
@@ -446,31 +1318,137 @@ public class SettingsProvider extends ContentProvider {
         String tableName = getTableNameFromUri(uri);
         checkWritePermissions(tableName);
 
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName, userId));
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SettingsBackend backend = getOrEstablishBackend(tableUserId);
 
         // Validate value if inserting int System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
-            validateGlobalSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
+        validateSettingNameValue(tableName, name, value);
+
+        // The value is served from memory right away and persisted in the background.
+        final SettingsStore.Table table = getTableForUser(tableName, userId);
+        synchronized (table) {
+            table.put(name, value);
+            mSettingsWriter.put(backend, tableUserId, tableName, name, value);
+        }
+
+        mGenerationRegistry.incrementGeneration(tableName, tableUserId, name);
+        final Uri returnUri = Uri.withAppendedPath(uri, name);
+        notifyChange(returnUri, tableName, userId);
+        if (LOCAL_LOGV) Log.d(TAG, "Inserted " + name + " into tableName: " + tableName);
+
+        return returnUri;
+    }
+
+    /**
+     * Inserts several settings for a specific user as one batch. Every name/value pair is
+     * validated before anything is written, and listeners are notified once for the whole
+     * batch.
+     * @param userId The user id to perform the insert for.
+     * @param uri The content:// URI of the table to insert into.
+     * @param names The names of the settings to write.
+     * @param values The values of the settings to write, parallel to the names.
+     */
+    private void insertBatchForUser(int userId, Uri uri, String[] names, String[] values) {
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
+
+        for (int i = 0; i < names.length; i++) {
+            validateSettingNameValue(tableName, names[i], values[i]);
         }
+        if (names.length == 0) {
+            return;
+        }
+
+        putValidatedSettingsForUser(userId, uri, tableName, names, values, names.length, true);
+        if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + names.length + " row(s) batch inserted");
+    }
+
+    /**
+     * Writes the valid ones of several settings for a specific user as one batch, and
+     * reports the outcome of each.
+     * @param userId The user id to perform the write for.
+     * @param uri The content:// URI of the table to write to.
+     * @param names The names of the settings to write.
+     * @param values The values of the settings to write, parallel to the names.
+     * @return The outcome of each setting, parallel to the names, as
+     *     {@link EVSettings#UPSERT_RESULT_OK} or {@link EVSettings#UPSERT_RESULT_INVALID}.
+     */
+    private int[] upsertForUser(int userId, Uri uri, String[] names, String[] values) {
+        String tableName = getTableNameFromUri(uri);
+        checkWritePermissions(tableName);
 
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        long rowId = db.insert(tableName, null, values);
+        final int[] results = validateUpsert(tableName, names, values);
+        final String[] validNames = new String[names.length];
+        final String[] validValues = new String[names.length];
+        int count = 0;
+        for (int i = 0; i < names.length; i++) {
+            if (results[i] == EVSettings.UPSERT_RESULT_OK) {
+                validNames[count] = names[i];
+                validValues[count] = values[i];
+                count++;
+            }
+        }
 
-        Uri returnUri = null;
-        if (rowId > -1) {
-            returnUri = Uri.withAppendedPath(uri, name);
-            notifyChange(returnUri, tableName, userId);
-            if (LOCAL_LOGV) Log.d(TAG, "Inserted row id: " + rowId + " into tableName: " +
-                    tableName);
+        if (count > 0) {
+            putValidatedSettingsForUser(userId, uri, tableName, validNames, validValues, count,
+                    true);
+            if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + count + " of " + names.length
+                    + " row(s) upserted");
         }
+        return results;
+    }
 
-        return returnUri;
+    /**
+     * Checks each setting of an upsert against the validators of its table.
+     * @return The outcome of each setting, parallel to the names, as
+     *     {@link EVSettings#UPSERT_RESULT_OK} or {@link EVSettings#UPSERT_RESULT_INVALID}.
+     */
+    @VisibleForTesting
+    static int[] validateUpsert(String tableName, String[] names, String[] values) {
+        final int[] results = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            results[i] = isValidSettingNameValue(tableName, names[i], values[i])
+                    ? EVSettings.UPSERT_RESULT_OK : EVSettings.UPSERT_RESULT_INVALID;
+        }
+        return results;
+    }
+
+    /**
+     * Writes validated settings of a table for a specific user as one batch. The generation of
+     * each affected bucket is bumped once, and observers are notified once.
+     * @param userId The user id to perform the write for.
+     * @param uri The content:// URI of the table to write to.
+     * @param tableName The table to write to.
+     * @param names The names of the settings to write.
+     * @param values The values of the settings to write, parallel to the names.
+     * @param count The number of settings to write, from the start of the arrays.
+     * @param notifyItems Whether to notify the uri of each setting, rather than the given uri.
+     */
+    private void putValidatedSettingsForUser(int userId, Uri uri, String tableName,
+            String[] names, String[] values, int count, boolean notifyItems) {
+        final int tableUserId = getUserIdForTable(tableName, userId);
+        SettingsBackend backend = getOrEstablishBackend(tableUserId);
+        final SettingsStore.Table table = getTableForUser(tableName, userId);
+
+        synchronized (table) {
+            for (int i = 0; i < count; i++) {
+                table.put(names[i], values[i]);
+                mSettingsWriter.put(backend, tableUserId, tableName, names[i], values[i]);
+            }
+        }
+
+        mGenerationRegistry.incrementGenerations(tableName, tableUserId, names, count);
+        if (notifyItems) {
+            final Uri[] changedUris = new Uri[count];
+            for (int i = 0; i < count; i++) {
+                changedUris[i] = Uri.withAppendedPath(uri, names[i]);
+            }
+            notifyChange(changedUris, tableName, userId);
+        } else {
+            notifyChange(uri, tableName, userId);
+        }
     }
 
     @Override
@@ -492,13 +1470,36 @@ public class SettingsProvider extends ContentProvider {
             String tableName = getTableNameFromUri(uri);
             checkWritePermissions(tableName);
 
-            DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                    callingUserId));
-
-            SQLiteDatabase db = dbHelper.getWritableDatabase();
-            numRowsAffected = db.delete(tableName, selection, selectionArgs);
+            final int tableUserId = getUserIdForTable(tableName, callingUserId);
+            SettingsBackend backend = getOrEstablishBackend(tableUserId);
+
+            final SettingsStore.Table table = getTableForUser(tableName, callingUserId);
+            final boolean singleName = NAME_SELECTION.equals(selection)
+                    && selectionArgs.length == 1;
+            synchronized (table) {
+                if (singleName) {
+                    if (table.remove(selectionArgs[0])) {
+                        mSettingsWriter.delete(backend, tableUserId, tableName,
+                                selectionArgs[0]);
+                        numRowsAffected = 1;
+                    }
+                } else {
+                    // Arbitrary selections run against the backend, once it has caught up.
+                    mSettingsWriter.flush(tableUserId);
+                    numRowsAffected = backend.delete(tableName, selection, selectionArgs);
+                    if (numRowsAffected > 0) {
+                        table.reload(backend);
+                    }
+                }
+            }
 
             if (numRowsAffected > 0) {
+                if (singleName) {
+                    mGenerationRegistry.incrementGeneration(tableName, tableUserId,
+                            selectionArgs[0]);
+                } else {
+                    mGenerationRegistry.incrementAllGenerations(tableName, tableUserId);
+                }
                 notifyChange(uri, tableName, callingUserId);
                 if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) deleted");
             }
@@ -528,22 +1529,27 @@ public class SettingsProvider extends ContentProvider {
         // Validate value if updating System table
         final String name = values.getAsString(Settings.NameValueTable.NAME);
         final String value = values.getAsString(Settings.NameValueTable.VALUE);
-        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
-            validateGlobalSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
-            validateSystemSettingNameValue(name, value);
-        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
-            validateSecureSettingValue(name, value);
-        }
+        validateSettingNameValue(tableName, name, value);
 
         int callingUserId = UserHandle.getCallingUserId();
-        DatabaseHelper dbHelper = getOrEstablishDatabase(getUserIdForTable(tableName,
-                callingUserId));
-
-        SQLiteDatabase db = dbHelper.getWritableDatabase();
-        int numRowsAffected = db.update(tableName, values, selection, selectionArgs);
+        final int tableUserId = getUserIdForTable(tableName, callingUserId);
+        SettingsBackend backend = getOrEstablishBackend(tableUserId);
+
+        final SettingsStore.Table table = getTableForUser(tableName, callingUserId);
+        int numRowsAffected;
+        synchronized (table) {
+            // The selection runs against the backend, once it has caught up.
+            mSettingsWriter.flush(tableUserId);
+            numRowsAffected = backend.update(tableName, values, selection, selectionArgs);
+            if (numRowsAffected > 0) {
+                // The selection may match any row, so take the rows back from the backend.
+                table.reload(backend);
+            }
+        }
 
         if (numRowsAffected > 0) {
+            // The selection may match any row, and may even rename one.
+            mGenerationRegistry.incrementAllGenerations(tableName, tableUserId);
             notifyChange(uri, tableName, callingUserId);
             if (LOCAL_LOGV) Log.d(TAG, tableName + ": " + numRowsAffected + " row(s) updated");
         }
@@ -554,12 +1560,12 @@ public class SettingsProvider extends ContentProvider {
     // endregion Content Provider Methods
 
     /**
-     * Tries to get a {@link DatabaseHelper} for the specified user and if it does not exist, a
-     * new instance of {@link DatabaseHelper} is created for the specified user and returned.
+     * Tries to get a {@link SettingsBackend} for the specified user and if it does not exist, a
+     * new backend is created and opened for the specified user and returned.
      * @param callingUser
      * @return
      */
-    private DatabaseHelper getOrEstablishDatabase(int callingUser) {
+    private SettingsBackend getOrEstablishBackend(int callingUser) {
         if (callingUser >= android.os.Process.SYSTEM_UID) {
             if (USER_CHECK_THROWS) {
                 throw new IllegalArgumentException("Uid rather than user handle: " + callingUser);
@@ -570,50 +1576,130 @@ public class SettingsProvider extends ContentProvider {
 
         long oldId = Binder.clearCallingIdentity();
         try {
-            DatabaseHelper dbHelper;
+            SettingsBackend backend;
             synchronized (this) {
-                dbHelper = mDbHelpers.get(callingUser);
+                backend = mBackends.get(callingUser);
+                if (backend != null) {
+                    noteBackendUseLocked(callingUser);
+                }
             }
-            if (null == dbHelper) {
+            if (null == backend) {
                 establishDbTracking(callingUser);
                 synchronized (this) {
-                    dbHelper = mDbHelpers.get(callingUser);
+                    backend = mBackends.get(callingUser);
+                    noteBackendUseLocked(callingUser);
                 }
             }
-            return dbHelper;
+            return backend;
         } finally {
             Binder.restoreCallingIdentity(oldId);
         }
     }
 
     /**
-     * Check if a {@link DatabaseHelper} exists for a user and if it doesn't, a new helper is
-     * created and added to the list of tracked database helpers
+     * Check if a {@link SettingsBackend} exists for a user and if it doesn't, a new backend is
+     * created and added to the list of tracked backends
      * @param userId
      */
     private void establishDbTracking(int userId) {
-        DatabaseHelper dbHelper;
+        SettingsBackend backend;
 
         synchronized (this) {
-            dbHelper = mDbHelpers.get(userId);
+            backend = mBackends.get(userId);
             if (LOCAL_LOGV) {
-                Log.i(TAG, "Checking evervolv settings db helper for user " + userId);
+                Log.i(TAG, "Checking evervolv settings backend for user " + userId);
             }
-            if (dbHelper == null) {
+            if (backend == null) {
                 if (LOCAL_LOGV) {
-                    Log.i(TAG, "Installing new evervolv settings db helper for user " + userId);
+                    Log.i(TAG, "Installing new evervolv settings backend for user " + userId);
                 }
-                dbHelper = new DatabaseHelper(getContext(), userId);
-                mDbHelpers.append(userId, dbHelper);
+                backend = createBackend(userId);
+                mBackends.append(userId, backend);
             }
         }
 
-        // Initialization of the db *outside* the locks.  It's possible that racing
+        // Initialization of the backend *outside* the locks.  It's possible that racing
         // threads might wind up here, the second having read the cache entries
-        // written by the first, but that's benign: the SQLite helper implementation
-        // manages concurrency itself, and it's important that we not run the db
-        // initialization with any of our own locks held, so we're fine.
-        dbHelper.getWritableDatabase();
+        // written by the first, but that's benign: the backends manage concurrency
+        // themselves, and it's important that we not run the db initialization with
+        // any of our own locks held, so we're fine.
+        backend.open();
+
+        // Load the user's tables, so that reads are served from memory from now on.
+        mSettingsStore.getOrLoadTable(DatabaseHelper.TableNames.TABLE_SYSTEM, userId, backend);
+        mSettingsStore.getOrLoadTable(DatabaseHelper.TableNames.TABLE_SECURE, userId, backend);
+        if (userId == UserHandle.USER_SYSTEM) {
+            mSettingsStore.getOrLoadTable(DatabaseHelper.TableNames.TABLE_GLOBAL, userId,
+                    backend);
+        }
+    }
+
+    /**
+     * Records a use of a user's backend, and makes sure it gets closed once idle. Must be
+     * called while holding this.
+     */
+    private void noteBackendUseLocked(int userId) {
+        mBackendLastUse.put(userId, SystemClock.uptimeMillis());
+        if (mIdleTimeoutMs > 0 && userId != UserHandle.USER_SYSTEM && !mIdleCheckScheduled) {
+            mIdleCheckScheduled = true;
+            mIdleHandler.postDelayed(mCloseIdleBackends, mIdleTimeoutMs);
+        }
+    }
+
+    /**
+     * Closes the backends of background users that weren't used for the idle timeout. They
+     * stay tracked, and open again on their next operation.
+     */
+    private void closeIdleBackends() {
+        final int currentUser = ActivityManager.getCurrentUser();
+        final long now = SystemClock.uptimeMillis();
+        final SparseArray<SettingsBackend> idle = new SparseArray<SettingsBackend>();
+        long nextCheckMs = Long.MAX_VALUE;
+        synchronized (this) {
+            mIdleCheckScheduled = false;
+            for (int i = 0; i < mBackends.size(); i++) {
+                final int userId = mBackends.keyAt(i);
+                if (userId == UserHandle.USER_SYSTEM) {
+                    continue;
+                }
+                final long idleMs = now - mBackendLastUse.get(userId, now);
+                if (userId != currentUser && idleMs >= mIdleTimeoutMs) {
+                    idle.put(userId, mBackends.valueAt(i));
+                } else {
+                    nextCheckMs = Math.min(nextCheckMs, userId == currentUser
+                            ? mIdleTimeoutMs : mIdleTimeoutMs - idleMs);
+                }
+            }
+        }
+
+        // Closed outside our lock: a backend waits for its running operation to finish first.
+        for (int i = 0; i < idle.size(); i++) {
+            final SettingsBackend backend = idle.valueAt(i);
+            if (!backend.isOpen()) {
+                continue;
+            }
+            // Commit the queued writes now, rather than reopening the backend for them.
+            mSettingsWriter.flush(idle.keyAt(i));
+            backend.close();
+            if (LOCAL_LOGV) Log.v(TAG, "Closed idle backend of user " + idle.keyAt(i));
+            synchronized (this) {
+                mClosedIdleBackends++;
+            }
+        }
+
+        synchronized (this) {
+            if (nextCheckMs != Long.MAX_VALUE && !mIdleCheckScheduled) {
+                mIdleCheckScheduled = true;
+                mIdleHandler.postDelayed(mCloseIdleBackends, nextCheckMs);
+            }
+        }
+    }
+
+    private SettingsBackend createBackend(int userId) {
+        if (STORAGE_FILE.equals(SystemProperties.get(PROPERTY_STORAGE))) {
+            return new FileSettingsBackend(getContext(), userId);
+        }
+        return new SqliteSettingsBackend(getContext(), userId);
     }
 
     /**
@@ -716,30 +1802,92 @@ public class SettingsProvider extends ContentProvider {
      * @param userId
      */
     private void notifyChange(Uri uri, String tableName, int userId) {
-        String property = null;
+        notifyChange(new Uri[] { uri }, tableName, userId);
+    }
+
+    /**
+     * Modify setting version for an updated table once, then notify of changes to all
+     * of the given uris in a single dispatch. Bursts of changes are coalesced by
+     * {@link ChangeNotifier}.
+     * @param uris to send notifications for
+     * @param userId
+     */
+    private void notifyChange(Uri[] uris, String tableName, int userId) {
         final boolean isGlobal = tableName.equals(DatabaseHelper.TableNames.TABLE_GLOBAL);
+        mChangeNotifier.notifyChange(uris, tableName, isGlobal ? UserHandle.USER_ALL : userId);
+    }
+
+    /**
+     * Returns the system property holding the setting version for a table, which the
+     * {@link EVSettings} client-side caches compare against.
+     * @param tableName
+     * @return Property name, or null for an unknown table
+     */
+    static String getVersionPropertyForTable(String tableName) {
         if (tableName.equals(DatabaseHelper.TableNames.TABLE_SYSTEM)) {
-            property = EVSettings.System.SYS_PROP_SETTING_VERSION;
+            return EVSettings.System.SYS_PROP_SETTING_VERSION;
         } else if (tableName.equals(DatabaseHelper.TableNames.TABLE_SECURE)) {
-            property = EVSettings.Secure.SYS_PROP_SETTING_VERSION;
-        } else if (isGlobal) {
-            property = EVSettings.Global.SYS_PROP_SETTING_VERSION;
+            return EVSettings.Secure.SYS_PROP_SETTING_VERSION;
+        } else if (tableName.equals(DatabaseHelper.TableNames.TABLE_GLOBAL)) {
+            return EVSettings.Global.SYS_PROP_SETTING_VERSION;
         }
+        return null;
+    }
 
-        if (property != null) {
-            long version = SystemProperties.getLong(property, 0) + 1;
-            if (LOCAL_LOGV) Log.v(TAG, "property: " + property + "=" + version);
-            SystemProperties.set(property, Long.toString(version));
+    /**
+     * Validates a name/value pair against the validators of the table it is written to.
+     * @throws IllegalArgumentException if the pair is rejected.
+     */
+    private void validateSettingNameValue(String tableName, String name, String value) {
+        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
+            validateGlobalSettingNameValue(name, value);
+        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
+            validateSystemSettingNameValue(name, value);
+        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
+            validateSecureSettingValue(name, value);
         }
+    }
 
-        final int notifyTarget = isGlobal ? UserHandle.USER_ALL : userId;
-        final long oldId = Binder.clearCallingIdentity();
+    /**
+     * Checks a name/value pair against the validators of the table it is written to, like
+     * {@link #validateSettingNameValue}, for writes that skip rejected pairs. A null value is
+     * rejected for settings with a validator, as restores do, since several validators can't
+     * take one. Safe to call from several threads at once.
+     */
+    @VisibleForTesting
+    static boolean isValidSettingNameValue(String tableName, String name, String value) {
+        if (name == null) {
+            return false;
+        }
+        final EVSettings.Validator validator;
+        if (DatabaseHelper.TableNames.TABLE_GLOBAL.equals(tableName)) {
+            validator = EVSettings.Global.VALIDATORS.get(name);
+        } else if (DatabaseHelper.TableNames.TABLE_SYSTEM.equals(tableName)) {
+            validator = EVSettings.System.VALIDATORS.get(name);
+            if (validator == null) {
+                // Unlike the other tables, the system table only holds known settings.
+                return false;
+            }
+        } else if (DatabaseHelper.TableNames.TABLE_SECURE.equals(tableName)) {
+            validator = EVSettings.Secure.VALIDATORS.get(name);
+        } else {
+            return true;
+        }
+        return validator == null || (value != null && validates(validator, value));
+    }
+
+    /**
+     * Runs a validator, taking a value it throws on as invalid rather than failing the write
+     * with an unexpected exception.
+     */
+    @VisibleForTesting
+    static boolean validates(EVSettings.Validator validator, String value) {
         try {
-            getContext().getContentResolver().notifyChange(uri, null, true, notifyTarget);
-        } finally {
-            Binder.restoreCallingIdentity(oldId);
+            return validator.validate(value);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "Validator threw on value " + value, e);
+            return false;
         }
-        if (LOCAL_LOGV) Log.v(TAG, "notifying for " + notifyTarget + ": " + uri);
     }
 
     private void validateGlobalSettingNameValue(String name, String value) {
@@ -747,7 +1895,7 @@ public class SettingsProvider extends ContentProvider {
 
         // Not all global settings have validators, but if a validator exists, the validate method
         // should return true
-        if (validator != null && !validator.validate(value)) {
+        if (validator != null && !validates(validator, value)) {
             throw new IllegalArgumentException("Invalid value: " + value
                     + " for setting: " + name);
         }
@@ -759,7 +1907,7 @@ public class SettingsProvider extends ContentProvider {
             throw new IllegalArgumentException("Invalid setting: " + name);
         }
 
-        if (!validator.validate(value)) {
+        if (!validates(validator, value)) {
             throw new IllegalArgumentException("Invalid value: " + value
                     + " for setting: " + name);
         }
@@ -770,11 +1918,9 @@ public class SettingsProvider extends ContentProvider {
 
         // Not all secure settings have validators, but if a validator exists, the validate method
         // should return true
-        if (validator != null && !validator.validate(value)) {
+        if (validator != null && !validates(validator, value)) {
             throw new IllegalArgumentException("Invalid value: " + value
                     + " for setting: " + name);
         }
     }
-
-    // TODO Add caching
 }
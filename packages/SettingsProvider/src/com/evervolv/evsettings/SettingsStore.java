@@ -0,0 +1,320 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps an in-memory copy of every loaded settings table, so that reads are answered without
+ * going through the storage backend. Tables are loaded from their backend once and written
+ * through by the provider afterwards.
+ *
+ * Each table also logs its most recent changes, so that readers holding a copy of the table
+ * can catch up on what changed since they read it instead of reading it again. Changes are
+ * numbered by a sequence shared by all tables, which is only meaningful within the epoch of
+ * this store: a reader holding a sequence from another epoch has to read the table again.
+ */
+final class SettingsStore {
+    private static final String TAG = "SettingsStore";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Number of changes each table remembers
+    private static final int CHANGE_LOG_SIZE = 256;
+
+    // Rough heap cost of a row besides its characters: the map entry, and the two strings and
+    // their arrays.
+    private static final int ROW_OVERHEAD_BYTES = 96;
+
+    // Identifies this instance of the store, and with it the sequence numbers it hands out
+    private final long mEpoch = SystemClock.elapsedRealtimeNanos();
+    private final AtomicLong mSequence = new AtomicLong();
+
+    private final Object mLock = new Object();
+
+    @GuardedBy("mLock")
+    private final ArrayMap<String, Table> mTables = new ArrayMap<String, Table>();
+
+    private static String getKey(String tableName, int userId) {
+        return tableName + "/" + userId;
+    }
+
+    /**
+     * Returns the in-memory copy of a table if it is loaded.
+     * @param tableName The table to return.
+     * @param userId The user owning the table, as resolved for that table.
+     * @return The table, or null if it hasn't been loaded yet.
+     */
+    public Table getTable(String tableName, int userId) {
+        synchronized (mLock) {
+            return mTables.get(getKey(tableName, userId));
+        }
+    }
+
+    /**
+     * Returns the in-memory copy of a table, loading it from the database on first use.
+     * @param tableName The table to return.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param backend The backend of that user.
+     * @return The table, never null.
+     */
+    public Table getOrLoadTable(String tableName, int userId, SettingsBackend backend) {
+        final String key = getKey(tableName, userId);
+        synchronized (mLock) {
+            Table table = mTables.get(key);
+            if (table == null) {
+                table = new Table(tableName, mSequence);
+                table.reload(backend);
+                mTables.put(key, table);
+                if (LOCAL_LOGV) Log.v(TAG, "Loaded " + table.size() + " row(s) for " + key);
+            }
+            return table;
+        }
+    }
+
+    /**
+     * @return The epoch the sequence numbers of the tables belong to.
+     */
+    public long getEpoch() {
+        return mEpoch;
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Settings tables in memory: " + mTables.size() + ", epoch=" + mEpoch
+                    + " sequence=" + mSequence.get());
+            for (int i = 0; i < mTables.size(); i++) {
+                final Table table = mTables.valueAt(i);
+                synchronized (table) {
+                    pw.println("  " + mTables.keyAt(i) + ": " + table.mValues.size()
+                            + " row(s), ~" + estimateSize(table.mValues) + " bytes, "
+                            + table.mLogCount + " logged change(s) since " + table.mLogFloor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Estimates the heap used by a copy of a table, for dumpsys.
+     */
+    static long estimateSize(Map<String, String> rows) {
+        long bytes = 0;
+        for (Map.Entry<String, String> row : rows.entrySet()) {
+            final String value = row.getValue();
+            bytes += ROW_OVERHEAD_BYTES + 2L * (row.getKey().length()
+                    + (value != null ? value.length() : 0));
+        }
+        return bytes;
+    }
+
+    /**
+     * Drops the tables of a removed user.
+     * @param userId The id of the user that was removed.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            final String suffix = "/" + userId;
+            for (int i = mTables.size() - 1; i >= 0; i--) {
+                if (mTables.keyAt(i).endsWith(suffix)) {
+                    mTables.removeAt(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * The rows of one table of one user. Writers hold the table's monitor across the update
+     * here and the matching backend operation or queued write, so that concurrent writes land
+     * in the same order in both places.
+     */
+    static final class Table {
+        private final String mName;
+        private final AtomicLong mSequence;
+
+        @GuardedBy("this")
+        private final HashMap<String, String> mValues = new HashMap<String, String>();
+
+        // Ring of the most recent changes, oldest first from mLogStart. A removed setting is
+        // logged with mLogDeleted set.
+        @GuardedBy("this")
+        private final long[] mLogSequences = new long[CHANGE_LOG_SIZE];
+        @GuardedBy("this")
+        private final String[] mLogNames = new String[CHANGE_LOG_SIZE];
+        @GuardedBy("this")
+        private final String[] mLogValues = new String[CHANGE_LOG_SIZE];
+        @GuardedBy("this")
+        private final boolean[] mLogDeleted = new boolean[CHANGE_LOG_SIZE];
+        @GuardedBy("this")
+        private int mLogStart;
+        @GuardedBy("this")
+        private int mLogCount;
+        // Every change numbered above the floor is in the log.
+        @GuardedBy("this")
+        private long mLogFloor;
+        // Number of the last change of the table
+        @GuardedBy("this")
+        private long mLastSequence;
+
+        Table(String name, AtomicLong sequence) {
+            mName = name;
+            mSequence = sequence;
+        }
+
+        /**
+         * Returns the value of a setting, or null if it is unset or set to null.
+         */
+        public synchronized String get(String name) {
+            return mValues.get(name);
+        }
+
+        public synchronized void put(String name, String value) {
+            mValues.put(name, value);
+            logChangeLocked(name, value, false);
+        }
+
+        /**
+         * Removes a setting.
+         * @return Whether the setting existed.
+         */
+        public synchronized boolean remove(String name) {
+            if (!mValues.containsKey(name)) {
+                return false;
+            }
+            mValues.remove(name);
+            logChangeLocked(name, null, true);
+            return true;
+        }
+
+        @GuardedBy("this")
+        private void logChangeLocked(String name, String value, boolean deleted) {
+            final int index;
+            if (mLogCount == CHANGE_LOG_SIZE) {
+                // Overwrite the oldest change, which can no longer be caught up on.
+                index = mLogStart;
+                mLogFloor = mLogSequences[index];
+                mLogStart = (mLogStart + 1) % CHANGE_LOG_SIZE;
+            } else {
+                index = (mLogStart + mLogCount) % CHANGE_LOG_SIZE;
+                mLogCount++;
+            }
+            mLastSequence = mSequence.incrementAndGet();
+            mLogSequences[index] = mLastSequence;
+            mLogNames[index] = name;
+            mLogValues[index] = value;
+            mLogDeleted[index] = deleted;
+        }
+
+        public synchronized int size() {
+            return mValues.size();
+        }
+
+        /**
+         * Copies every row into the given parallel lists.
+         * @return The sequence number of the last change reflected in the rows.
+         */
+        public synchronized long getAll(List<String> names, List<String> values) {
+            for (Map.Entry<String, String> entry : mValues.entrySet()) {
+                names.add(entry.getKey());
+                values.add(entry.getValue());
+            }
+            return mLastSequence;
+        }
+
+        /**
+         * Copies the rows in name order, starting after a given name, into the given parallel
+         * lists.
+         * @param startAfter The name to start after, or null to start with the first row.
+         * @param limit The maximum number of rows to copy, 0 for no limit.
+         * @return The sequence number of the last change reflected in the rows.
+         */
+        public synchronized long getSorted(String startAfter, int limit, List<String> names,
+                List<String> values) {
+            final ArrayList<String> sorted = new ArrayList<String>(mValues.size());
+            for (String name : mValues.keySet()) {
+                if (startAfter == null || name.compareTo(startAfter) > 0) {
+                    sorted.add(name);
+                }
+            }
+            Collections.sort(sorted);
+            final int count = limit > 0 ? Math.min(limit, sorted.size()) : sorted.size();
+            for (int i = 0; i < count; i++) {
+                final String name = sorted.get(i);
+                names.add(name);
+                values.add(mValues.get(name));
+            }
+            return mLastSequence;
+        }
+
+        /**
+         * Copies the changes made after a given one into the given parallel lists. A setting
+         * changed several times is reported once, with its latest value.
+         * @param sequence The sequence number the reader is up to date with.
+         * @param names Receives the names of the changed settings.
+         * @param values Receives their new values.
+         * @param deleted Receives whether each setting was removed.
+         * @return The sequence number of the last change, or -1 if the changes since the given
+         *     one are no longer all known and the table has to be read again.
+         */
+        public synchronized long getChangesSince(long sequence, List<String> names,
+                List<String> values, List<Boolean> deleted) {
+            if (sequence < mLogFloor || sequence > mLastSequence) {
+                return -1;
+            }
+            final ArrayMap<String, Integer> latest = new ArrayMap<String, Integer>();
+            for (int i = 0; i < mLogCount; i++) {
+                final int index = (mLogStart + i) % CHANGE_LOG_SIZE;
+                if (mLogSequences[index] > sequence) {
+                    latest.put(mLogNames[index], index);
+                }
+            }
+            for (int i = 0; i < latest.size(); i++) {
+                final int index = latest.valueAt(i);
+                names.add(mLogNames[index]);
+                values.add(mLogValues[index]);
+                deleted.add(mLogDeleted[index]);
+            }
+            return mLastSequence;
+        }
+
+        /**
+         * Replaces the rows with the persisted content of the table, for writes whose effect
+         * on the rows isn't known. Readers holding an older copy have to read it again.
+         */
+        public synchronized void reload(SettingsBackend backend) {
+            mValues.clear();
+            backend.load(mName, mValues);
+            mLogStart = 0;
+            mLogCount = 0;
+            Arrays.fill(mLogNames, null);
+            Arrays.fill(mLogValues, null);
+            mLastSequence = mSequence.incrementAndGet();
+            mLogFloor = mLastSequence;
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.database.sqlite.SQLiteException;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.Log;
+import android.util.SparseArray;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.os.BackgroundThread;
+
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+ * Persists settings writes behind the in-memory tables. Writes are queued per user and table,
+ * with later writes to a key replacing earlier ones, and committed to the user's backend as one
+ * batch once the write delay has passed since the first queued write. A delay of 0 commits every
+ * write on the calling thread before returning.
+ *
+ * A batch that fails to commit is queued again, under any writes made since, and retried with
+ * a growing delay until it goes through.
+ */
+final class SettingsWriter {
+    private static final String TAG = "SettingsWriter";
+    private static final boolean LOCAL_LOGV = false;
+
+    // Delays between retries of failed commits, doubling from the first to the last
+    private static final long MIN_RETRY_DELAY_MS = 1000;
+    private static final long MAX_RETRY_DELAY_MS = 5 * 60 * 1000;
+
+    private final long mWriteDelayMs;
+    private final Handler mHandler;
+    private final Handler mRetryHandler;
+
+    private final Object mLock = new Object();
+
+    // Serializes commits, so that a batch is never written after a newer one.
+    private final Object mCommitLock = new Object();
+
+    @GuardedBy("mLock")
+    private SparseArray<PendingWrites> mPending = new SparseArray<PendingWrites>();
+
+    @GuardedBy("mLock")
+    private boolean mFlushScheduled;
+
+    // Delay of the next retry, 0 while commits succeed
+    @GuardedBy("mLock")
+    private long mRetryDelayMs;
+
+    // Statistics, reported by dump()
+    @GuardedBy("mLock")
+    private long mQueuedWrites;
+    @GuardedBy("mCommitLock")
+    private long mCommittedRows;
+    @GuardedBy("mCommitLock")
+    private long mCommits;
+    @GuardedBy("mCommitLock")
+    private long mCommitTimeMs;
+    @GuardedBy("mCommitLock")
+    private long mFailedCommits;
+    @GuardedBy("mLock")
+    private long mRetries;
+
+    private final Runnable mFlushRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mFlushScheduled = false;
+            }
+            flushAll();
+        }
+    };
+
+    private final Runnable mRetryRunnable = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (mLock) {
+                mRetries++;
+            }
+            flushAll();
+        }
+    };
+
+    SettingsWriter(long writeDelayMs) {
+        mWriteDelayMs = writeDelayMs;
+        if (writeDelayMs > 0) {
+            final HandlerThread thread = new HandlerThread(TAG,
+                    Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        } else {
+            mHandler = null;
+        }
+        mRetryHandler = mHandler != null ? mHandler : BackgroundThread.getHandler();
+    }
+
+    /**
+     * Queues a write of a setting.
+     * @param backend The backend of the user owning the table.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param tableName The table to write to.
+     * @param name The name of the setting.
+     * @param value The new value of the setting.
+     */
+    public void put(SettingsBackend backend, int userId, String tableName, String name,
+            String value) {
+        synchronized (mLock) {
+            final TableChanges changes = getTableChangesLocked(backend, userId, tableName);
+            changes.mDeletes.remove(name);
+            changes.mPuts.put(name, value);
+            onQueuedLocked();
+        }
+        if (mHandler == null) {
+            flush(userId);
+        }
+    }
+
+    /**
+     * Queues the deletion of a setting.
+     * @param backend The backend of the user owning the table.
+     * @param userId The user owning the table, as resolved for that table.
+     * @param tableName The table to delete from.
+     * @param name The name of the setting.
+     */
+    public void delete(SettingsBackend backend, int userId, String tableName, String name) {
+        synchronized (mLock) {
+            final TableChanges changes = getTableChangesLocked(backend, userId, tableName);
+            changes.mPuts.remove(name);
+            changes.mDeletes.add(name);
+            onQueuedLocked();
+        }
+        if (mHandler == null) {
+            flush(userId);
+        }
+    }
+
+    @GuardedBy("mLock")
+    private TableChanges getTableChangesLocked(SettingsBackend backend, int userId,
+            String tableName) {
+        PendingWrites pending = mPending.get(userId);
+        if (pending == null) {
+            pending = new PendingWrites(backend);
+            mPending.put(userId, pending);
+        }
+        TableChanges changes = pending.mTables.get(tableName);
+        if (changes == null) {
+            changes = new TableChanges();
+            pending.mTables.put(tableName, changes);
+        }
+        return changes;
+    }
+
+    @GuardedBy("mLock")
+    private void onQueuedLocked() {
+        mQueuedWrites++;
+        if (mHandler != null && !mFlushScheduled) {
+            mFlushScheduled = true;
+            mHandler.postDelayed(mFlushRunnable, mWriteDelayMs);
+        }
+    }
+
+    /**
+     * Commits the queued writes of a user on the calling thread.
+     * @param userId The user owning the tables, as resolved for those tables.
+     */
+    public void flush(int userId) {
+        synchronized (mCommitLock) {
+            final PendingWrites pending;
+            synchronized (mLock) {
+                pending = mPending.get(userId);
+                mPending.remove(userId);
+            }
+            if (pending != null) {
+                commitLocked(userId, pending);
+            }
+        }
+    }
+
+    /**
+     * Commits the queued writes of every user on the calling thread.
+     */
+    public void flushAll() {
+        synchronized (mCommitLock) {
+            final SparseArray<PendingWrites> pending;
+            synchronized (mLock) {
+                pending = mPending;
+                mPending = new SparseArray<PendingWrites>();
+            }
+            for (int i = 0; i < pending.size(); i++) {
+                commitLocked(pending.keyAt(i), pending.valueAt(i));
+            }
+        }
+    }
+
+    /**
+     * Drops the queued writes of a removed user, whose database is going away.
+     * @param userId The id of the user that was removed.
+     */
+    public void onUserRemoved(int userId) {
+        synchronized (mLock) {
+            mPending.remove(userId);
+        }
+    }
+
+    @GuardedBy("mCommitLock")
+    private void commitLocked(int userId, PendingWrites pending) {
+        final long start = SystemClock.uptimeMillis();
+        int rows = 0;
+        for (int i = 0; i < pending.mTables.size(); i++) {
+            final TableChanges changes = pending.mTables.valueAt(i);
+            rows += changes.mPuts.size() + changes.mDeletes.size();
+        }
+        try {
+            pending.mBackend.commit(pending.mTables);
+        } catch (SQLiteException | IOException e) {
+            // The values are still served from memory, so keep them queued until they are
+            // persisted as well.
+            mFailedCommits++;
+            final long retryDelayMs = requeueLocked(userId, pending);
+            Log.e(TAG, "Failed to persist " + rows + " setting(s) of user " + userId
+                    + ", retrying in " + retryDelayMs + "ms", e);
+            return;
+        }
+        synchronized (mLock) {
+            if (mRetryDelayMs != 0 && mPending.size() == 0) {
+                mRetryDelayMs = 0;
+                mRetryHandler.removeCallbacks(mRetryRunnable);
+            }
+        }
+
+        final long elapsed = SystemClock.uptimeMillis() - start;
+        mCommits++;
+        mCommittedRows += rows;
+        mCommitTimeMs += elapsed;
+        if (LOCAL_LOGV) {
+            Log.v(TAG, "Committed " + rows + " row(s) for user " + userId + " in " + elapsed
+                    + "ms");
+        }
+    }
+
+    /**
+     * Queues a batch that failed to commit again, under the writes queued since it was taken,
+     * and schedules a retry.
+     * @return The delay of the retry.
+     */
+    @GuardedBy("mCommitLock")
+    private long requeueLocked(int userId, PendingWrites failed) {
+        synchronized (mLock) {
+            final PendingWrites newer = mPending.get(userId);
+            if (newer == null) {
+                mPending.put(userId, failed);
+            } else {
+                for (int i = 0; i < failed.mTables.size(); i++) {
+                    final TableChanges changes = failed.mTables.valueAt(i);
+                    final TableChanges newerChanges = newer.mTables.get(failed.mTables.keyAt(i));
+                    if (newerChanges == null) {
+                        newer.mTables.put(failed.mTables.keyAt(i), changes);
+                        continue;
+                    }
+                    // Keep the failed write of a key only if it wasn't written again since.
+                    for (int j = 0; j < changes.mPuts.size(); j++) {
+                        final String name = changes.mPuts.keyAt(j);
+                        if (!newerChanges.mPuts.containsKey(name)
+                                && !newerChanges.mDeletes.contains(name)) {
+                            newerChanges.mPuts.put(name, changes.mPuts.valueAt(j));
+                        }
+                    }
+                    for (int j = 0; j < changes.mDeletes.size(); j++) {
+                        final String name = changes.mDeletes.valueAt(j);
+                        if (!newerChanges.mPuts.containsKey(name)) {
+                            newerChanges.mDeletes.add(name);
+                        }
+                    }
+                }
+            }
+
+            mRetryDelayMs = mRetryDelayMs == 0
+                    ? MIN_RETRY_DELAY_MS : Math.min(mRetryDelayMs * 2, MAX_RETRY_DELAY_MS);
+            mRetryHandler.removeCallbacks(mRetryRunnable);
+            mRetryHandler.postDelayed(mRetryRunnable, mRetryDelayMs);
+            return mRetryDelayMs;
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        synchronized (mLock) {
+            pw.println("Settings writer: delay=" + mWriteDelayMs + "ms");
+            pw.println("  queuedWrites=" + mQueuedWrites);
+            pw.println("  pendingUsers=" + mPending.size());
+            pw.println("  retries=" + mRetries + " retryDelayMs=" + mRetryDelayMs);
+        }
+        synchronized (mCommitLock) {
+            pw.println("  commits=" + mCommits);
+            pw.println("  committedRows=" + mCommittedRows);
+            pw.println("  commitTimeMs=" + mCommitTimeMs);
+            pw.println("  failedCommits=" + mFailedCommits);
+        }
+    }
+
+    /**
+     * The queued writes of one user, by table.
+     */
+    private static final class PendingWrites {
+        final SettingsBackend mBackend;
+        final ArrayMap<String, TableChanges> mTables = new ArrayMap<String, TableChanges>();
+
+        PendingWrites(SettingsBackend backend) {
+            mBackend = backend;
+        }
+    }
+
+    /**
+     * The queued writes of one table. A setting is either written or deleted, whichever
+     * happened last.
+     */
+    static final class TableChanges {
+        final ArrayMap<String, String> mPuts = new ArrayMap<String, String>();
+        final ArraySet<String> mDeletes = new ArraySet<String>();
+    }
+}
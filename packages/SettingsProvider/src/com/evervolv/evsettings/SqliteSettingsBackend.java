@@ -0,0 +1,218 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDebug;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.provider.Settings;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import com.android.internal.annotations.GuardedBy;
+
+import java.io.File;
+import java.io.PrintWriter;
+import java.util.Map;
+
+/**
+ * Keeps the settings tables of a user in the SQLite database managed by
+ * {@link DatabaseHelper}.
+ *
+ * Operations are serialized, so that closing the backend never pulls the database from under
+ * a running one; the helper opens the database again on the next operation.
+ */
+final class SqliteSettingsBackend implements SettingsBackend {
+    private final DatabaseHelper mDbHelper;
+
+    @GuardedBy("this")
+    private boolean mOpened;
+
+    // Statistics, reported by dump()
+    @GuardedBy("this")
+    private long mOpenTimeMs = -1;
+
+    SqliteSettingsBackend(Context context, int userId) {
+        mDbHelper = new DatabaseHelper(context, userId);
+    }
+
+    /**
+     * Adds every row of a database table to the given map.
+     */
+    static void readRows(SQLiteDatabase db, String tableName, Map<String, String> rows) {
+        final Cursor cursor = db.query(tableName,
+                new String[] { Settings.NameValueTable.NAME, Settings.NameValueTable.VALUE },
+                null, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                rows.put(cursor.getString(0), cursor.getString(1));
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized void open() {
+        final long start = SystemClock.uptimeMillis();
+        getDatabaseLocked();
+        if (mOpenTimeMs < 0) {
+            mOpenTimeMs = SystemClock.uptimeMillis() - start;
+        }
+    }
+
+    /**
+     * Returns the database, which the helper opens on first use and after being closed.
+     */
+    @GuardedBy("this")
+    private SQLiteDatabase getDatabaseLocked() {
+        final SQLiteDatabase db = mDbHelper.getWritableDatabase();
+        mOpened = true;
+        return db;
+    }
+
+    @Override
+    public synchronized void load(String tableName, Map<String, String> rows) {
+        final SQLiteDatabase db = getDatabaseLocked();
+        if (hasTable(db, tableName)) {
+            readRows(db, tableName, rows);
+        }
+    }
+
+    private static boolean hasTable(SQLiteDatabase db, String tableName) {
+        final Cursor cursor = db.query("sqlite_master", new String[] { "name" },
+                "type = 'table' AND name = ?", new String[] { tableName }, null, null, null);
+        try {
+            return cursor.getCount() > 0;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public synchronized void commit(ArrayMap<String, SettingsWriter.TableChanges> changes) {
+        final SQLiteDatabase db = getDatabaseLocked();
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < changes.size(); i++) {
+                final String tableName = changes.keyAt(i);
+                final SettingsWriter.TableChanges tableChanges = changes.valueAt(i);
+
+                // Each statement is compiled once per table and batch, and rebound per row.
+                final ArraySet<String> deletes = tableChanges.mDeletes;
+                if (!deletes.isEmpty()) {
+                    final SQLiteStatement delete = db.compileStatement(
+                            "DELETE FROM " + tableName + " WHERE name = ?");
+                    try {
+                        for (int j = 0; j < deletes.size(); j++) {
+                            bindStringOrNull(delete, 1, deletes.valueAt(j));
+                            delete.executeUpdateDelete();
+                        }
+                    } finally {
+                        delete.close();
+                    }
+                }
+
+                final ArrayMap<String, String> puts = tableChanges.mPuts;
+                if (!puts.isEmpty()) {
+                    final SQLiteStatement insert = db.compileStatement(
+                            "INSERT OR REPLACE INTO " + tableName + " (name, value) VALUES (?, ?)");
+                    try {
+                        for (int j = 0; j < puts.size(); j++) {
+                            bindStringOrNull(insert, 1, puts.keyAt(j));
+                            bindStringOrNull(insert, 2, puts.valueAt(j));
+                            if (insert.executeInsert() < 0) {
+                                throw new SQLiteException("Failed to insert " + puts.keyAt(j));
+                            }
+                        }
+                    } finally {
+                        insert.close();
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    private static void bindStringOrNull(SQLiteStatement statement, int index, String value) {
+        if (value == null) {
+            statement.bindNull(index);
+        } else {
+            statement.bindString(index, value);
+        }
+    }
+
+    @Override
+    public synchronized Cursor query(String tableName, String[] projection, String selection,
+            String[] selectionArgs, String sortOrder) {
+        final SQLiteQueryBuilder queryBuilder = new SQLiteQueryBuilder();
+        queryBuilder.setTables(tableName);
+        final Cursor cursor = queryBuilder.query(getDatabaseLocked(), projection, selection,
+                selectionArgs, null, null, sortOrder);
+        // Fill the first window now, while the database is known to be open.
+        cursor.getCount();
+        return cursor;
+    }
+
+    @Override
+    public synchronized int update(String tableName, ContentValues values, String selection,
+            String[] selectionArgs) {
+        return getDatabaseLocked().update(tableName, values, selection, selectionArgs);
+    }
+
+    @Override
+    public synchronized int delete(String tableName, String selection, String[] selectionArgs) {
+        return getDatabaseLocked().delete(tableName, selection, selectionArgs);
+    }
+
+    @Override
+    public synchronized void close() {
+        mDbHelper.close();
+        mOpened = false;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return mOpened;
+    }
+
+    @Override
+    public synchronized void dump(PrintWriter pw, String prefix) {
+        final File file = new File(mDbHelper.getDatabaseName());
+        pw.print(prefix + "sqlite " + file + " size=" + file.length()
+                + " openTimeMs=" + mOpenTimeMs + (mOpened ? " open" : " closed"));
+        if (mOpened) {
+            // Memory held by the connection: lookaside slots in use, and the page cache as
+            // hits/misses/pages.
+            for (SQLiteDebug.DbStats stats : SQLiteDebug.getDatabaseInfo().dbStats) {
+                if (file.getPath().equals(stats.dbName)) {
+                    pw.print(" pageSizeKb=" + stats.pageSize + " lookaside=" + stats.lookaside
+                            + " cache=" + stats.cache);
+                }
+            }
+        }
+        pw.println();
+    }
+}
@@ -26,10 +26,10 @@ import static com.evervolv.internal.util.PowerMenuConstants.GLOBAL_ACTION_KEY_LO
 import android.content.ContentResolver;
 import android.content.Context;
 import android.content.res.Resources;
-import android.database.ContentObserver;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.IBinder;
 import android.os.UserHandle;
 import android.provider.Settings;
@@ -38,10 +38,14 @@ import evervolv.app.ContextConstants;
 import evervolv.app.IGlobalActions;
 
 import com.evervolv.internal.util.PowerMenuConstants;
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 /**
  * @hide
@@ -65,25 +69,31 @@ public class GlobalActionService extends VendorService {
         mContentResolver = mContext.getContentResolver();
     }
 
-    private class GlobalActionSettingsObserver extends ContentObserver {
+    private class GlobalActionSettingsObserver implements OnSettingsChangedListener {
 
         private final Uri BUGREPORT_URI =
                 Settings.Global.getUriFor(Settings.Global.BUGREPORT_IN_POWER_MENU);
 
+        private final Executor mExecutor;
+
         public GlobalActionSettingsObserver(Context context, Handler handler) {
-            super(handler);
+            // Without a handler, run on the thread delivering the change like before.
+            mExecutor = (handler != null) ? new HandlerExecutor(handler) : Runnable::run;
         }
 
         public void observe(boolean enabled) {
+            final SettingsChangeDispatcher dispatcher =
+                    SettingsChangeDispatcher.getInstance(mContext);
             if (enabled) {
-                mContentResolver.registerContentObserver(BUGREPORT_URI, false, this);
+                dispatcher.registerListener(this, mExecutor, mContentResolver.getUserId(),
+                        BUGREPORT_URI);
             } else {
-                mContentResolver.unregisterContentObserver(this);
+                dispatcher.unregisterListener(this);
             }
         }
 
         @Override
-        public void onChange(boolean selfChange) {
+        public void onSettingsChanged(Set<Uri> uris) {
             updateUserConfigInternal(Settings.Global.getInt(mContentResolver,
                     Settings.Global.BUGREPORT_IN_POWER_MENU, 0) == 1,
                     GLOBAL_ACTION_KEY_BUGREPORT);
@@ -16,15 +16,19 @@
 
 package com.evervolv.platform.internal;
 
-import android.content.ContentResolver;
 import android.content.Context;
 import android.net.Uri;
 import android.os.Handler;
+import android.os.HandlerExecutor;
 import android.os.UserHandle;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
+import com.evervolv.internal.util.SettingsChangeDispatcher.OnSettingsChangedListener;
 import com.evervolv.platform.internal.common.UserContentObserver;
 
 import java.io.PrintWriter;
+import java.util.Set;
+import java.util.concurrent.Executor;
 
 import evervolv.provider.EVSettings;
 
@@ -89,34 +93,38 @@ public abstract class VendorBaseFeature {
         mSettingsObserver.unregister();
     }
 
-    final class SettingsObserver extends UserContentObserver {
+    final class SettingsObserver extends UserContentObserver
+            implements OnSettingsChangedListener {
+        private final Executor mExecutor;
 
         public SettingsObserver(Handler handler) {
             super(handler);
+            mExecutor = new HandlerExecutor(handler);
         }
 
         public void register(Uri... uris) {
-            final ContentResolver cr = mContext.getContentResolver();
-            for (Uri uri : uris) {
-                cr.registerContentObserver(uri, false, this, UserHandle.USER_ALL);
-            }
+            SettingsChangeDispatcher.getInstance(mContext).registerListener(this, mExecutor,
+                    UserHandle.USER_ALL, uris);
 
+            // Only user switches are observed directly, settings come from the dispatcher
             observe();
         }
 
         public void unregister() {
-            mContext.getContentResolver().unregisterContentObserver(this);
+            SettingsChangeDispatcher.getInstance(mContext).unregisterListener(this);
             unobserve();
         }
 
         @Override
         protected void update() {
-            onSettingsChanged(null);
+            VendorBaseFeature.this.onSettingsChanged(null);
         }
 
         @Override
-        public void onChange(boolean selfChange, Uri uri) {
-            onSettingsChanged(uri);
+        public void onSettingsChanged(Set<Uri> uris) {
+            for (Uri uri : uris) {
+                VendorBaseFeature.this.onSettingsChanged(uri);
+            }
         }
     }
 }
@@ -17,13 +17,23 @@
 package com.evervolv.platform.internal;
 
 import android.content.Context;
+import android.os.Binder;
+import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.util.Slog;
+import com.android.internal.util.DumpUtils;
 import com.android.server.LocalServices;
 import com.android.server.SystemServiceManager;
 
+import com.evervolv.internal.util.SettingsChangeDispatcher;
 import com.evervolv.platform.internal.common.VendorServiceHelper;
 
+import evervolv.app.ContextConstants;
+import evervolv.provider.EVSettings;
+
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+
 /**
  * Base Vendor System Server which handles the starting and states of various Lineage
  * specific system services. Since its part of the main looper provided by the system
@@ -68,6 +78,16 @@ public class VendorServer {
 
     private void startServices() {
         final Context context = mSystemContext;
+
+        // The settings clients are shared by every service of the process, whichever of them
+        // are running, so their state gets a dump of its own.
+        try {
+            ServiceManager.addService(ContextConstants.SETTINGS_CLIENT_SERVICE,
+                    new SettingsClientDumper(context));
+        } catch (Throwable e) {
+            Slog.w(TAG, "Can't publish " + ContextConstants.SETTINGS_CLIENT_SERVICE, e);
+        }
+
         final SystemServiceManager ssm = LocalServices.getService(SystemServiceManager.class);
         String[] externalServices = context.getResources().getStringArray(
                 com.evervolv.platform.internal.R.array.config_externalVendorServices);
@@ -95,6 +115,23 @@ public class VendorServer {
         }
     }
 
+    private static final class SettingsClientDumper extends Binder {
+        private final Context mContext;
+
+        SettingsClientDumper(Context context) {
+            mContext = context;
+        }
+
+        @Override
+        protected void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
+            if (!DumpUtils.checkDumpPermission(mContext, TAG, pw)) {
+                return;
+            }
+            EVSettings.dumpCacheStats(pw);
+            SettingsChangeDispatcher.getInstance(mContext).dump(pw);
+        }
+    }
+
     private void reportWtf(String msg, Throwable e) {
         Slog.w(TAG, "***********************************************");
         Slog.wtf(TAG, "BOOT FAILURE " + msg, e);
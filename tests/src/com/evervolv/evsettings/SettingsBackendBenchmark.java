@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.os.Bundle;
+import android.os.Debug;
+import android.os.FileUtils;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * Compares the file and SQLite settings backends on the time to open a user's settings and
+ * load its tables, on the memory an open user keeps, and on the latency of committing a
+ * single write. Each simulated user gets its own directory, standing for the user's data
+ * directory, and starts from the default settings. Results are logged and reported as
+ * instrumentation status.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class SettingsBackendBenchmark {
+    private static final String TAG = "SettingsBackendBenchmark";
+
+    private static final String[] KINDS = { "file", "sqlite" };
+    private static final String[] TABLES = { DatabaseHelper.TableNames.TABLE_SYSTEM,
+            DatabaseHelper.TableNames.TABLE_SECURE, DatabaseHelper.TableNames.TABLE_GLOBAL };
+    private static final int USERS = 4;
+    private static final int COMMITS = 200;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 5;
+
+    private final File mRoot = new File(InstrumentationRegistry.getInstrumentation()
+            .getContext().getCacheDir(), TAG);
+
+    @After
+    public void tearDown() {
+        FileUtils.deleteContentsAndDir(mRoot);
+    }
+
+    /**
+     * A context keeping the databases and table files of the user in a directory of its own.
+     */
+    private static final class UserDirContext extends ContextWrapper {
+        private final File mDir;
+
+        UserDirContext(Context base, File dir) {
+            super(base);
+            mDir = dir;
+        }
+
+        @Override
+        public File getDatabasePath(String name) {
+            return name.startsWith(File.separator) ? new File(name) : new File(mDir, name);
+        }
+    }
+
+    private SettingsBackend newBackend(String kind, int user) {
+        final File dir = new File(mRoot, kind + "/user" + user);
+        dir.mkdirs();
+        final Context context = new UserDirContext(
+                InstrumentationRegistry.getInstrumentation().getContext(), dir);
+        // The only user whose settings live under the context's database path.
+        return kind.equals("file")
+                ? new FileSettingsBackend(context, UserHandle.USER_SYSTEM)
+                : new SqliteSettingsBackend(context, UserHandle.USER_SYSTEM);
+    }
+
+    private static int loadAll(SettingsBackend backend) {
+        int rows = 0;
+        for (String table : TABLES) {
+            final HashMap<String, String> values = new HashMap<String, String>();
+            backend.load(table, values);
+            rows += values.size();
+        }
+        return rows;
+    }
+
+    private static long usedMemory() {
+        final Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            runtime.gc();
+            System.runFinalization();
+        }
+        return runtime.totalMemory() - runtime.freeMemory() + Debug.getNativeHeapAllocatedSize();
+    }
+
+    @Test
+    public void benchmarkBackends() throws IOException {
+        final Bundle results = new Bundle();
+        final StringBuilder line = new StringBuilder();
+        int expectedRows = -1;
+        for (String kind : KINDS) {
+            // First open: creates the database with the defaults, and migrates it to files.
+            final long[] firstOpenNs = new long[USERS];
+            for (int user = 0; user < USERS; user++) {
+                final SettingsBackend backend = newBackend(kind, user);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                backend.open();
+                final int rows = loadAll(backend);
+                firstOpenNs[user] = SystemClock.elapsedRealtimeNanos() - start;
+                backend.close();
+                if (expectedRows < 0) {
+                    expectedRows = rows;
+                }
+                assertEquals(expectedRows, rows);
+            }
+            Arrays.sort(firstOpenNs);
+            final long firstOpenUs = firstOpenNs[USERS / 2] / 1000;
+
+            // Later opens, as on boot or when a user starts.
+            long openNs = Long.MAX_VALUE;
+            for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+                final SettingsBackend backend = newBackend(kind, 0);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                backend.open();
+                loadAll(backend);
+                final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+                backend.close();
+                if (round >= WARMUP_ROUNDS) {
+                    openNs = Math.min(openNs, elapsed);
+                }
+            }
+
+            // Memory kept by open users, once their tables were loaded.
+            final SettingsBackend[] open = new SettingsBackend[USERS];
+            final long before = usedMemory();
+            for (int user = 0; user < USERS; user++) {
+                open[user] = newBackend(kind, user);
+                open[user].open();
+                loadAll(open[user]);
+            }
+            final long perUserBytes = (usedMemory() - before) / USERS;
+
+            // Single writes, each committed on its own.
+            final SettingsBackend backend = open[0];
+            final long[] commitNs = new long[COMMITS];
+            for (int i = 0; i < COMMITS; i++) {
+                final SettingsWriter.TableChanges tableChanges = new SettingsWriter.TableChanges();
+                tableChanges.mPuts.put("benchmark_key_" + (i % 8), Integer.toString(i));
+                final ArrayMap<String, SettingsWriter.TableChanges> changes =
+                        new ArrayMap<String, SettingsWriter.TableChanges>();
+                changes.put(DatabaseHelper.TableNames.TABLE_SYSTEM, tableChanges);
+                final long start = SystemClock.elapsedRealtimeNanos();
+                backend.commit(changes);
+                commitNs[i] = SystemClock.elapsedRealtimeNanos() - start;
+            }
+            for (SettingsBackend opened : open) {
+                opened.close();
+            }
+            Arrays.sort(commitNs);
+            final long commitUs = commitNs[COMMITS / 2] / 1000;
+            final long commitP90Us = commitNs[COMMITS * 9 / 10] / 1000;
+
+            results.putLong(kind + "_first_open_us", firstOpenUs);
+            results.putLong(kind + "_open_us", openNs / 1000);
+            results.putLong(kind + "_bytes_per_user", perUserBytes);
+            results.putLong(kind + "_commit_us", commitUs);
+            results.putLong(kind + "_commit_p90_us", commitP90Us);
+            line.append(kind).append(": first open ").append(firstOpenUs)
+                    .append("us, open ").append(openNs / 1000)
+                    .append("us, ").append(perUserBytes).append(" bytes per user, commit ")
+                    .append(commitUs).append("us (p90 ").append(commitP90Us).append("us); ");
+        }
+        results.putLong("rows", expectedRows);
+        Log.i(TAG, expectedRows + " rows; " + line);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+}
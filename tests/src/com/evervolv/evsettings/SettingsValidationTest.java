@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.evervolv.evsettings;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.provider.EVSettings;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.Map;
+
+/**
+ * Checks how the provider validates the rows of batch writes, which skip the rows it rejects
+ * instead of failing as a whole: each row gets its own outcome, and neither a null value nor
+ * a validator throwing fails the batch.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class SettingsValidationTest {
+    private static final int OK = EVSettings.UPSERT_RESULT_OK;
+    private static final int INVALID = EVSettings.UPSERT_RESULT_INVALID;
+
+    @Test
+    public void testUpsertResultsPerRow() {
+        final String[] names = {
+            EVSettings.System.PREFERRED_REFRESH_RATE,
+            EVSettings.System.PREFERRED_REFRESH_RATE,
+            EVSettings.System.PREFERRED_REFRESH_RATE,
+            EVSettings.System.BATTERY_LIGHT_ENABLED,
+            EVSettings.System.BATTERY_LIGHT_ENABLED,
+            "unknown_test_key",
+            null,
+        };
+        final String[] values = { null, "90", "not a rate", "1", "2", "1", "1" };
+        assertArrayEquals(new int[] { INVALID, OK, INVALID, OK, INVALID, INVALID, INVALID },
+                SettingsProvider.validateUpsert(DatabaseHelper.TableNames.TABLE_SYSTEM,
+                        names, values));
+    }
+
+    @Test
+    public void testUnknownKeysOutsideSystemTable() {
+        // Only the system table is limited to known settings.
+        for (String tableName : new String[] { DatabaseHelper.TableNames.TABLE_SECURE,
+                DatabaseHelper.TableNames.TABLE_GLOBAL }) {
+            assertArrayEquals(new int[] { OK, OK },
+                    SettingsProvider.validateUpsert(tableName,
+                            new String[] { "unknown_test_key", "unknown_test_key" },
+                            new String[] { "1", null }));
+        }
+    }
+
+    private static void checkNullRejected(String tableName,
+            Map<String, EVSettings.Validator> validators) {
+        for (String name : validators.keySet()) {
+            assertFalse(tableName + "/" + name,
+                    SettingsProvider.isValidSettingNameValue(tableName, name, null));
+        }
+    }
+
+    @Test
+    public void testNullRejectedWithoutThrowing() {
+        checkNullRejected(DatabaseHelper.TableNames.TABLE_SYSTEM, EVSettings.System.VALIDATORS);
+        checkNullRejected(DatabaseHelper.TableNames.TABLE_SECURE, EVSettings.Secure.VALIDATORS);
+        checkNullRejected(DatabaseHelper.TableNames.TABLE_GLOBAL, EVSettings.Global.VALIDATORS);
+    }
+
+    @Test
+    public void testThrowingValidatorRejects() {
+        final EVSettings.Validator throwing = value -> {
+            throw new IllegalStateException("validator failure");
+        };
+        assertFalse(SettingsProvider.validates(throwing, "1"));
+        assertTrue(SettingsProvider.validates(value -> true, "1"));
+    }
+}
@@ -0,0 +1,340 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import android.content.ContentProvider;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.pm.ProviderInfo;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.Bundle;
+import android.os.Parcel;
+import android.provider.Settings;
+import android.test.mock.MockContentResolver;
+import android.util.ArrayMap;
+import android.util.MemoryIntArray;
+
+import com.android.internal.annotations.GuardedBy;
+
+import evervolv.provider.EVSettings.Validator;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * In-memory stand-in for the settings provider, serving the GET, GET_ALL and PUT call methods
+ * of every table the way the provider does, for tests of {@link EVSettings.NameValueCache}.
+ * When tracking is enabled, per-key generations are kept in a {@link MemoryIntArray} which is
+ * handed out as a parceled copy, as to a client in another process, unless it is shared.
+ * Table generations are kept here instead of in system properties, and every call served is
+ * counted.
+ */
+final class FakeSettingsProvider extends ContentProvider {
+    private final boolean mTrackGenerations;
+    private final MockContentResolver mResolver;
+    private volatile boolean mSharedTrackers;
+
+    private final Object mLock = new Object();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, ArrayMap<String, String>> mTables =
+            new ArrayMap<String, ArrayMap<String, String>>();
+    @GuardedBy("mLock")
+    private final ArrayMap<String, MemoryIntArray> mTrackers =
+            new ArrayMap<String, MemoryIntArray>();
+
+    private final ConcurrentHashMap<String, AtomicLong> mGenerations =
+            new ConcurrentHashMap<String, AtomicLong>();
+    private final ConcurrentHashMap<String, LongAdder> mCallCounts =
+            new ConcurrentHashMap<String, LongAdder>();
+
+    FakeSettingsProvider(Context context, boolean trackGenerations) {
+        mTrackGenerations = trackGenerations;
+        final ProviderInfo info = new ProviderInfo();
+        info.authority = EVSettings.AUTHORITY;
+        attachInfo(context, info);
+        mResolver = new MockContentResolver(context);
+        mResolver.addProvider(EVSettings.AUTHORITY, this);
+    }
+
+    /**
+     * @return A resolver that routes the settings authority to this provider.
+     */
+    ContentResolver getResolver() {
+        return mResolver;
+    }
+
+    static Map<String, Validator> getValidators(String tableName) {
+        switch (tableName) {
+            case "system":
+                return EVSettings.System.VALIDATORS;
+            case "secure":
+                return EVSettings.Secure.VALIDATORS;
+            case "global":
+                return EVSettings.Global.VALIDATORS;
+            default:
+                throw new IllegalArgumentException("Unknown table " + tableName);
+        }
+    }
+
+    /**
+     * Creates a cache of a table read from this provider, set up like the one of the table in
+     * {@link EVSettings}.
+     * @param tableName The table, as named in the call methods.
+     * @param prefetch Whether the cache reads the whole table on the first miss after an
+     *     invalidation.
+     */
+    EVSettings.NameValueCache newCache(String tableName, boolean prefetch) {
+        final Uri uri = Uri.parse("content://" + EVSettings.AUTHORITY + "/" + tableName);
+        return new EVSettings.NameValueCache(null, uri, "GET_" + tableName,
+                "PUT_" + tableName, "PUT_BATCH_" + tableName, "UPSERT_" + tableName,
+                prefetch ? "GET_ALL_" + tableName : null, null,
+                new EVSettings.ContentProviderHolder(uri),
+                getValidators(tableName).keySet(), null) {
+            @Override
+            long getTableGeneration() {
+                return FakeSettingsProvider.this.getGeneration(tableName);
+            }
+        };
+    }
+
+    long getGeneration(String tableName) {
+        return getGenerationCounter(tableName).get();
+    }
+
+    private AtomicLong getGenerationCounter(String tableName) {
+        return mGenerations.computeIfAbsent(tableName, t -> new AtomicLong());
+    }
+
+    /**
+     * @return The number of calls of a method served so far.
+     */
+    long getCallCount(String method) {
+        final LongAdder count = mCallCounts.get(method);
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * @return The number of calls of any method served so far.
+     */
+    long getCallCount() {
+        long total = 0;
+        for (LongAdder count : mCallCounts.values()) {
+            total += count.sum();
+        }
+        return total;
+    }
+
+    void resetCallCounts() {
+        mCallCounts.clear();
+    }
+
+    /**
+     * Hands out the provider's own trackers instead of parceled copies, as the provider does
+     * to clients in the system process.
+     */
+    void setSharedTrackers(boolean shared) {
+        mSharedTrackers = shared;
+    }
+
+    /**
+     * Closes and forgets the generation trackers, as the provider does when a user is removed.
+     * Trackers shared with {@link #setSharedTrackers} are closed under their clients.
+     */
+    void closeTrackers() {
+        synchronized (mLock) {
+            for (int i = 0; i < mTrackers.size(); i++) {
+                try {
+                    mTrackers.valueAt(i).close();
+                } catch (IOException e) {
+                    // Nothing left to do with it
+                }
+            }
+            mTrackers.clear();
+        }
+    }
+
+    /**
+     * Writes a setting, as a client of another process would. Its generations are bumped
+     * once the value is in place, as the provider does.
+     */
+    void putValue(String tableName, String name, String value) {
+        synchronized (mLock) {
+            ArrayMap<String, String> table = mTables.get(tableName);
+            if (table == null) {
+                table = new ArrayMap<String, String>();
+                mTables.put(tableName, table);
+            }
+            table.put(name, value);
+
+            final MemoryIntArray tracker = mTrackers.get(tableName);
+            if (tracker != null) {
+                final int bucket = EVSettings.getGenerationBucket(name);
+                try {
+                    tracker.set(bucket, tracker.get(bucket) + 1);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            getGenerationCounter(tableName).incrementAndGet();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        mCallCounts.computeIfAbsent(method, m -> new LongAdder()).increment();
+        final int split = method.lastIndexOf('_');
+        final String op = method.substring(0, split);
+        final String tableName = method.substring(split + 1);
+        final boolean track = mTrackGenerations && extras != null
+                && extras.getBoolean(EVSettings.CALL_METHOD_TRACK_GENERATION_KEY);
+        try {
+            switch (op) {
+                case "GET":
+                    return get(tableName, arg, track);
+                case "GET_ALL":
+                    return getAll(tableName, track);
+                case "PUT":
+                    putValue(tableName, arg, extras.getString(Settings.NameValueTable.VALUE));
+                    return null;
+                default:
+                    throw new UnsupportedOperationException(method);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private Bundle get(String tableName, String name, boolean track) throws IOException {
+        synchronized (mLock) {
+            final ArrayMap<String, String> table = mTables.get(tableName);
+            final String value = table != null ? table.get(name) : null;
+            if (!track) {
+                return Bundle.forPair(Settings.NameValueTable.VALUE, value);
+            }
+            final MemoryIntArray tracker = getTrackerLocked(tableName);
+            final Bundle ret = new Bundle();
+            ret.putInt(EVSettings.CALL_METHOD_KEY_GENERATION_KEY,
+                    tracker.get(EVSettings.getGenerationBucket(name)));
+            ret.putParcelable(EVSettings.CALL_METHOD_GENERATION_TRACKER_KEY,
+                    handOut(tracker));
+            ret.putString(Settings.NameValueTable.VALUE, value);
+            return ret;
+        }
+    }
+
+    private Bundle getAll(String tableName, boolean track) throws IOException {
+        synchronized (mLock) {
+            final Bundle ret = new Bundle();
+            final int[] bucketGenerations = new int[EVSettings.GENERATION_BUCKET_COUNT];
+            final MemoryIntArray tracker = track
+                    ? getTrackerLocked(tableName) : mTrackers.get(tableName);
+            if (tracker != null) {
+                for (int i = 0; i < bucketGenerations.length; i++) {
+                    bucketGenerations[i] = tracker.get(i);
+                }
+                if (track) {
+                    ret.putParcelable(EVSettings.CALL_METHOD_GENERATION_TRACKER_KEY,
+                            handOut(tracker));
+                }
+            }
+
+            final ArrayMap<String, String> table = mTables.get(tableName);
+            final int size = table != null ? table.size() : 0;
+            final String[] names = new String[size];
+            final String[] values = new String[size];
+            for (int i = 0; i < size; i++) {
+                names[i] = table.keyAt(i);
+                values[i] = table.valueAt(i);
+            }
+            ret.putLong(EVSettings.CALL_METHOD_GENERATION_KEY, getGeneration(tableName));
+            ret.putIntArray(EVSettings.CALL_METHOD_BUCKET_GENERATIONS_KEY, bucketGenerations);
+            ret.putStringArray(EVSettings.CALL_METHOD_NAMES_KEY, names);
+            ret.putStringArray(EVSettings.CALL_METHOD_VALUES_KEY, values);
+            return ret;
+        }
+    }
+
+    @GuardedBy("mLock")
+    private MemoryIntArray getTrackerLocked(String tableName) throws IOException {
+        MemoryIntArray tracker = mTrackers.get(tableName);
+        if (tracker == null) {
+            tracker = new MemoryIntArray(EVSettings.GENERATION_BUCKET_COUNT);
+            mTrackers.put(tableName, tracker);
+        }
+        return tracker;
+    }
+
+    private MemoryIntArray handOut(MemoryIntArray tracker) {
+        return mSharedTrackers ? tracker : copyTracker(tracker);
+    }
+
+    /**
+     * Maps a tracker again through a parcel, the way a client of another process receives it.
+     */
+    private static MemoryIntArray copyTracker(MemoryIntArray tracker) {
+        final Parcel parcel = Parcel.obtain();
+        try {
+            tracker.writeToParcel(parcel, 0);
+            parcel.setDataPosition(0);
+            return MemoryIntArray.CREATOR.createFromParcel(parcel);
+        } finally {
+            parcel.recycle();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        closeTrackers();
+    }
+
+    @Override
+    public boolean onCreate() {
+        return true;
+    }
+
+    @Override
+    public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
+            String sortOrder) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getType(Uri uri) {
+        return null;
+    }
+
+    @Override
+    public Uri insert(Uri uri, ContentValues values) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int delete(Uri uri, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public int update(Uri uri, ContentValues values, String selection, String[] selectionArgs) {
+        throw new UnsupportedOperationException();
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import android.os.Bundle;
+
+import java.util.HashMap;
+
+/**
+ * The settings cache as it was before hits were served from an immutable snapshot: a HashMap
+ * behind the cache's monitor, cleared whenever the table generation changes. Kept as the
+ * reference the current cache is benchmarked against, reading the table generation and the
+ * values from a {@link FakeSettingsProvider} like the caches it is compared with.
+ */
+final class LegacyNameValueCache {
+    private final FakeSettingsProvider mProvider;
+    private final String mTableName;
+    private final String mCallGetCommand;
+
+    // Must synchronize on 'this' to access mValues and mValuesVersion.
+    private final HashMap<String, String> mValues = new HashMap<String, String>();
+    private long mValuesVersion = 0;
+
+    LegacyNameValueCache(FakeSettingsProvider provider, String tableName) {
+        mProvider = provider;
+        mTableName = tableName;
+        mCallGetCommand = "GET_" + tableName;
+    }
+
+    String getString(String name) {
+        long newValuesVersion = mProvider.getGeneration(mTableName);
+
+        synchronized (LegacyNameValueCache.this) {
+            if (mValuesVersion != newValuesVersion) {
+                mValues.clear();
+                mValuesVersion = newValuesVersion;
+            } else if (mValues.containsKey(name)) {
+                return mValues.get(name);  // Could be null, that's OK -- negative caching
+            }
+        }
+
+        Bundle b = mProvider.call(mCallGetCommand, name, null);
+        String value = b.getPairValue();
+        synchronized (LegacyNameValueCache.this) {
+            mValues.put(name, value);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import android.text.TextUtils;
+import android.util.ArraySet;
+
+import evervolv.provider.EVSettings.Validator;
+
+import java.util.Arrays;
+import java.util.regex.Pattern;
+
+/**
+ * The settings validators as they were before they stopped splitting values and catching
+ * NumberFormatException, kept verbatim as the reference the current ones are checked against.
+ */
+final class LegacyValidators {
+
+    static final Validator sNonNegativeIntegerValidator = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            try {
+                return Integer.parseInt(value) >= 0;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    };
+
+    static final Validator sColorValidator =
+            new InclusiveIntegerRangeValidator(Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+    static final class InclusiveIntegerRangeValidator implements Validator {
+        private final int mMin;
+        private final int mMax;
+
+        InclusiveIntegerRangeValidator(int min, int max) {
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            try {
+                final int intValue = Integer.parseInt(value);
+                return intValue >= mMin && intValue <= mMax;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    static final class InclusiveFloatRangeValidator implements Validator {
+        private final float mMin;
+        private final float mMax;
+
+        InclusiveFloatRangeValidator(float min, float max) {
+            mMin = min;
+            mMax = max;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            try {
+                final float floatValue = Float.parseFloat(value);
+                return floatValue >= mMin && floatValue <= mMax;
+            } catch (NumberFormatException e) {
+                return false;
+            }
+        }
+    }
+
+    static final class DelimitedListValidator implements Validator {
+        private final ArraySet<String> mValidValueSet;
+        private final String mDelimiter;
+        private final boolean mAllowEmptyList;
+
+        DelimitedListValidator(String[] validValues, String delimiter, boolean allowEmptyList) {
+            mValidValueSet = new ArraySet<String>(Arrays.asList(validValues));
+            mDelimiter = delimiter;
+            mAllowEmptyList = allowEmptyList;
+        }
+
+        @Override
+        public boolean validate(String value) {
+            ArraySet<String> values = new ArraySet<String>();
+            if (!TextUtils.isEmpty(value)) {
+                final String[] array = TextUtils.split(value, Pattern.quote(mDelimiter));
+                for (String item : array) {
+                    if (TextUtils.isEmpty(item)) {
+                        continue;
+                    }
+                    values.add(item);
+                }
+            }
+            if (values.size() > 0) {
+                values.removeAll(mValidValueSet);
+                // values.size() will be non-zero if it contains any values not in
+                // mValidValueSet
+                return values.size() == 0;
+            } else if (mAllowEmptyList) {
+                return true;
+            }
+
+            return false;
+        }
+    }
+
+    static final Validator NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_VALIDATOR = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return true;
+            }
+
+            for (String packageValuesString : value.split("\\|")) {
+                String[] packageValues = packageValuesString.split("=");
+                if (packageValues.length != 2) {
+                    return false;
+                }
+                String packageName = packageValues[0];
+                if (TextUtils.isEmpty(packageName)) {
+                    return false;
+                }
+                String[] values = packageValues[1].split(";");
+                if (values.length != 3) {
+                    return false;
+                }
+                try {
+                    // values[0] is LED color
+                    if (!sColorValidator.validate(values[0])) {
+                        return false;
+                    }
+                    // values[1] is the LED on time and should be non-negative
+                    if (!sNonNegativeIntegerValidator.validate(values[1])) {
+                        return false;
+                    }
+                    // values[1] is the LED off time and should be non-negative
+                    if (!sNonNegativeIntegerValidator.validate(values[2])) {
+                        return false;
+                    }
+                } catch (NumberFormatException e) {
+                    return false;
+                }
+            }
+            // if we make it all the way through then the data is considered valid
+            return true;
+        }
+    };
+
+    static final Validator DISPLAY_COLOR_ADJUSTMENT_VALIDATOR = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            String[] colorAdjustment = value == null ?
+                    null : value.split(" ");
+            if (colorAdjustment != null && colorAdjustment.length != 3) {
+                return false;
+            }
+            Validator floatValidator = new InclusiveFloatRangeValidator(0, 1);
+            return colorAdjustment == null ||
+                    floatValidator.validate(colorAdjustment[0]) &&
+                    floatValidator.validate(colorAdjustment[1]) &&
+                    floatValidator.validate(colorAdjustment[2]);
+        }
+    };
+
+    static final Validator DISPLAY_PICTURE_ADJUSTMENT_VALIDATOR = new Validator() {
+        @Override
+        public boolean validate(String value) {
+            if (TextUtils.isEmpty(value)) {
+                return true;
+            }
+            final String[] sp = TextUtils.split(value, ",");
+            for (String s : sp) {
+                final String[] sp2 = TextUtils.split(s, ":");
+                if (sp2.length != 2) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    };
+
+    private LegacyValidators() {
+    }
+}
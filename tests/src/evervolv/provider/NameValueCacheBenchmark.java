@@ -0,0 +1,249 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.os.UserHandle;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+
+/**
+ * Times cache hits from 1 to 16 reader threads, with the snapshot cache validated against the
+ * table generation or against per-key generations, and with the synchronized HashMap it
+ * replaced, kept in {@link LegacyNameValueCache}. Every key is cached before the timing starts
+ * and nothing is written meanwhile, so every read is a hit. The table generation is read from
+ * the fake provider rather than from a system property by all of them, which leaves the
+ * locking as the difference. Results are logged and reported as instrumentation status, in
+ * nanoseconds per read on each thread.
+ *
+ * It also measures how many reads still hit while one key is written at various rates, with
+ * a cache invalidated by any write to the table and with one only invalidated by writes to
+ * the bucket of the key read.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NameValueCacheBenchmark {
+    private static final String TAG = "NameValueCacheBenchmark";
+    private static final String TABLE = "system";
+
+    private static final int[] THREADS = { 1, 2, 4, 8, 16 };
+    private static final int KNOWN_KEYS = 28;
+    private static final int UNKNOWN_KEYS = 4;
+    private static final int READS_PER_THREAD = 200000;
+    private static final int WARMUP_ROUNDS = 1;
+    private static final int ROUNDS = 3;
+
+    private static final int[] WRITE_INTERVALS_US = { 10000, 1000, 100 };
+    private static final int WRITING_READERS = 8;
+    private static final int READS_PER_WRITING_READER = 100000;
+
+    private FakeSettingsProvider mProvider;
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+    }
+
+    private FakeSettingsProvider newProvider(boolean trackGenerations, String[] keys) {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        mProvider = new FakeSettingsProvider(
+                InstrumentationRegistry.getInstrumentation().getContext(), trackGenerations);
+        for (String key : keys) {
+            mProvider.putValue(TABLE, key, "value of " + key);
+        }
+        return mProvider;
+    }
+
+    /**
+     * @return The best time of the rounds, in nanoseconds per read on each thread.
+     */
+    private static long timeReads(ExecutorService executor, int threads, String[] keys,
+            Function<String, String> reader) throws ExecutionException, InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final CountDownLatch start = new CountDownLatch(1);
+            final List<Future<Long>> results = new ArrayList<Future<Long>>(threads);
+            for (int t = 0; t < threads; t++) {
+                final int offset = t;
+                results.add(executor.submit(() -> {
+                    start.await();
+                    final long begin = SystemClock.elapsedRealtimeNanos();
+                    int length = 0;
+                    for (int i = 0; i < READS_PER_THREAD; i++) {
+                        length += reader.apply(keys[(offset + i) % keys.length]).length();
+                    }
+                    final long elapsed = SystemClock.elapsedRealtimeNanos() - begin;
+                    // Keeps the reads alive
+                    return length > 0 ? elapsed : Long.MAX_VALUE;
+                }));
+            }
+            start.countDown();
+            long slowest = 0;
+            for (Future<Long> result : results) {
+                slowest = Math.max(slowest, result.get());
+            }
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, slowest);
+            }
+        }
+        return best / READS_PER_THREAD;
+    }
+
+    @Test
+    public void benchmarkConcurrentHits() throws ExecutionException, InterruptedException {
+        final Bundle results = new Bundle();
+        final StringBuilder line = new StringBuilder();
+        final String[] keys = NameValueCacheStressTest.getKeys(TABLE, KNOWN_KEYS, UNKNOWN_KEYS);
+        final int userId = UserHandle.myUserId();
+        final ExecutorService executor = Executors.newFixedThreadPool(
+                THREADS[THREADS.length - 1]);
+        try {
+            for (String mode : new String[] { "legacy", "snapshot", "tracked" }) {
+                newProvider(mode.equals("tracked"), keys);
+                final Function<String, String> reader;
+                final EVSettings.NameValueCache cache;
+                if (mode.equals("legacy")) {
+                    final LegacyNameValueCache legacy = new LegacyNameValueCache(mProvider, TABLE);
+                    cache = null;
+                    reader = legacy::getString;
+                } else {
+                    final ContentResolver cr = mProvider.getResolver();
+                    cache = mProvider.newCache(TABLE, true);
+                    reader = name -> cache.getEntryForUser(cr, name, userId).mValue;
+                }
+                for (String key : keys) {
+                    assertEquals("value of " + key, reader.apply(key));
+                }
+                final long misses = cache != null ? cache.getStats().mMisses.sum() : 0;
+
+                line.append(mode).append(':');
+                for (int threads : THREADS) {
+                    final long ns = timeReads(executor, threads, keys, reader);
+                    results.putLong(mode + "_threads" + threads + "_ns", ns);
+                    line.append(' ').append(threads).append(" threads ").append(ns).append("ns");
+                }
+                line.append("; ");
+                if (cache != null) {
+                    // Every timed read must have been a hit.
+                    assertEquals(misses, cache.getStats().mMisses.sum());
+                }
+            }
+        } finally {
+            executor.shutdown();
+        }
+        Log.i(TAG, line.toString());
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    @Test
+    public void benchmarkHitRateWhileWriting() throws InterruptedException {
+        final Bundle results = new Bundle();
+        final StringBuilder line = new StringBuilder();
+        final String[] keys = NameValueCacheStressTest.getKeys(TABLE, KNOWN_KEYS, UNKNOWN_KEYS);
+        final int userId = UserHandle.myUserId();
+        for (String mode : new String[] { "snapshot", "tracked" }) {
+            line.append(mode).append(':');
+            for (int intervalUs : WRITE_INTERVALS_US) {
+                final FakeSettingsProvider provider = newProvider(mode.equals("tracked"), keys);
+                final ContentResolver cr = provider.getResolver();
+                final EVSettings.NameValueCache cache = provider.newCache(TABLE, true);
+                for (String key : keys) {
+                    cache.getEntryForUser(cr, key, userId);
+                }
+                final EVSettings.CacheStats stats = cache.getStats();
+                final long hitsBefore = stats.mHits.sum() + stats.mNegativeHits.sum();
+                final long missesBefore = stats.mMisses.sum();
+                final long callsBefore = provider.getCallCount();
+
+                final AtomicBoolean reading = new AtomicBoolean(true);
+                final AtomicLong writes = new AtomicLong();
+                final Thread writer = new Thread(() -> {
+                    // Only the first key is written, the others stay as they are.
+                    while (reading.get()) {
+                        provider.putValue(TABLE, keys[0],
+                                Long.toString(writes.incrementAndGet()));
+                        LockSupport.parkNanos(intervalUs * 1000L);
+                    }
+                }, "NameValueCacheWriter");
+                final Thread[] readers = new Thread[WRITING_READERS];
+                for (int r = 0; r < readers.length; r++) {
+                    final int offset = r;
+                    readers[r] = new Thread(() -> {
+                        for (int i = 0; i < READS_PER_WRITING_READER; i++) {
+                            cache.getEntryForUser(cr, keys[(offset + i) % keys.length], userId);
+                        }
+                    }, "NameValueCacheReader" + r);
+                }
+                writer.start();
+                for (Thread reader : readers) {
+                    reader.start();
+                }
+                for (Thread reader : readers) {
+                    reader.join();
+                }
+                reading.set(false);
+                writer.join();
+
+                final long hits = stats.mHits.sum() + stats.mNegativeHits.sum() - hitsBefore;
+                final long misses = stats.mMisses.sum() - missesBefore;
+                final long calls = provider.getCallCount() - callsBefore;
+                final long reads = (long) WRITING_READERS * READS_PER_WRITING_READER;
+                assertEquals(reads, hits + misses);
+                assertEquals(0, stats.mRemoteExceptions.sum());
+
+                final long hitPermille = hits * 1000 / reads;
+                final String prefix = mode + "_interval" + intervalUs + "us";
+                results.putLong(prefix + "_hit_permille", hitPermille);
+                results.putLong(prefix + "_calls", calls);
+                results.putLong(prefix + "_writes", writes.get());
+                line.append(' ').append(intervalUs).append("us writes ")
+                        .append(hitPermille / 10.0).append("% hits ")
+                        .append(calls).append(" calls");
+            }
+            line.append("; ");
+        }
+        Log.i(TAG, line.toString());
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentResolver;
+import android.os.Bundle;
+import android.os.UserHandle;
+import android.util.Log;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Counts the provider calls a cold cache makes to read the settings SystemUI reads as it
+ * starts, with and without reading the whole table on the first miss. Half of the keys are
+ * set, so that the others have to be answered as unset.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class NameValueCachePrefetchTest {
+    private static final String TAG = "NameValueCachePrefetchTest";
+
+    private static final String[] SYSTEM_PREFIXES = {
+            "status_bar_", "notification_light_", "battery_light_" };
+    private static final String[] SECURE_PREFIXES = { "network_traffic_" };
+
+    private FakeSettingsProvider mProvider;
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+    }
+
+    private static List<String> getKeys(String tableName, String[] prefixes) {
+        final List<String> keys = new ArrayList<String>();
+        for (String key : FakeSettingsProvider.getValidators(tableName).keySet()) {
+            for (String prefix : prefixes) {
+                if (key.startsWith(prefix)) {
+                    keys.add(key);
+                    break;
+                }
+            }
+        }
+        Collections.sort(keys);
+        return keys;
+    }
+
+    private static String valueOf(String key, int index) {
+        return index % 2 == 0 ? key + "_value" : null;
+    }
+
+    /**
+     * Reads every key of a table once through a cold cache.
+     * @return The number of provider calls made.
+     */
+    private long readCold(boolean trackGenerations, boolean prefetch, String tableName,
+            List<String> keys) {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+        mProvider = new FakeSettingsProvider(
+                InstrumentationRegistry.getInstrumentation().getContext(), trackGenerations);
+        for (int i = 0; i < keys.size(); i++) {
+            if (valueOf(keys.get(i), i) != null) {
+                mProvider.putValue(tableName, keys.get(i), valueOf(keys.get(i), i));
+            }
+        }
+
+        final EVSettings.NameValueCache cache = mProvider.newCache(tableName, prefetch);
+        final ContentResolver cr = mProvider.getResolver();
+        final int userId = UserHandle.myUserId();
+        for (int i = 0; i < keys.size(); i++) {
+            assertEquals(valueOf(keys.get(i), i),
+                    cache.getEntryForUser(cr, keys.get(i), userId).mValue);
+        }
+        // Every key is cached now.
+        final long calls = mProvider.getCallCount();
+        for (String key : keys) {
+            cache.getEntryForUser(cr, key, userId);
+        }
+        assertEquals(calls, mProvider.getCallCount());
+        assertEquals(0, cache.getStats().mRemoteExceptions.sum());
+        return calls;
+    }
+
+    private void checkColdCalls(boolean trackGenerations) {
+        final Bundle results = new Bundle();
+        final StringBuilder line = new StringBuilder();
+        for (String tableName : new String[] { "system", "secure" }) {
+            final List<String> keys = getKeys(tableName,
+                    tableName.equals("system") ? SYSTEM_PREFIXES : SECURE_PREFIXES);
+            assertTrue(keys.size() > 1);
+
+            final long withGetAll = readCold(trackGenerations, true, tableName, keys);
+            assertEquals(1, mProvider.getCallCount("GET_ALL_" + tableName));
+            assertEquals(1, withGetAll);
+            final long withoutGetAll = readCold(trackGenerations, false, tableName, keys);
+            assertEquals(keys.size(), mProvider.getCallCount("GET_" + tableName));
+            assertEquals(keys.size(), withoutGetAll);
+
+            results.putLong(tableName + "_keys", keys.size());
+            results.putLong(tableName + "_calls_get_all", withGetAll);
+            results.putLong(tableName + "_calls_get", withoutGetAll);
+            line.append(tableName).append(": ").append(keys.size()).append(" keys, ")
+                    .append(withGetAll).append(" calls with GET_ALL, ")
+                    .append(withoutGetAll).append(" without; ");
+        }
+        Log.i(TAG, (trackGenerations ? "tracked " : "untracked ") + line);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+
+    @Test
+    public void testColdCallsTracked() {
+        checkColdCalls(true);
+    }
+
+    @Test
+    public void testColdCallsUntracked() {
+        checkColdCalls(false);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import android.content.ContentResolver;
+import android.os.UserHandle;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Reads settings from several threads while another one writes them, and checks that no reader
+ * ever sees a key go back to a value older than one it has already seen, and that every reader
+ * sees the last values once the writes are over. Each write of a key stores the next number of
+ * a counter, so the value of a key tells the generation it was written at.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class NameValueCacheStressTest {
+    private static final String TABLE = "system";
+
+    private static final int READERS = 8;
+    private static final int KNOWN_KEYS = 12;
+    private static final int UNKNOWN_KEYS = 4;
+    private static final int WRITES_PER_KEY = 300;
+
+    private FakeSettingsProvider mProvider;
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+    }
+
+    /**
+     * @return Known keys of the table, which the cache interns, and keys it doesn't know.
+     */
+    static String[] getKeys(String tableName, int knownCount, int unknownCount) {
+        final List<String> known =
+                new ArrayList<String>(FakeSettingsProvider.getValidators(tableName).keySet());
+        Collections.sort(known);
+        final String[] keys = new String[knownCount + unknownCount];
+        for (int i = 0; i < knownCount; i++) {
+            keys[i] = known.get(i);
+        }
+        for (int i = 0; i < unknownCount; i++) {
+            keys[knownCount + i] = "unknown_test_key_" + i;
+        }
+        return keys;
+    }
+
+    private void runReadersAndWriter(boolean trackGenerations, boolean prefetch)
+            throws InterruptedException {
+        mProvider = new FakeSettingsProvider(
+                InstrumentationRegistry.getInstrumentation().getContext(), trackGenerations);
+        final EVSettings.NameValueCache cache = mProvider.newCache(TABLE, prefetch);
+        final ContentResolver cr = mProvider.getResolver();
+        final int userId = UserHandle.myUserId();
+        final String[] keys = getKeys(TABLE, KNOWN_KEYS, UNKNOWN_KEYS);
+        for (String key : keys) {
+            mProvider.putValue(TABLE, key, "0");
+        }
+
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        final Thread[] readers = new Thread[READERS];
+        final AtomicBoolean writing = new AtomicBoolean(true);
+        for (int r = 0; r < READERS; r++) {
+            final long seed = r;
+            readers[r] = new Thread(() -> {
+                final Random random = new Random(seed);
+                final int[] seen = new int[keys.length];
+                while (failure.get() == null) {
+                    if (!writing.get()) {
+                        // The writes are over, every key must read its last value.
+                        for (int k = 0; k < keys.length; k++) {
+                            final int value = Integer.parseInt(
+                                    cache.getEntryForUser(cr, keys[k], userId).mValue);
+                            if (value != WRITES_PER_KEY) {
+                                failure.compareAndSet(null, keys[k] + " read " + value
+                                        + " after the writes instead of " + WRITES_PER_KEY);
+                            }
+                        }
+                        return;
+                    }
+                    final int k = random.nextInt(keys.length);
+                    final int value = Integer.parseInt(
+                            cache.getEntryForUser(cr, keys[k], userId).mValue);
+                    if (value < seen[k]) {
+                        failure.compareAndSet(null, keys[k] + " went back from " + seen[k]
+                                + " to " + value);
+                    }
+                    seen[k] = Math.max(seen[k], value);
+                }
+            }, "NameValueCacheReader" + r);
+            readers[r].start();
+        }
+
+        for (int i = 1; i <= WRITES_PER_KEY && failure.get() == null; i++) {
+            for (String key : keys) {
+                mProvider.putValue(TABLE, key, Integer.toString(i));
+            }
+        }
+        writing.set(false);
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        assertNull(failure.get());
+        assertEquals(0, cache.getStats().mRemoteExceptions.sum());
+    }
+
+    @Test
+    public void testTrackedReadersNeverGoBack() throws InterruptedException {
+        runReadersAndWriter(true, true);
+    }
+
+    @Test
+    public void testUntrackedReadersNeverGoBack() throws InterruptedException {
+        runReadersAndWriter(false, true);
+    }
+
+    @Test
+    public void testUntrackedReadersWithoutPrefetchNeverGoBack() throws InterruptedException {
+        runReadersAndWriter(false, false);
+    }
+}
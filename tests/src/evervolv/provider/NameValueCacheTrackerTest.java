@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.ContentResolver;
+import android.os.UserHandle;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Checks that a cache keeps reading correct values when the generation tracker the provider
+ * shares with it is closed, as happens in the system process when a user is removed.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class NameValueCacheTrackerTest {
+    private static final String TABLE = "system";
+    private static final String KEY = EVSettings.System.BATTERY_LIGHT_ENABLED;
+
+    private FakeSettingsProvider mProvider;
+
+    @After
+    public void tearDown() {
+        if (mProvider != null) {
+            mProvider.shutdown();
+        }
+    }
+
+    private void checkReadAfterTrackerClosed(boolean prefetch) {
+        mProvider = new FakeSettingsProvider(
+                InstrumentationRegistry.getInstrumentation().getContext(), true);
+        mProvider.setSharedTrackers(true);
+        final EVSettings.NameValueCache cache = mProvider.newCache(TABLE, prefetch);
+        final ContentResolver cr = mProvider.getResolver();
+        final int userId = UserHandle.myUserId();
+
+        mProvider.putValue(TABLE, KEY, "0");
+        assertEquals("0", cache.getEntryForUser(cr, KEY, userId).mValue);
+        assertEquals("0", cache.getEntryForUser(cr, KEY, userId).mValue);
+
+        mProvider.closeTrackers();
+        mProvider.putValue(TABLE, KEY, "1");
+        assertEquals("1", cache.getEntryForUser(cr, KEY, userId).mValue);
+        assertEquals(1, cache.getStats().mTrackerDrops.sum());
+
+        // The read above was given a new tracker, which keeps working.
+        mProvider.putValue(TABLE, KEY, "2");
+        assertEquals("2", cache.getEntryForUser(cr, KEY, userId).mValue);
+        assertEquals(1, cache.getStats().mTrackerDrops.sum());
+        assertEquals(0, cache.getStats().mRemoteExceptions.sum());
+    }
+
+    @Test
+    public void testReadAfterTrackerClosed() {
+        checkReadAfterTrackerClosed(true);
+    }
+
+    @Test
+    public void testReadAfterTrackerClosedWithoutPrefetch() {
+        checkReadAfterTrackerClosed(false);
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertTrue;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.provider.EVSettings.Validator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Times every validator of the VALIDATORS tables over the values of {@link ValidatorsTest}, and
+ * the validators that changed against their {@link LegacyValidators} counterparts. Results are
+ * logged and reported as instrumentation status, in nanoseconds per validation.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ValidatorsBenchmark {
+    private static final String TAG = "ValidatorsBenchmark";
+
+    private static final int RANDOM_VALUES = 2000;
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int ROUNDS = 10;
+
+    // Keeps the results alive
+    private int mAccepted;
+
+    private long timeValidations(List<Validator> validators, List<String> values) {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            for (Validator validator : validators) {
+                for (String value : values) {
+                    try {
+                        if (validator.validate(value)) {
+                            mAccepted++;
+                        }
+                    } catch (RuntimeException e) {
+                        // Null values of the float validators
+                    }
+                }
+            }
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / ((long) validators.size() * values.size());
+    }
+
+    @Test
+    public void benchmarkValidators() throws ReflectiveOperationException {
+        final List<String> values = ValidatorsTest.getValues(RANDOM_VALUES);
+        final List<Validator> all = new ArrayList<Validator>();
+        final List<Validator> changed = new ArrayList<Validator>();
+        final List<Validator> legacy = new ArrayList<Validator>();
+        for (Map<String, Validator> validators : ValidatorsTest.getTables()) {
+            for (Validator validator : validators.values()) {
+                all.add(validator);
+                final Validator legacyValidator = ValidatorsTest.getLegacyValidator(validator);
+                if (legacyValidator != null) {
+                    changed.add(validator);
+                    legacy.add(legacyValidator);
+                }
+            }
+        }
+
+        final Bundle results = new Bundle();
+        results.putLong("all_ns", timeValidations(all, values));
+        results.putLong("changed_ns", timeValidations(changed, values));
+        results.putLong("changed_legacy_ns", timeValidations(legacy, values));
+        Log.i(TAG, all.size() + " validator(s), " + changed.size() + " changed, "
+                + values.size() + " value(s): " + results);
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+        assertTrue(mAccepted > 0);
+    }
+}
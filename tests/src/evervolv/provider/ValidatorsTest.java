@@ -0,0 +1,200 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import androidx.test.filters.SmallTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.provider.EVSettings.Validator;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks that the settings validators accept exactly what they accepted when they split values
+ * and caught NumberFormatException, as kept in {@link LegacyValidators}.
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ValidatorsTest {
+
+    // Edge cases of Integer.parseInt(), Float.parseFloat() and String.split(), and values of
+    // the list validators.
+    private static final String[] SEEDS = {
+        "", "0", "1", "-0", "+5", "-", "+", "2147483647", "2147483648", "-2147483648",
+        "-2147483649", "99999999999999999999", "00000000000000000000001", "\u0663", "\uff11",
+        "1e5", "1.5f", "1d", "1.0E-5F", "NaN", "-Infinity", "Infinityx", " 0.5 ", "0x1p3",
+        "0x1.8p1f", "0x", "0xg", "0x1", "1e", "1e+", "..5", ".", "5.", "-0 -0.0 1e-45",
+        "0.5 0.5 0.5", "1 1 1 ", " 1 1", "1  1 1", "0.0 1.0 2.0",
+        "com.a=16711680;1000;2000", "a=1;2;3|b=-1;0;0|", "a=1;2;3||b=1;2;3", "=1;2;3",
+        "a=1;2;3;", "a=1;2;3;;", "a=;2;3", "a==", "a=b=c", "a=1;2;3=", "|", "|||",
+        "a:b,c:d", "a:b,", ",a:b", ":", "a,bc", "a::bc::", "::a", "ab",
+    };
+
+    private static final String ALPHABET =
+            "0123456789-+.eEfFdDxXpPNaIinfty |=;,:abc \t\u0663\uff11";
+
+    private static final int RANDOM_VALUES = 20000;
+
+    /**
+     * @return The seeds, null, and random values made of the seeds and the characters the
+     *     validators care about.
+     */
+    static List<String> getValues(int randomCount) {
+        final List<String> values = new ArrayList<String>(Arrays.asList(SEEDS));
+        values.add(null);
+        final Random random = new Random(42);
+        for (int i = 0; i < randomCount; i++) {
+            final StringBuilder value = new StringBuilder();
+            if (random.nextInt(3) == 0) {
+                value.append(SEEDS[random.nextInt(SEEDS.length)]);
+            }
+            final int length = random.nextInt(14);
+            for (int j = 0; j < length; j++) {
+                value.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            }
+            if (random.nextInt(3) == 0) {
+                value.append(SEEDS[random.nextInt(SEEDS.length)]);
+            }
+            values.add(value.toString());
+        }
+        return values;
+    }
+
+    /**
+     * @return The tables' validators by name.
+     */
+    static List<Map<String, Validator>> getTables() {
+        return Arrays.asList(EVSettings.System.VALIDATORS, EVSettings.Secure.VALIDATORS,
+                EVSettings.Global.VALIDATORS);
+    }
+
+    /**
+     * @return The legacy counterpart of a validator, or null if it didn't change.
+     */
+    static Validator getLegacyValidator(Validator validator) throws ReflectiveOperationException {
+        if (validator == EVSettings.System.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_VALIDATOR) {
+            return LegacyValidators.NOTIFICATION_LIGHT_PULSE_CUSTOM_VALUES_VALIDATOR;
+        }
+        if (validator == EVSettings.System.DISPLAY_COLOR_ADJUSTMENT_VALIDATOR) {
+            return LegacyValidators.DISPLAY_COLOR_ADJUSTMENT_VALIDATOR;
+        }
+        if (validator == EVSettings.System.DISPLAY_PICTURE_ADJUSTMENT_VALIDATOR) {
+            return LegacyValidators.DISPLAY_PICTURE_ADJUSTMENT_VALIDATOR;
+        }
+        switch (validator.getClass().getSimpleName()) {
+            case "InclusiveIntegerRangeValidator":
+                return new LegacyValidators.InclusiveIntegerRangeValidator(
+                        (int) getField(validator, "mMin"), (int) getField(validator, "mMax"));
+            case "InclusiveFloatRangeValidator":
+                return new LegacyValidators.InclusiveFloatRangeValidator(
+                        (float) getField(validator, "mMin"),
+                        (float) getField(validator, "mMax"));
+            case "DelimitedListValidator":
+                return new LegacyValidators.DelimitedListValidator(
+                        (String[]) getField(validator, "mValidValues"),
+                        (String) getField(validator, "mDelimiter"),
+                        (boolean) getField(validator, "mAllowEmptyList"));
+            default:
+                return null;
+        }
+    }
+
+    private static Object getField(Object object, String name)
+            throws ReflectiveOperationException {
+        final Field field = object.getClass().getDeclaredField(name);
+        field.setAccessible(true);
+        return field.get(object);
+    }
+
+    private static Validator newDelimitedListValidator(String[] validValues, String delimiter,
+            boolean allowEmptyList) throws ReflectiveOperationException {
+        final Constructor<?> constructor =
+                Class.forName("evervolv.provider.EVSettings$DelimitedListValidator")
+                        .getDeclaredConstructor(String[].class, String.class, boolean.class);
+        constructor.setAccessible(true);
+        return (Validator) constructor.newInstance(validValues, delimiter, allowEmptyList);
+    }
+
+    /**
+     * @return The result of a validation, or the exception it threw.
+     */
+    private static String validate(Validator validator, String value) {
+        try {
+            return String.valueOf(validator.validate(value));
+        } catch (RuntimeException e) {
+            return e.getClass().getName();
+        }
+    }
+
+    private static int assertSameResults(String name, Validator legacy, Validator validator,
+            List<String> values) {
+        for (String value : values) {
+            assertEquals(name + " of \"" + value + "\"",
+                    validate(legacy, value), validate(validator, value));
+        }
+        return values.size();
+    }
+
+    @Test
+    public void testTableValidatorsMatchLegacy() throws ReflectiveOperationException {
+        final List<String> values = getValues(RANDOM_VALUES);
+        int checked = 0;
+        for (Map<String, Validator> validators : getTables()) {
+            for (Map.Entry<String, Validator> entry : validators.entrySet()) {
+                final Validator legacy = getLegacyValidator(entry.getValue());
+                if (legacy != null) {
+                    checked += assertSameResults(entry.getKey(), legacy, entry.getValue(),
+                            values);
+                }
+            }
+        }
+        assertTrue("No validator was checked", checked > 0);
+    }
+
+    @Test
+    public void testDelimitedListValidatorsMatchLegacy() throws ReflectiveOperationException {
+        final List<String> values = getValues(RANDOM_VALUES);
+        final String[][] validValues = {
+            { "a", "bc", "" }, { "a", "b" }, { "1", "2", "3" }, {},
+        };
+        final String[] delimiters = { ",", "::", "", "|", ";;" };
+        for (String[] valid : validValues) {
+            for (String delimiter : delimiters) {
+                for (boolean allowEmptyList : new boolean[] { false, true }) {
+                    assertSameResults(Arrays.toString(valid) + " \"" + delimiter + "\" "
+                            + allowEmptyList,
+                            new LegacyValidators.DelimitedListValidator(valid, delimiter,
+                                    allowEmptyList),
+                            newDelimitedListValidator(valid, delimiter, allowEmptyList),
+                            values);
+                }
+            }
+        }
+    }
+}
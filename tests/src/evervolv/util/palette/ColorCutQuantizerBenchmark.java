@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.util.palette;
+
+import static org.junit.Assert.assertEquals;
+
+import android.os.Bundle;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.util.palette.Palette.Swatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Times serial quantization, and parallel quantization on 2 to N threads, for images from the
+ * default 192px resize up to 4K. Each parallel run happens inside a fork-join pool of the given
+ * size, which the shards are forked into; the number of shards itself follows the common pool.
+ * Results are logged and reported as instrumentation status, in microseconds per image.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ColorCutQuantizerBenchmark {
+    private static final String TAG = "ColorCutQuantizerBenchmark";
+
+    private static final int[][] SIZES = {
+        { 192, 192 }, { 512, 512 }, { 1280, 720 }, { 1920, 1080 }, { 3840, 2160 },
+    };
+    private static final int MAX_COLORS = 16;
+    private static final int WARMUP_ROUNDS = 2;
+    private static final int ROUNDS = 5;
+
+    private static List<Swatch> quantize(int[] pixels, boolean parallel) {
+        final ColorCutQuantizer quantizer = ColorCutQuantizer.obtain();
+        try {
+            return quantizer.quantize(pixels, pixels.length, MAX_COLORS,
+                    ColorCutQuantizerTest.FILTERS, parallel);
+        } finally {
+            quantizer.recycle();
+        }
+    }
+
+    /**
+     * @return The best time of the rounds, in microseconds.
+     */
+    private static long time(int[] pixels, ForkJoinPool pool, List<Swatch> expected)
+            throws ExecutionException, InterruptedException {
+        long best = Long.MAX_VALUE;
+        for (int round = 0; round < WARMUP_ROUNDS + ROUNDS; round++) {
+            final long start = SystemClock.elapsedRealtimeNanos();
+            final List<Swatch> swatches = pool == null
+                    ? quantize(pixels, false) : pool.submit(() -> quantize(pixels, true)).get();
+            final long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+            assertEquals(expected, swatches);
+            if (round >= WARMUP_ROUNDS) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return best / 1000;
+    }
+
+    @Test
+    public void benchmarkScaling() throws ExecutionException, InterruptedException {
+        final int cores = Runtime.getRuntime().availableProcessors();
+        final Bundle results = new Bundle();
+        for (int[] size : SIZES) {
+            final String name = size[0] + "x" + size[1];
+            final int[] pixels = ColorCutQuantizerTest.makeImage(size[0], size[1], 0);
+            final List<Swatch> expected = quantize(pixels, false);
+
+            final long serialUs = time(pixels, null, expected);
+            results.putLong(name + "_serial_us", serialUs);
+            final StringBuilder line = new StringBuilder(name + ": serial " + serialUs + "us");
+            for (int threads = 2; threads <= cores; threads++) {
+                final ForkJoinPool pool = new ForkJoinPool(threads);
+                try {
+                    final long parallelUs = time(pixels, pool, expected);
+                    results.putLong(name + "_threads" + threads + "_us", parallelUs);
+                    line.append(", " + threads + " threads " + parallelUs + "us");
+                } finally {
+                    pool.shutdown();
+                }
+            }
+            Log.i(TAG, line.toString());
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.util.palette;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import android.graphics.Color;
+
+import androidx.test.filters.MediumTest;
+import androidx.test.runner.AndroidJUnit4;
+
+import evervolv.util.palette.Palette.Swatch;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks that parallel quantization gives the same swatches as serial quantization. The pixels
+ * are split into as many shards as the common fork-join pool has threads, so the parallel path
+ * is only exercised on devices with several cores.
+ */
+@MediumTest
+@RunWith(AndroidJUnit4.class)
+public class ColorCutQuantizerTest {
+
+    private static final int MAX_COLORS = 16;
+
+    // Rejects the darkest and lightest colors, and is safe to call from several threads.
+    static final Palette.Filter[] FILTERS = { new Palette.Filter() {
+        @Override
+        public boolean isAllowed(int rgb, float[] hsl) {
+            return hsl[2] > 0.05f && hsl[2] < 0.95f;
+        }
+    } };
+
+    /**
+     * Makes an image of clusters of similar colors over a noisy background, so that the
+     * histogram has both crowded and sparse regions.
+     */
+    static int[] makeImage(int width, int height, long seed) {
+        final Random random = new Random(seed);
+        final int[] clusters = new int[8];
+        for (int i = 0; i < clusters.length; i++) {
+            clusters[i] = random.nextInt() | 0xff000000;
+        }
+        final int[] pixels = new int[width * height];
+        for (int i = 0; i < pixels.length; i++) {
+            if (random.nextInt(4) == 0) {
+                pixels[i] = random.nextInt() | 0xff000000;
+            } else {
+                final int color = clusters[random.nextInt(clusters.length)];
+                pixels[i] = Color.rgb(jitter(random, Color.red(color)),
+                        jitter(random, Color.green(color)), jitter(random, Color.blue(color)));
+            }
+        }
+        return pixels;
+    }
+
+    private static int jitter(Random random, int component) {
+        return Math.max(0, Math.min(255, component + random.nextInt(25) - 12));
+    }
+
+    private static List<Swatch> quantize(int[] pixels, Palette.Filter[] filters,
+            boolean parallel) {
+        final ColorCutQuantizer quantizer = ColorCutQuantizer.obtain();
+        try {
+            return quantizer.quantize(pixels, pixels.length, MAX_COLORS, filters, parallel);
+        } finally {
+            quantizer.recycle();
+        }
+    }
+
+    private static void assertSameSwatches(int width, int height, long seed) {
+        final int[] pixels = makeImage(width, height, seed);
+        for (Palette.Filter[] filters : new Palette.Filter[][] { null, FILTERS }) {
+            final List<Swatch> serial = quantize(pixels, filters, false);
+            assertFalse(serial.isEmpty());
+            assertEquals(width + "x" + height + " seed " + seed, serial,
+                    quantize(pixels, filters, true));
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerial() {
+        for (long seed = 0; seed < 4; seed++) {
+            assertSameSwatches(192, 192, seed);
+            assertSameSwatches(1024, 768, seed);
+            assertSameSwatches(1920, 1080, seed);
+        }
+    }
+
+    @Test
+    public void testParallelMatchesSerialOnOddSizes() {
+        // Shards and color ranges that don't divide evenly
+        assertSameSwatches(1021, 263, 5);
+        assertSameSwatches(3, 100003, 6);
+    }
+}
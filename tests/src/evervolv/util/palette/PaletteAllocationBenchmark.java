@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2026 The Evervolv Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package evervolv.util.palette;
+
+import static org.junit.Assert.assertEquals;
+
+import android.graphics.Bitmap;
+import android.os.Bundle;
+import android.os.Debug;
+import android.util.Log;
+
+import androidx.test.filters.LargeTest;
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.runner.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+/**
+ * Counts what generating a palette allocates on the calling thread when its quantizer comes
+ * from the pool, and when the pool is emptied before each palette so that a new quantizer is
+ * made every time, as before quantizers were pooled. Bitmaps go from the default 192px resize
+ * to sizes whose buffers are too large to be kept in the pool. Results are logged and reported
+ * as instrumentation status, in objects and bytes per palette, along with the number of
+ * garbage collections over all runs.
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class PaletteAllocationBenchmark {
+    private static final String TAG = "PaletteAllocationBenchmark";
+
+    private static final int[][] SIZES = { { 192, 192 }, { 256, 256 }, { 512, 512 } };
+    private static final int WARMUP_RUNS = 5;
+    private static final int RUNS = 50;
+
+    @After
+    public void tearDown() {
+        Debug.stopAllocCounting();
+    }
+
+    private static Palette generate(Bitmap bitmap, int maxDimension, boolean pooled) {
+        if (!pooled) {
+            ColorCutQuantizer.clearPool();
+        }
+        return Palette.from(bitmap).resizeBitmapSize(maxDimension).generate();
+    }
+
+    /**
+     * @return The objects and bytes allocated per palette.
+     */
+    private static long[] countAllocations(Bitmap bitmap, int maxDimension, boolean pooled,
+            Palette expected) {
+        for (int i = 0; i < WARMUP_RUNS; i++) {
+            assertEquals(expected.getSwatches(), generate(bitmap, maxDimension, pooled)
+                    .getSwatches());
+        }
+        Debug.resetThreadAllocCount();
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+        for (int i = 0; i < RUNS; i++) {
+            generate(bitmap, maxDimension, pooled);
+        }
+        Debug.stopAllocCounting();
+        return new long[] { Debug.getThreadAllocCount() / RUNS,
+                Debug.getThreadAllocSize() / RUNS };
+    }
+
+    private static long getGcCount() {
+        final String count = Debug.getRuntimeStat("art.gc.gc-count");
+        return count != null ? Long.parseLong(count) : -1;
+    }
+
+    @Test
+    public void benchmarkAllocations() {
+        final Bundle results = new Bundle();
+        for (int[] size : SIZES) {
+            final String name = size[0] + "x" + size[1];
+            final Bitmap bitmap = Bitmap.createBitmap(
+                    ColorCutQuantizerTest.makeImage(size[0], size[1], 0),
+                    size[0], size[1], Bitmap.Config.ARGB_8888);
+            // Sampled at its own size, so that the larger ones overflow the pooled buffers.
+            final int maxDimension = Math.max(size[0], size[1]);
+            final Palette expected = generate(bitmap, maxDimension, false);
+
+            final StringBuilder line = new StringBuilder(name + ":");
+            for (boolean pooled : new boolean[] { true, false }) {
+                final String mode = pooled ? "pooled" : "fresh";
+                final long gcBefore = getGcCount();
+                final long[] allocations = countAllocations(bitmap, maxDimension, pooled,
+                        expected);
+                final long gcs = getGcCount() - gcBefore;
+                results.putLong(name + "_" + mode + "_objects", allocations[0]);
+                results.putLong(name + "_" + mode + "_bytes", allocations[1]);
+                results.putLong(name + "_" + mode + "_gcs", gcs);
+                line.append(" " + mode + " " + allocations[0] + " objects " + allocations[1]
+                        + " bytes " + gcs + " GCs,");
+            }
+            bitmap.recycle();
+            Log.i(TAG, line.toString());
+        }
+        InstrumentationRegistry.getInstrumentation().sendStatus(0, results);
+    }
+}